@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.benchmarks;
+
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import leshan.server.lwm2m.osgi.LWM2MClientDevice;
+import leshan.server.lwm2m.osgi.OsgiBasedClientRegistry;
+import leshan.server.lwm2m.osgi.Property;
+
+import org.eclipse.leshan.server.client.Client;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Latency of client lookups with many registered devices. The
+ * <code>osgi*</code> benchmarks resolve the device through the OSGi service
+ * registry the way the registry did before it kept the device handles in
+ * memory, the <code>registry*</code> benchmarks use the registry itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientLookupBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int deviceCount;
+
+    private EmbeddedFramework framework;
+    private BundleContext context;
+    private OsgiBasedClientRegistry registry;
+    private ServiceReference<LWM2MClientDevice>[] references;
+    private String[] endpoints;
+    private String[] registrationIds;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void setUp() throws Exception {
+        framework = EmbeddedFramework.start();
+        context = framework.getBundleContext();
+        registry = new OsgiBasedClientRegistry(context, null);
+        references = new ServiceReference[deviceCount];
+        endpoints = new String[deviceCount];
+        registrationIds = new String[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            registry.registerClient(Clients.newClient(i));
+            endpoints[i] = Clients.endpoint(i);
+            registrationIds[i] = Clients.registrationId(i);
+        }
+        for (final ServiceReference<LWM2MClientDevice> ref : context.getServiceReferences(LWM2MClientDevice.class,
+            null)) {
+            final String endpoint = (String) ref.getProperty(Constants.SERVICE_PID);
+            references[Integer.parseInt(endpoint.substring(endpoint.lastIndexOf('-') + 1))] = ref;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registry.stop();
+        framework.stop();
+    }
+
+    private int nextIndex() {
+        return ThreadLocalRandom.current().nextInt(deviceCount);
+    }
+
+    @Benchmark
+    public Client registryGet() {
+        return registry.get(endpoints[nextIndex()]);
+    }
+
+    @Benchmark
+    public Client registryFindByRegistrationId() {
+        return registry.findByRegistrationId(registrationIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public Client osgiGetService() {
+        final ServiceReference<LWM2MClientDevice> ref = references[nextIndex()];
+        final LWM2MClientDevice device = context.getService(ref);
+        context.ungetService(ref);
+        return device.getClient();
+    }
+
+    @Benchmark
+    public Client osgiFindByRegistrationIdFilter() throws InvalidSyntaxException {
+        final Collection<ServiceReference<LWM2MClientDevice>> refs = context.getServiceReferences(
+            LWM2MClientDevice.class, String.format("(%s=%s)", Property.REGISTRATION_ID, registrationIds[nextIndex()]));
+        final ServiceReference<LWM2MClientDevice> ref = refs.iterator().next();
+        final LWM2MClientDevice device = context.getService(ref);
+        context.ungetService(ref);
+        return device.getClient();
+    }
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.server.client.Client;
+
+/**
+ * Creates the clients registered by the benchmarks.
+ */
+public final class Clients {
+
+    private static final InetAddress ADDRESS;
+
+    static {
+        try {
+            ADDRESS = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+        } catch (final UnknownHostException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Clients() {
+    }
+
+    /**
+     * @param index
+     * @return the endpoint name of the client with the given index
+     */
+    public static String endpoint(final int index) {
+        return "benchmark-ep-" + index;
+    }
+
+    /**
+     * @param index
+     * @return the registration id of the client with the given index
+     */
+    public static String registrationId(final int index) {
+        return "benchmark-reg-" + index;
+    }
+
+    /**
+     * Creates a client with a typical set of object links.
+     *
+     * @param index the index of the client, determines endpoint and
+     *        registration id
+     * @return a new client
+     */
+    public static Client newClient(final int index) {
+        final Map<String, String> attribs = new HashMap<>();
+        final LinkObject[] objectLinks = new LinkObject[] { new LinkObject("/1/0", attribs),
+                new LinkObject("/3/0", attribs), new LinkObject("/4/0", attribs), new LinkObject("/5/0", attribs) };
+        return new Client(registrationId(index), endpoint(index), ADDRESS, 5683 + index % 1000, "1.0", 86400L,
+            null, BindingMode.U, objectLinks, InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+
+/**
+ * An embedded OSGi framework (Equinox) for the benchmarks. The benchmarked
+ * classes are used from the class path through the system bundle's context,
+ * so the framework's service registry and event dispatching are exercised
+ * without installing any bundle.
+ */
+public final class EmbeddedFramework {
+
+    private final Framework framework;
+    private final File storage;
+
+    private EmbeddedFramework(final Framework framework, final File storage) {
+        this.framework = framework;
+        this.storage = storage;
+    }
+
+    /**
+     * Starts a new framework with an empty, temporary storage area.
+     *
+     * @return the started framework
+     * @throws IOException if the storage area cannot be created
+     * @throws BundleException if the framework cannot be started
+     */
+    public static EmbeddedFramework start() throws IOException, BundleException {
+        final File storage = File.createTempFile("leshan-osgi-benchmarks", "");
+        if (!storage.delete() || !storage.mkdirs()) {
+            throw new IOException("Cannot create framework storage " + storage);
+        }
+
+        final Map<String, String> config = new HashMap<>();
+        config.put(Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath());
+        config.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+
+        final Iterator<FrameworkFactory> factories = ServiceLoader.load(FrameworkFactory.class).iterator();
+        if (!factories.hasNext()) {
+            throw new IllegalStateException("No OSGi framework found on the class path");
+        }
+        final Framework framework = factories.next().newFramework(config);
+        framework.start();
+        return new EmbeddedFramework(framework, storage);
+    }
+
+    /**
+     * @return the context of the system bundle
+     */
+    public BundleContext getBundleContext() {
+        return framework.getBundleContext();
+    }
+
+    /**
+     * Stops the framework and removes its storage area.
+     */
+    public void stop() throws BundleException, InterruptedException {
+        framework.stop();
+        framework.waitForStop(10000L);
+        delete(storage);
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
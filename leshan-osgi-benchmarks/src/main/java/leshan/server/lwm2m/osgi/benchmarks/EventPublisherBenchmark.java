@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import leshan.server.lwm2m.osgi.OsgiBasedClientRegistry;
+import leshan.server.lwm2m.osgi.messaging.EventBatchConfig;
+import leshan.server.lwm2m.osgi.messaging.Lwm2mEventPublisher;
+
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.core.observation.ObservationListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+/**
+ * Throughput of {@link Lwm2mEventPublisher#newValue(Observation, LwM2mNode)}
+ * for notifications of randomly chosen devices. The events are posted to an
+ * {@link EventAdmin} which only counts them, so the benchmark measures the
+ * publisher and the service lookups, not the event delivery.
+ * <code>newValueBatched</code> publishes batches of up to 100 notifications
+ * per device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventPublisherBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int deviceCount;
+
+    private EmbeddedFramework framework;
+    private OsgiBasedClientRegistry registry;
+    private ServiceRegistration<EventAdmin> eventAdminRegistration;
+    private Lwm2mEventPublisher publisher;
+    private Lwm2mEventPublisher batchingPublisher;
+    private Observation[] observations;
+    private LwM2mNode node;
+
+    /**
+     * Counts the posted events.
+     */
+    static final class CountingEventAdmin implements EventAdmin {
+
+        final AtomicLong events = new AtomicLong();
+
+        @Override
+        public void postEvent(final Event event) {
+            events.incrementAndGet();
+        }
+
+        @Override
+        public void sendEvent(final Event event) {
+            events.incrementAndGet();
+        }
+    }
+
+    /**
+     * An observation of <code>/3/0/9</code> (battery level).
+     */
+    static final class BenchmarkObservation implements Observation {
+
+        private final String registrationId;
+        private final LwM2mPath path = new LwM2mPath(3, 0, 9);
+
+        BenchmarkObservation(final String registrationId) {
+            this.registrationId = registrationId;
+        }
+
+        @Override
+        public String getRegistrationId() {
+            return registrationId;
+        }
+
+        @Override
+        public LwM2mPath getPath() {
+            return path;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public void addListener(final ObservationListener listener) {
+        }
+
+        @Override
+        public void removeListener(final ObservationListener listener) {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        framework = EmbeddedFramework.start();
+        final BundleContext context = framework.getBundleContext();
+        eventAdminRegistration = context.registerService(EventAdmin.class, new CountingEventAdmin(), null);
+        registry = new OsgiBasedClientRegistry(context, null);
+        observations = new Observation[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            registry.registerClient(Clients.newClient(i));
+            observations[i] = new BenchmarkObservation(Clients.registrationId(i));
+        }
+        publisher = new Lwm2mEventPublisher(context, registry);
+        batchingPublisher = new Lwm2mEventPublisher(context, registry, new EventBatchConfig());
+        node = LwM2mSingleResource.newIntegerResource(9, 55);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        publisher.close();
+        batchingPublisher.close();
+        eventAdminRegistration.unregister();
+        registry.stop();
+        framework.stop();
+    }
+
+    @Benchmark
+    public void newValue() {
+        publisher.newValue(observations[ThreadLocalRandom.current().nextInt(deviceCount)], node);
+    }
+
+    @Benchmark
+    public void newValueBatched() {
+        batchingPublisher.newValue(observations[ThreadLocalRandom.current().nextInt(deviceCount)], node);
+    }
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.benchmarks;
+
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import leshan.server.lwm2m.osgi.OsgiBasedClientRegistry;
+
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientUpdate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Latency of the read and update operations of the
+ * {@link OsgiBasedClientRegistry} with 1k, 10k and 100k registered devices in
+ * an embedded Equinox framework. Registration and deregistration are measured
+ * by {@link RegistryChurnBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int deviceCount;
+
+    private EmbeddedFramework framework;
+    private SweepableRegistry registry;
+    private String[] endpoints;
+    private String[] registrationIds;
+    private ClientUpdate[] updates;
+
+    /**
+     * Gives access to one run of the Cleaner.
+     */
+    static final class SweepableRegistry extends OsgiBasedClientRegistry {
+
+        SweepableRegistry(final BundleContext bundleContext) {
+            super(bundleContext, null);
+        }
+
+        int sweep() {
+            return removeExpiredRegistrations(System.currentTimeMillis());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        framework = EmbeddedFramework.start();
+        registry = new SweepableRegistry(framework.getBundleContext());
+        endpoints = new String[deviceCount];
+        registrationIds = new String[deviceCount];
+        updates = new ClientUpdate[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            registry.registerClient(Clients.newClient(i));
+            endpoints[i] = Clients.endpoint(i);
+            registrationIds[i] = Clients.registrationId(i);
+            updates[i] = new ClientUpdate(registrationIds[i], null, null, null, null, null, null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registry.stop();
+        framework.stop();
+    }
+
+    private int nextIndex() {
+        return ThreadLocalRandom.current().nextInt(deviceCount);
+    }
+
+    @Benchmark
+    public Client get() {
+        return registry.get(endpoints[nextIndex()]);
+    }
+
+    @Benchmark
+    public Client findByRegistrationId() {
+        return registry.findByRegistrationId(registrationIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public Collection<Client> allClients() {
+        return registry.allClients();
+    }
+
+    @Benchmark
+    public Client updateClient() {
+        return registry.updateClient(updates[nextIndex()]);
+    }
+
+    /**
+     * One run of the Cleaner while no registration is expired, the steady
+     * state of a healthy fleet.
+     */
+    @Benchmark
+    public int cleanerSweep() {
+        return registry.sweep();
+    }
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import leshan.server.lwm2m.osgi.ClientRegistryConfig;
+import leshan.server.lwm2m.osgi.OsgiBasedClientRegistry;
+
+import org.eclipse.leshan.server.client.Client;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to register and deregister a batch of {@value #BATCH} clients in an
+ * {@link OsgiBasedClientRegistry} already holding 1k, 10k and 100k devices.
+ * Each iteration registers the clients deregistered by
+ * {@link #deregisterClient()} beforehand and removes the ones registered by
+ * {@link #registerClient()} afterwards, so the registry size stays constant.
+ * With the SELECTIVE publication mode and no publication filter, the devices
+ * are not registered as services; with compact storage they are kept in the
+ * columns of the compact store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, batchSize = RegistryChurnBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = RegistryChurnBenchmark.BATCH)
+@Fork(1)
+public class RegistryChurnBenchmark {
+
+    static final int BATCH = 100;
+
+    @Param({ "1000", "10000", "100000" })
+    public int deviceCount;
+
+    @Param({ "ALL", "SELECTIVE" })
+    public ClientRegistryConfig.PublicationMode publicationMode;
+
+    @Param({ "false", "true" })
+    public boolean compactStorage;
+
+    private EmbeddedFramework framework;
+    private OsgiBasedClientRegistry registry;
+    private Client[] toRegister;
+    private int nextRegister;
+    private int nextDeregister;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        framework = EmbeddedFramework.start();
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setPublicationMode(publicationMode);
+        config.setCompactStorage(compactStorage);
+        registry = new OsgiBasedClientRegistry(framework.getBundleContext(), null, config);
+        for (int i = 0; i < deviceCount; i++) {
+            registry.registerClient(Clients.newClient(i));
+        }
+        toRegister = new Client[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            toRegister[i] = Clients.newClient(deviceCount + BATCH + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registry.stop();
+        framework.stop();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        for (int i = 0; i < BATCH; i++) {
+            registry.registerClient(Clients.newClient(deviceCount + i));
+        }
+        nextRegister = 0;
+        nextDeregister = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        for (int i = 0; i < BATCH; i++) {
+            registry.deregisterClient(Clients.registrationId(deviceCount + i));
+            registry.deregisterClient(toRegister[i].getRegistrationId());
+        }
+    }
+
+    @Benchmark
+    public boolean registerClient() {
+        return registry.registerClient(toRegister[nextRegister++ % BATCH]);
+    }
+
+    @Benchmark
+    public Client deregisterClient() {
+        return registry.deregisterClient(Clients.registrationId(deviceCount + nextDeregister++ % BATCH));
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.benchmarks;
+
+import leshan.server.lwm2m.osgi.ClientRegistryConfig;
+import leshan.server.lwm2m.osgi.OsgiBasedClientRegistry;
+
+/**
+ * Measures the heap taken per device by an {@link OsgiBasedClientRegistry},
+ * including the service registrations in the embedded framework: the used
+ * heap after a full GC with the registered devices minus the used heap after
+ * a full GC before, divided by the device count. Not a JMH benchmark, run it
+ * from the benchmarks jar with a fixed heap:
+ *
+ * <pre>
+ * java -Xms2g -Xmx2g -cp leshan-osgi-benchmarks/target/benchmarks.jar \
+ *     leshan.server.lwm2m.osgi.benchmarks.RegistryFootprint 200000 SELECTIVE true
+ * </pre>
+ *
+ * The arguments are the device count (default 200000), the publication mode
+ * (default ALL) and whether compact storage is used (default false).
+ */
+public final class RegistryFootprint {
+
+    private RegistryFootprint() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int deviceCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setPublicationMode(args.length > 1 ? ClientRegistryConfig.PublicationMode.valueOf(args[1])
+                : ClientRegistryConfig.PublicationMode.ALL);
+        config.setCompactStorage(args.length > 2 && Boolean.parseBoolean(args[2]));
+
+        final EmbeddedFramework framework = EmbeddedFramework.start();
+        try {
+            final OsgiBasedClientRegistry registry = new OsgiBasedClientRegistry(framework.getBundleContext(),
+                null, config);
+            final long before = usedHeapAfterGc();
+            for (int i = 0; i < deviceCount; i++) {
+                registry.registerClient(Clients.newClient(i));
+            }
+            final long after = usedHeapAfterGc();
+            // keeps the registry reachable until measured
+            registry.stop();
+            System.out.println(String.format("%d devices, %s publication, compact storage %s: %d bytes per device",
+                deviceCount, config.getPublicationMode(), config.isCompactStorage(), (after - before) / deviceCount));
+        } finally {
+            framework.stop();
+        }
+    }
+
+    /**
+     * @return the used heap in bytes once it does not shrink by further GCs
+     */
+    private static long usedHeapAfterGc() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(100L);
+            final long current = runtime.totalMemory() - runtime.freeMemory();
+            if (current >= used) {
+                return current;
+            }
+            used = current;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import leshan.server.lwm2m.osgi.ClientRegistryConfig;
+import leshan.server.lwm2m.osgi.JournalConfig;
+import leshan.server.lwm2m.osgi.OsgiBasedClientRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to restore an {@link OsgiBasedClientRegistry} with 1k, 10k and 100k
+ * persisted registrations into a fresh framework, per
+ * {@link JournalConfig.RestoreMode}: {@link #ready()} measures the time until
+ * the registry can be queried, {@link #published()} the time until the
+ * services of all devices are registered (in the ON_DEMAND mode by looking up
+ * every device once). Each iteration restores from a copy of the journal
+ * written at the start of the trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RestoreBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int deviceCount;
+
+    @Param({ "EAGER", "CHUNKED", "ON_DEMAND" })
+    public JournalConfig.RestoreMode restoreMode;
+
+    private File journal;
+    private File directory;
+    private ClientRegistryConfig config;
+    private EmbeddedFramework framework;
+    private OsgiBasedClientRegistry registry;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        framework = EmbeddedFramework.start();
+        journal = newDirectory();
+        directory = newDirectory();
+
+        final ClientRegistryConfig journalConfig = new ClientRegistryConfig();
+        journalConfig.setJournalConfig(new JournalConfig(journal));
+        registry = new OsgiBasedClientRegistry(framework.getBundleContext(), null, journalConfig);
+        for (int i = 0; i < deviceCount; i++) {
+            registry.registerClient(Clients.newClient(i));
+        }
+        registry.stop();
+        unregisterServices();
+
+        config = new ClientRegistryConfig();
+        config.setJournalConfig(new JournalConfig(directory));
+        config.getJournalConfig().setRestoreMode(restoreMode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        framework.stop();
+        delete(journal);
+        delete(directory);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        for (final File file : journal.listFiles()) {
+            Files.copy(file.toPath(), new File(directory, file.getName()).toPath());
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws Exception {
+        registry.stop();
+        unregisterServices();
+    }
+
+    /**
+     * Removes the devices of the stopped registry from the framework. The
+     * journal of a stopped registry drops the records.
+     */
+    private void unregisterServices() {
+        for (int i = 0; i < deviceCount; i++) {
+            registry.deregisterClient(Clients.registrationId(i));
+        }
+    }
+
+    private static File newDirectory() throws IOException {
+        final File dir = File.createTempFile("leshan-osgi-journal", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        return dir;
+    }
+
+    private static void delete(final File dir) {
+        for (final File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public OsgiBasedClientRegistry ready() {
+        registry = new OsgiBasedClientRegistry(framework.getBundleContext(), null, config);
+        return registry;
+    }
+
+    @Benchmark
+    public OsgiBasedClientRegistry published() throws InterruptedException {
+        registry = new OsgiBasedClientRegistry(framework.getBundleContext(), null, config);
+        if (restoreMode == JournalConfig.RestoreMode.ON_DEMAND) {
+            for (int i = 0; i < deviceCount; i++) {
+                registry.getDevice(Clients.endpoint(i));
+            }
+        }
+        while (registry.getUnpublishedDeviceCount() > 0) {
+            Thread.sleep(1);
+        }
+        return registry;
+    }
+}
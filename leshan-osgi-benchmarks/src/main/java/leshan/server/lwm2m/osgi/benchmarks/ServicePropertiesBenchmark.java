@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.benchmarks;
+
+import java.util.Date;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import leshan.server.lwm2m.osgi.LWM2MClientDevice;
+import leshan.server.lwm2m.osgi.Property;
+
+import org.eclipse.leshan.server.client.Client;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.device.Constants;
+
+/**
+ * Cost of building the service properties of a device and of setting them on
+ * the registration. <code>hashtable*</code> use the encoding the device used
+ * before (a {@link Hashtable} with the expiration as string). Run with
+ * <code>-prof gc</code> to compare the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServicePropertiesBenchmark {
+
+    private EmbeddedFramework framework;
+    private LWM2MClientDevice device;
+    private Client client;
+    private ServiceRegistration<LWM2MClientDevice> registration;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        framework = EmbeddedFramework.start();
+        client = Clients.newClient(0);
+        device = new LWM2MClientDevice(client, null);
+        registration = framework.getBundleContext().registerService(LWM2MClientDevice.class, device,
+            device.getServiceRegistrationProperties(client));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registration.unregister();
+        framework.stop();
+    }
+
+    private static Dictionary<String, Object> hashtableProperties(final Client client) {
+        final Dictionary<String, Object> registrationProperties = new Hashtable<>();
+        final Long expirationTime = new Date().getTime() + client.getLifeTimeInSec() * 1000;
+        registrationProperties.put(Property.REGISTRATION_ID, client.getRegistrationId());
+        registrationProperties.put(Constants.DEVICE_CATEGORY, new String[] { Property.CATEGORY_LWM2M_CLIENT });
+        registrationProperties.put(Property.REGISTRATION_EXPIRATION, Long.toString(expirationTime));
+        registrationProperties.put(Property.LWM2M_OBJECTS, client.getObjectLinks());
+        registrationProperties.put(org.osgi.framework.Constants.SERVICE_PID, client.getEndpoint());
+        return registrationProperties;
+    }
+
+    @Benchmark
+    public Dictionary<String, Object> buildProperties() {
+        return device.getServiceRegistrationProperties(client);
+    }
+
+    @Benchmark
+    public Dictionary<String, Object> hashtableBuildProperties() {
+        return hashtableProperties(client);
+    }
+
+    @Benchmark
+    public void setProperties() {
+        registration.setProperties(device.getServiceRegistrationProperties(client));
+    }
+
+    @Benchmark
+    public void hashtableSetProperties() {
+        registration.setProperties(hashtableProperties(client));
+    }
+}
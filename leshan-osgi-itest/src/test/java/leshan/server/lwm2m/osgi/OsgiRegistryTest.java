@@ -189,7 +189,7 @@ public class OsgiRegistryTest extends TestSetupConfig {
         final Client client = newClient();
         osgiRegistry.registerClient(client);
         ServiceReference<LWM2MClientDevice> ref = findByRegistrationId(client.getRegistrationId());
-        final String originalExpiry = (String) ref.getProperty(Property.REGISTRATION_EXPIRATION);
+        final Long originalExpiry = (Long) ref.getProperty(Property.REGISTRATION_EXPIRATION);
 
         final String updateSms = "00000000";
         final BindingMode updatebinding = BindingMode.UQS;
@@ -208,9 +208,9 @@ public class OsgiRegistryTest extends TestSetupConfig {
         Assert.assertEquals(updateLifetime, device.getClient().getLifeTimeInSec());
         // Assert.assertArrayEquals(objectLinks,
         // device.getClient().getObjectLinks());
-        final String updatedExpiry = (String) ref.getProperty(Property.REGISTRATION_EXPIRATION);
+        final Long updatedExpiry = (Long) ref.getProperty(Property.REGISTRATION_EXPIRATION);
         Assert.assertTrue("Expiration should have been extended after updating Client",
-            Long.valueOf(originalExpiry) < Long.valueOf(updatedExpiry));
+            originalExpiry < updatedExpiry);
     }
 
     private ServiceReference<LWM2MClientDevice> findByRegistrationId(final String id) throws InvalidSyntaxException {
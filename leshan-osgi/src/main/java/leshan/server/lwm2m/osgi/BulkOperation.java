@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.ErrorCallback;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ResponseCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A running bulk operation, sending the same request to many devices. Created
+ * by the {@link BulkOperationService}.
+ *
+ * @param <T> the type of the responses
+ */
+public class BulkOperation<T extends LwM2mResponse> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkOperation.class);
+
+    private final BulkOperationService service;
+    private final List<LWM2MClientDevice> devices;
+    private final DownlinkRequest<T> request;
+    private final BulkOperationOptions options;
+    private final BulkOperationListener<T> listener;
+    private final Runnable onCompletion;
+
+    private final Semaphore inFlight;
+    private final AtomicInteger remaining;
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger cancelledDevices = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final long startTime = System.currentTimeMillis();
+    private volatile boolean cancelled;
+    private volatile BulkOperationSummary summary;
+
+    BulkOperation(final BulkOperationService service, final List<LWM2MClientDevice> devices,
+            final DownlinkRequest<T> request, final BulkOperationOptions options,
+            final BulkOperationListener<T> listener, final Runnable onCompletion) {
+        this.service = service;
+        this.devices = devices;
+        this.request = request;
+        this.options = options;
+        this.listener = listener;
+        this.onCompletion = onCompletion;
+        this.inFlight = new Semaphore(options.getMaxInFlight());
+        this.remaining = new AtomicInteger(devices.size());
+    }
+
+    /**
+     * Dispatches the requests, blocking while the maximum number of requests
+     * is in flight.
+     */
+    void dispatch() {
+        if (devices.isEmpty()) {
+            complete();
+            return;
+        }
+        for (int i = 0; i < devices.size(); i++) {
+            final LWM2MClientDevice device = devices.get(i);
+            try {
+                if (cancelled) {
+                    skip(devices.size() - i);
+                    return;
+                }
+                inFlight.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                skip(devices.size() - i);
+                return;
+            }
+            final long delay = service.reserveRequestSlot(device, options.getMinDeviceInterval());
+            if (delay > 0) {
+                try {
+                    service.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            send(device);
+                        }
+                    }, delay);
+                } catch (final RejectedExecutionException e) {
+                    inFlight.release();
+                    skip(devices.size() - i);
+                    return;
+                }
+            } else {
+                send(device);
+            }
+        }
+    }
+
+    private void send(final LWM2MClientDevice device) {
+        if (cancelled) {
+            inFlight.release();
+            skip(1);
+            return;
+        }
+        device.sendAsync(request, options.getTimeout()).addCallback(new ResponseCallback<T>() {
+            @Override
+            public void onResponse(final T response) {
+                if (response != null && response.isSuccess()) {
+                    succeeded.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+                try {
+                    listener.onResponse(device, response);
+                } finally {
+                    finished();
+                }
+            }
+        }, new ErrorCallback() {
+            @Override
+            public void onError(final Exception e) {
+                errors.incrementAndGet();
+                try {
+                    listener.onError(device, e);
+                } finally {
+                    finished();
+                }
+            }
+        });
+    }
+
+    private void finished() {
+        inFlight.release();
+        if (remaining.decrementAndGet() == 0) {
+            complete();
+        }
+    }
+
+    private void skip(final int count) {
+        cancelledDevices.addAndGet(count);
+        if (remaining.addAndGet(-count) == 0) {
+            complete();
+        }
+    }
+
+    private void complete() {
+        summary = new BulkOperationSummary(devices.size(), succeeded.get(), failed.get(), errors.get(),
+            cancelledDevices.get(), System.currentTimeMillis() - startTime);
+        try {
+            onCompletion.run();
+            listener.onCompleted(summary);
+        } catch (final RuntimeException e) {
+            LOG.warn("Bulk operation listener failed", e);
+        } finally {
+            done.countDown();
+        }
+        LOG.debug("Bulk operation {} completed: {}", request, summary);
+    }
+
+    /**
+     * Cancels the operation. Requests already sent are not cancelled, but no
+     * further requests are sent.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return <code>true</code> if the results of all devices have been
+     *         reported
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits until the operation completed.
+     *
+     * @param timeout
+     * @param unit
+     * @return the summary or <code>null</code> if the operation did not
+     *         complete in time
+     * @throws InterruptedException
+     */
+    public BulkOperationSummary awaitCompletion(final long timeout, final TimeUnit unit) throws InterruptedException {
+        if (done.await(timeout, unit)) {
+            return summary;
+        }
+        return null;
+    }
+
+    /**
+     * @return the summary or <code>null</code> if the operation is not yet
+     *         completed
+     */
+    public BulkOperationSummary getSummary() {
+        return summary;
+    }
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import org.eclipse.leshan.core.response.LwM2mResponse;
+
+/**
+ * Receives the results of a bulk operation as they complete. The methods are
+ * invoked concurrently from the threads completing the requests and must not
+ * block.
+ *
+ * @param <T> the type of the responses
+ */
+public interface BulkOperationListener<T extends LwM2mResponse> {
+
+    /**
+     * Invoked when a device answered the request.
+     *
+     * @param device
+     * @param response
+     */
+    void onResponse(LWM2MClientDevice device, T response);
+
+    /**
+     * Invoked when the request to a device failed or timed out.
+     *
+     * @param device
+     * @param error
+     */
+    void onError(LWM2MClientDevice device, Exception error);
+
+    /**
+     * Invoked once after the results of all devices have been reported.
+     *
+     * @param summary
+     */
+    void onCompleted(BulkOperationSummary summary);
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+/**
+ * Options of a bulk operation started by the {@link BulkOperationService}. A
+ * new instance holds the default values.
+ */
+public class BulkOperationOptions {
+
+    /** Default maximum number of requests in flight. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    /** Default response timeout in milliseconds. */
+    public static final long DEFAULT_TIMEOUT = 2000L;
+
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private long timeout = DEFAULT_TIMEOUT;
+    private long minDeviceInterval;
+
+    /**
+     * @return the maximum number of requests in flight
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the maximum number of requests of the operation which are in
+     * flight at the same time.
+     *
+     * @param maxInFlight must be positive
+     */
+    public void setMaxInFlight(final int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("max in flight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @return the response timeout in milliseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the response timeout of each request.
+     *
+     * @param timeout in milliseconds, must be positive
+     */
+    public void setTimeout(final long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the minimum interval between two bulk requests to the same
+     *         device in milliseconds
+     */
+    public long getMinDeviceInterval() {
+        return minDeviceInterval;
+    }
+
+    /**
+     * Sets the minimum interval between two requests sent to the same device
+     * by bulk operations of the same {@link BulkOperationService}. Requests
+     * are delayed accordingly. Default is 0 (no limit).
+     *
+     * @param minDeviceInterval in milliseconds, must not be negative
+     */
+    public void setMinDeviceInterval(final long minDeviceInterval) {
+        if (minDeviceInterval < 0) {
+            throw new IllegalArgumentException("min device interval must not be negative");
+        }
+        this.minDeviceInterval = minDeviceInterval;
+    }
+}
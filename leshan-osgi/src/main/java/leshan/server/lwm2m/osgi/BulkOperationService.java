@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the same request to many registered devices concurrently, e.g. read
+ * <code>/3/0</code> of all devices matching an LDAP filter on the
+ * {@link LWM2MClientDevice} service properties. The number of requests in
+ * flight and the rate of requests per device are limited according to the
+ * {@link BulkOperationOptions}; results are streamed to a
+ * {@link BulkOperationListener} as they complete.
+ * <p>
+ * The devices matching a filter are queried from the
+ * {@link DeviceLookupService}, which includes the devices not registered as
+ * services (see {@link ClientRegistryConfig.PublicationMode#SELECTIVE} and
+ * {@link JournalConfig.RestoreMode#ON_DEMAND}): either the one given to the
+ * constructor or the one registered as OSGi service. Without a
+ * {@link DeviceLookupService} the {@link LWM2MClientDevice} services are
+ * queried.
+ */
+public class BulkOperationService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkOperationService.class);
+
+    /** matches the properties of every device */
+    private static final String ALL_DEVICES = "(" + Property.REGISTRATION_ID + "=*)";
+
+    private final BundleContext context;
+    private final DeviceLookupService deviceLookup;
+    private final ExecutorService dispatchExecutor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService delayExecutor = Executors.newSingleThreadScheduledExecutor();
+    /** the earliest time of the next bulk request by endpoint */
+    private final ConcurrentMap<String, AtomicLong> nextRequestTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for new BulkOperationService.
+     *
+     * @param bundleContext {@link BundleContext} used to look up the devices
+     *        matching a filter
+     */
+    public BulkOperationService(final BundleContext bundleContext) {
+        context = bundleContext;
+        deviceLookup = null;
+    }
+
+    /**
+     * Constructor for new BulkOperationService.
+     *
+     * @param deviceLookup the registry used to look up the devices matching a
+     *        filter, e.g. the {@link OsgiBasedClientRegistry}
+     */
+    public BulkOperationService(final DeviceLookupService deviceLookup) {
+        if (deviceLookup == null) {
+            throw new NullPointerException("device lookup must not be null");
+        }
+        context = null;
+        this.deviceLookup = deviceLookup;
+    }
+
+    /**
+     * Starts a bulk operation for all devices matching the given filter,
+     * whether they are registered as services or not.
+     *
+     * @param filter an LDAP filter on the service properties, e.g.
+     *        <code>(LWM2M_REGISTRATIONID=*)</code>; <code>null</code> matches
+     *        all devices
+     * @param request the request sent to every device
+     * @param options {@link BulkOperationOptions}
+     * @param listener receives the results
+     * @return the running operation
+     * @throws InvalidSyntaxException if the filter is invalid
+     */
+    public <T extends LwM2mResponse> BulkOperation<T> start(final String filter, final DownlinkRequest<T> request,
+            final BulkOperationOptions options, final BulkOperationListener<T> listener)
+            throws InvalidSyntaxException {
+        if (deviceLookup != null) {
+            return start(findDevices(deviceLookup, filter), request, options, listener, null);
+        }
+        final ServiceReference<DeviceLookupService> lookupRef = context.getServiceReference(
+            DeviceLookupService.class);
+        final DeviceLookupService lookup = lookupRef == null ? null : context.getService(lookupRef);
+        if (lookup != null) {
+            final List<LWM2MClientDevice> devices;
+            try {
+                devices = findDevices(lookup, filter);
+            } finally {
+                context.ungetService(lookupRef);
+            }
+            return start(devices, request, options, listener, null);
+        }
+        final Collection<ServiceReference<LWM2MClientDevice>> refs = context.getServiceReferences(
+            LWM2MClientDevice.class, filter);
+        final List<ServiceReference<LWM2MClientDevice>> used = new ArrayList<>(refs.size());
+        final List<LWM2MClientDevice> devices = new ArrayList<>(refs.size());
+        for (final ServiceReference<LWM2MClientDevice> ref : refs) {
+            final LWM2MClientDevice device = context.getService(ref);
+            if (device != null) {
+                used.add(ref);
+                devices.add(device);
+            }
+        }
+        return start(devices, request, options, listener, new Runnable() {
+            @Override
+            public void run() {
+                for (final ServiceReference<LWM2MClientDevice> ref : used) {
+                    try {
+                        context.ungetService(ref);
+                    } catch (final IllegalStateException e) {
+                        // bundle context no longer valid
+                    }
+                }
+            }
+        });
+    }
+
+    private static List<LWM2MClientDevice> findDevices(final DeviceLookupService lookup, final String filter)
+            throws InvalidSyntaxException {
+        return lookup.findDevices(filter == null ? ALL_DEVICES : filter);
+    }
+
+    /**
+     * Starts a bulk operation for the given devices.
+     *
+     * @param devices
+     * @param request the request sent to every device
+     * @param options {@link BulkOperationOptions}
+     * @param listener receives the results
+     * @return the running operation
+     */
+    public <T extends LwM2mResponse> BulkOperation<T> start(final Collection<? extends LWM2MClientDevice> devices,
+            final DownlinkRequest<T> request, final BulkOperationOptions options,
+            final BulkOperationListener<T> listener) {
+        return start(new ArrayList<LWM2MClientDevice>(devices), request, options, listener, null);
+    }
+
+    private <T extends LwM2mResponse> BulkOperation<T> start(final List<LWM2MClientDevice> devices,
+            final DownlinkRequest<T> request, final BulkOperationOptions options,
+            final BulkOperationListener<T> listener, final Runnable release) {
+        if (request == null || options == null || listener == null) {
+            throw new NullPointerException("request, options and listener must not be null");
+        }
+        final BulkOperation<T> operation = new BulkOperation<>(this, devices, request, options, listener,
+            new Runnable() {
+                @Override
+                public void run() {
+                    pruneRequestTimes(devices);
+                    if (release != null) {
+                        release.run();
+                    }
+                }
+            });
+        LOG.debug("Starting bulk operation {} for {} devices", request, devices.size());
+        dispatchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                operation.dispatch();
+            }
+        });
+        return operation;
+    }
+
+    /**
+     * Reserves the next request slot of the given device.
+     *
+     * @param device
+     * @param minInterval the minimum interval between requests in
+     *        milliseconds
+     * @return the delay in milliseconds until the request may be sent
+     */
+    long reserveRequestSlot(final LWM2MClientDevice device, final long minInterval) {
+        if (minInterval <= 0) {
+            return 0;
+        }
+        final String endpoint = device.getClient().getEndpoint();
+        AtomicLong next = nextRequestTimes.get(endpoint);
+        if (next == null) {
+            final AtomicLong created = new AtomicLong();
+            next = nextRequestTimes.putIfAbsent(endpoint, created);
+            if (next == null) {
+                next = created;
+            }
+        }
+        while (true) {
+            final long now = System.currentTimeMillis();
+            final long current = next.get();
+            final long slot = Math.max(now, current);
+            if (next.compareAndSet(current, slot + minInterval)) {
+                return slot - now;
+            }
+        }
+    }
+
+    void schedule(final Runnable task, final long delay) {
+        delayExecutor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void pruneRequestTimes(final List<LWM2MClientDevice> devices) {
+        if (nextRequestTimes.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for (final LWM2MClientDevice device : devices) {
+            final String endpoint = device.getClient().getEndpoint();
+            final AtomicLong next = nextRequestTimes.get(endpoint);
+            if (next != null && next.get() <= now) {
+                nextRequestTimes.remove(endpoint, next);
+            }
+        }
+    }
+
+    /**
+     * Stops the service. Running operations do not send any further request.
+     */
+    public void stop() throws InterruptedException {
+        dispatchExecutor.shutdownNow();
+        delayExecutor.shutdownNow();
+        dispatchExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        delayExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
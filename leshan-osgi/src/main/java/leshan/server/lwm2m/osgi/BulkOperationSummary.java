@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+/**
+ * The final result of a bulk operation.
+ */
+public class BulkOperationSummary {
+
+    private final int devices;
+    private final int succeeded;
+    private final int failed;
+    private final int errors;
+    private final int cancelled;
+    private final long durationMillis;
+
+    BulkOperationSummary(final int devices, final int succeeded, final int failed, final int errors,
+            final int cancelled, final long durationMillis) {
+        this.devices = devices;
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.errors = errors;
+        this.cancelled = cancelled;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * @return the number of devices the operation was started for
+     */
+    public int getDevices() {
+        return devices;
+    }
+
+    /**
+     * @return the number of devices which answered with a success response
+     */
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * @return the number of devices which answered with an error response
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the number of requests which failed or timed out without a
+     *         response
+     */
+    public int getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the number of devices no request was sent to, because the
+     *         operation has been cancelled
+     */
+    public int getCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the duration of the operation in milliseconds
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "BulkOperationSummary [devices=%s, succeeded=%s, failed=%s, errors=%s, cancelled=%s, durationMillis=%s]",
+            devices, succeeded, failed, errors, cancelled, durationMillis);
+    }
+}
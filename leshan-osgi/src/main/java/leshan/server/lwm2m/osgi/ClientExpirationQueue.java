@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.eclipse.leshan.server.client.Client;
+
+/**
+ * Deadline ordered set of registration expirations. Each registration id has
+ * at most one scheduled expiration; re-scheduling replaces the previous one.
+ * Polling only touches the registrations which are actually due, so the cost
+ * of a cleanup run does not depend on the number of registered clients.
+ */
+class ClientExpirationQueue {
+
+    private final NavigableSet<Expiration> deadlines = new ConcurrentSkipListSet<>();
+    private final ConcurrentMap<String, Expiration> scheduled = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the point in time (in milliseconds) at which the given client
+     * expires if it does not send a registration update.
+     *
+     * @param client
+     * @return the expiration time in milliseconds
+     */
+    static long expirationTimeOf(final Client client) {
+        return client.getLastUpdate().getTime() + client.getLifeTimeInSec() * 1000;
+    }
+
+    /**
+     * Schedules (or re-schedules) the expiration of the given client.
+     *
+     * @param client
+     */
+    void schedule(final Client client) {
+        schedule(client.getRegistrationId(), expirationTimeOf(client));
+    }
+
+    /**
+     * Schedules (or re-schedules) the expiration of the given registration.
+     *
+     * @param registrationId
+     * @param expirationTime the expiration time in milliseconds
+     */
+    void schedule(final String registrationId, final long expirationTime) {
+        final Expiration expiration = new Expiration(registrationId, expirationTime);
+        final Expiration previous = scheduled.put(registrationId, expiration);
+        if (previous != null) {
+            deadlines.remove(previous);
+        }
+        deadlines.add(expiration);
+    }
+
+    /**
+     * Removes the scheduled expiration of the given registration, if any.
+     *
+     * @param registrationId
+     */
+    void cancel(final String registrationId) {
+        final Expiration previous = scheduled.remove(registrationId);
+        if (previous != null) {
+            deadlines.remove(previous);
+        }
+    }
+
+    /**
+     * Removes and returns the ids of the registrations which expired at the
+     * given time, earliest first.
+     *
+     * @param now the current time in milliseconds
+     * @param max the maximum number of registration ids to return
+     * @return the expired registration ids
+     */
+    List<String> pollExpired(final long now, final int max) {
+        final List<String> expired = new ArrayList<>();
+        while (expired.size() < max) {
+            final Expiration first = deadlines.pollFirst();
+            if (first == null) {
+                break;
+            }
+            if (first.time > now) {
+                // not due yet, put it back unless it has been replaced
+                // concurrently
+                if (scheduled.get(first.registrationId) == first) {
+                    deadlines.add(first);
+                }
+                break;
+            }
+            if (scheduled.remove(first.registrationId, first)) {
+                expired.add(first.registrationId);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return the number of scheduled expirations
+     */
+    int size() {
+        return scheduled.size();
+    }
+
+    private static final class Expiration implements Comparable<Expiration> {
+
+        private final String registrationId;
+        private final long time;
+
+        Expiration(final String registrationId, final long time) {
+            this.registrationId = registrationId;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(final Expiration o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            return registrationId.compareTo(o.registrationId);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Expiration)) {
+                return false;
+            }
+            final Expiration other = (Expiration) obj;
+            return time == other.time && registrationId.equals(other.registrationId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * registrationId.hashCode() + (int) (time ^ (time >>> 32));
+        }
+    }
+}
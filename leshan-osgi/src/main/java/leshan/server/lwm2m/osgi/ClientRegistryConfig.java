@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import org.eclipse.leshan.server.client.Client;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Configuration of the {@link OsgiBasedClientRegistry}. A new instance holds
+ * the default values.
+ */
+public class ClientRegistryConfig {
+
+    /**
+     * Which devices are registered as {@link LWM2MClientDevice} services in
+     * the OSGi service registry.
+     */
+    public enum PublicationMode {
+        /** every device */
+        ALL,
+        /**
+         * only devices matching the publication filter or pinned through the
+         * {@link DeviceLookupService}, which the registry registers to look up
+         * and query all devices
+         */
+        SELECTIVE
+    }
+
+    /** Default period of the expiration check in milliseconds. */
+    public static final long DEFAULT_CLEAN_PERIOD = 5000L;
+
+    /** Default maximum number of expired registrations removed per check. */
+    public static final int DEFAULT_MAX_EXPIRATIONS_PER_CLEAN = 1000;
+
+    /**
+     * Default window in milliseconds within which service property updates of
+     * a device only changing its expiration or round trip time are coalesced.
+     */
+    public static final long DEFAULT_PROPERTY_UPDATE_WINDOW = 1000L;
+
+    private long cleanPeriod = DEFAULT_CLEAN_PERIOD;
+    private int maxExpirationsPerClean = DEFAULT_MAX_EXPIRATIONS_PER_CLEAN;
+    private long propertyUpdateWindow = DEFAULT_PROPERTY_UPDATE_WINDOW;
+    private DeviceConfig deviceConfig = new DeviceConfig();
+    private JournalConfig journalConfig;
+    private PublicationMode publicationMode = PublicationMode.ALL;
+    private String publicationFilter;
+    private boolean compactStorage;
+
+    /**
+     * @return the period of the expiration check in milliseconds
+     */
+    public long getCleanPeriod() {
+        return cleanPeriod;
+    }
+
+    /**
+     * Sets the period (tick) of the expiration check.
+     *
+     * @param cleanPeriod the period in milliseconds, must be positive
+     */
+    public void setCleanPeriod(final long cleanPeriod) {
+        if (cleanPeriod <= 0) {
+            throw new IllegalArgumentException("clean period must be positive");
+        }
+        this.cleanPeriod = cleanPeriod;
+    }
+
+    /**
+     * @return the maximum number of expired registrations removed per check
+     */
+    public int getMaxExpirationsPerClean() {
+        return maxExpirationsPerClean;
+    }
+
+    /**
+     * Sets the maximum number of expired registrations removed per check.
+     * Remaining expired registrations are removed by the following checks, so
+     * that a mass expiry (e.g. after a network outage) does not stall the
+     * registry.
+     *
+     * @param maxExpirationsPerClean must be positive
+     */
+    public void setMaxExpirationsPerClean(final int maxExpirationsPerClean) {
+        if (maxExpirationsPerClean <= 0) {
+            throw new IllegalArgumentException("max expirations per clean must be positive");
+        }
+        this.maxExpirationsPerClean = maxExpirationsPerClean;
+    }
+
+    /**
+     * @return the window in milliseconds within which service property updates
+     *         are coalesced
+     */
+    public long getPropertyUpdateWindow() {
+        return propertyUpdateWindow;
+    }
+
+    /**
+     * Sets the window within which registration updates of a device are
+     * coalesced into a single service property update, as long as they only
+     * change the expiration time (by less than the window) or the round trip
+     * time statistics. The latest properties are published at the end of the
+     * window; other changes are published immediately. Updates not changing
+     * any property never modify the service registration.
+     *
+     * @param propertyUpdateWindow in milliseconds, 0 disables coalescing
+     */
+    public void setPropertyUpdateWindow(final long propertyUpdateWindow) {
+        if (propertyUpdateWindow < 0) {
+            throw new IllegalArgumentException("property update window must not be negative");
+        }
+        this.propertyUpdateWindow = propertyUpdateWindow;
+    }
+
+    /**
+     * @return the configuration of the registered devices
+     */
+    public DeviceConfig getDeviceConfig() {
+        return deviceConfig;
+    }
+
+    /**
+     * Sets the configuration of the registered devices.
+     *
+     * @param deviceConfig must not be <code>null</code>
+     */
+    public void setDeviceConfig(final DeviceConfig deviceConfig) {
+        if (deviceConfig == null) {
+            throw new NullPointerException("device config must not be null");
+        }
+        this.deviceConfig = deviceConfig;
+    }
+
+    /**
+     * @return the configuration of the registration journal or
+     *         <code>null</code> if the registrations are not persisted
+     */
+    public JournalConfig getJournalConfig() {
+        return journalConfig;
+    }
+
+    /**
+     * Sets the configuration of the journal persisting the registrations. The
+     * registry restores the registrations which did not expire from the
+     * journal when it is created, so that the devices do not need to register
+     * again after a restart.
+     *
+     * @param journalConfig <code>null</code> (the default) keeps the
+     *            registrations in memory only
+     */
+    public void setJournalConfig(final JournalConfig journalConfig) {
+        this.journalConfig = journalConfig;
+    }
+
+    /**
+     * @return which devices are registered as services
+     */
+    public PublicationMode getPublicationMode() {
+        return publicationMode;
+    }
+
+    /**
+     * Sets which devices are registered as services. Every service costs
+     * framework memory and a service event to all service listeners, so with
+     * large fleets of which only a few devices are used by other bundles the
+     * SELECTIVE mode keeps the others in the registry only.
+     *
+     * @param publicationMode must not be <code>null</code>
+     */
+    public void setPublicationMode(final PublicationMode publicationMode) {
+        if (publicationMode == null) {
+            throw new NullPointerException("publication mode must not be null");
+        }
+        this.publicationMode = publicationMode;
+    }
+
+    /**
+     * @return the filter selecting the devices registered as services in the
+     *         SELECTIVE publication mode, or <code>null</code>
+     */
+    public String getPublicationFilter() {
+        return publicationFilter;
+    }
+
+    /**
+     * Sets the filter selecting the devices registered as services in the
+     * SELECTIVE publication mode. The filter is matched against the service
+     * properties of a device (see {@link Property}) whenever it registers or
+     * updates its registration, e.g.
+     * <code>(|(LWM2M_OBJECTS=/5)(LWM2M_OBJECTS=/5/0))</code> selects the
+     * devices supporting firmware updates. An <code>LWM2M_OBJECTS</code> value
+     * only equals a whole link url, such as <code>/5/0</code> for the link
+     * <code>&lt;/5/0&gt;</code>; substring filters do not match links.
+     *
+     * @param publicationFilter an LDAP filter, <code>null</code> (the default)
+     *            to register only pinned devices
+     * @throws IllegalArgumentException if the filter is invalid
+     */
+    public void setPublicationFilter(final String publicationFilter) {
+        if (publicationFilter != null) {
+            try {
+                FrameworkUtil.createFilter(publicationFilter);
+            } catch (final InvalidSyntaxException e) {
+                throw new IllegalArgumentException("invalid publication filter " + publicationFilter, e);
+            }
+        }
+        this.publicationFilter = publicationFilter;
+    }
+
+    /**
+     * @return whether the devices not registered as services are kept in the
+     *         compact store
+     */
+    public boolean isCompactStorage() {
+        return compactStorage;
+    }
+
+    /**
+     * Sets whether the registrations of the devices not registered as services
+     * are kept in columns of primitive arrays instead of {@link Client}
+     * objects in the SELECTIVE publication mode. A device is created from its
+     * columns when it is looked up, pinned or selected by the publication
+     * filter, and kept until it is removed. Ignored in the ALL publication
+     * mode.
+     *
+     * @param compactStorage <code>false</code> by default
+     */
+    public void setCompactStorage(final boolean compactStorage) {
+        this.compactStorage = compactStorage;
+    }
+}
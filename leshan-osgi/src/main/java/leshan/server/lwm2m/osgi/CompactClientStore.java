@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.server.client.Client;
+
+/**
+ * Registrations stored in columns of primitive arrays, one row per
+ * registration, instead of {@link Client} objects with their {@link Date}s,
+ * {@link InetAddress}es and object links. The values shared by many
+ * registrations (LWM2M version, registration endpoint) are interned and the
+ * object links kept as canonical {@link ObjectLinkSet}s; the endpoint and
+ * registration id columns reference the strings the registry keys its maps
+ * with. A {@link Client} is created from its row on each {@link #get(int)}.
+ * <p>
+ * Rows of removed registrations are reused. All methods are synchronized;
+ * they only copy a few values, so the store is not a point of contention
+ * compared to the registration itself.
+ */
+final class CompactClientStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final BindingMode[] BINDING_MODES = BindingMode.values();
+
+    private String[] endpoints;
+    private String[] registrationIds;
+    /** the IPv4 addresses, other addresses are kept in {@link #otherAddresses} */
+    private int[] addresses;
+    private int[] ports;
+    private long[] lifetimes;
+    private long[] registrationDates;
+    private long[] lastUpdates;
+    /** the ordinals of the binding modes, -1 for none */
+    private byte[] bindingModes;
+    private String[] versions;
+    private String[] smsNumbers;
+    private InetSocketAddress[] registrationEndpoints;
+    private ObjectLinkSet[] objectLinks;
+    /** the addresses which are not IPv4 addresses by row */
+    private final Map<Integer, InetAddress> otherAddresses = new HashMap<>();
+    /** the canonical instances of the interned values by themselves */
+    private final Map<Object, Object> canonical = new HashMap<>();
+    /** the rows of removed registrations */
+    private int[] free = new int[0];
+    private int freeCount;
+    /** the number of rows ever used */
+    private int used;
+
+    CompactClientStore() {
+        endpoints = new String[INITIAL_CAPACITY];
+        registrationIds = new String[INITIAL_CAPACITY];
+        addresses = new int[INITIAL_CAPACITY];
+        ports = new int[INITIAL_CAPACITY];
+        lifetimes = new long[INITIAL_CAPACITY];
+        registrationDates = new long[INITIAL_CAPACITY];
+        lastUpdates = new long[INITIAL_CAPACITY];
+        bindingModes = new byte[INITIAL_CAPACITY];
+        versions = new String[INITIAL_CAPACITY];
+        smsNumbers = new String[INITIAL_CAPACITY];
+        registrationEndpoints = new InetSocketAddress[INITIAL_CAPACITY];
+        objectLinks = new ObjectLinkSet[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds a registration.
+     *
+     * @param client
+     * @return the row of the registration
+     */
+    synchronized int add(final Client client) {
+        final int row;
+        if (freeCount > 0) {
+            row = free[--freeCount];
+        } else {
+            if (used == endpoints.length) {
+                grow(used * 2);
+            }
+            row = used++;
+        }
+        set(row, client);
+        return row;
+    }
+
+    /**
+     * Replaces the registration in a row, e.g. after an update.
+     *
+     * @param row
+     * @param client
+     */
+    synchronized void set(final int row, final Client client) {
+        endpoints[row] = client.getEndpoint();
+        registrationIds[row] = client.getRegistrationId();
+        final InetAddress address = client.getAddress();
+        if (address instanceof Inet4Address) {
+            addresses[row] = toInt(address.getAddress());
+            otherAddresses.remove(row);
+        } else {
+            otherAddresses.put(row, address);
+        }
+        ports[row] = client.getPort();
+        lifetimes[row] = client.getLifeTimeInSec();
+        registrationDates[row] = client.getRegistrationDate().getTime();
+        lastUpdates[row] = client.getLastUpdate().getTime();
+        bindingModes[row] = (byte) (client.getBindingMode() == null ? -1 : client.getBindingMode().ordinal());
+        versions[row] = intern(client.getLwM2mVersion());
+        smsNumbers[row] = client.getSmsNumber();
+        registrationEndpoints[row] = intern(client.getRegistrationEndpointAddress());
+        objectLinks[row] = ObjectLinkSet.of(client.getObjectLinks());
+    }
+
+    /**
+     * @param row
+     * @return a new client holding the registration in the row
+     */
+    synchronized Client get(final int row) {
+        checkRow(row);
+        final InetAddress address = otherAddresses.containsKey(row) ? otherAddresses.get(row)
+                : toInet4Address(addresses[row]);
+        final byte bindingMode = bindingModes[row];
+        final ObjectLinkSet links = objectLinks[row];
+        return new Client(registrationIds[row], endpoints[row], address, ports[row], versions[row],
+            lifetimes[row], smsNumbers[row], bindingMode < 0 ? null : BINDING_MODES[bindingMode],
+            links == null ? null : links.getLinks(), registrationEndpoints[row], new Date(registrationDates[row]),
+            new Date(lastUpdates[row]));
+    }
+
+    /**
+     * @param row
+     * @return the expiration time of the registration in the row in
+     *         milliseconds, as {@link ClientExpirationQueue#expirationTimeOf(Client)}
+     */
+    synchronized long expirationTimeOf(final int row) {
+        checkRow(row);
+        return lastUpdates[row] + lifetimes[row] * 1000;
+    }
+
+    /**
+     * @param row
+     * @param objectId
+     * @return <code>true</code> if the registration in the row links the
+     *         object
+     */
+    synchronized boolean supportsObject(final int row, final int objectId) {
+        checkRow(row);
+        return objectLinks[row] != null && objectLinks[row].containsObject(objectId);
+    }
+
+    /**
+     * Removes the registration in a row, the row is reused by later
+     * registrations.
+     *
+     * @param row
+     */
+    synchronized void remove(final int row) {
+        checkRow(row);
+        endpoints[row] = null;
+        registrationIds[row] = null;
+        smsNumbers[row] = null;
+        versions[row] = null;
+        registrationEndpoints[row] = null;
+        objectLinks[row] = null;
+        otherAddresses.remove(row);
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, Math.max(INITIAL_CAPACITY, freeCount * 2));
+        }
+        free[freeCount++] = row;
+    }
+
+    /**
+     * @return the number of stored registrations
+     */
+    synchronized int size() {
+        return used - freeCount;
+    }
+
+    private void checkRow(final int row) {
+        if (row < 0 || row >= used || endpoints[row] == null) {
+            throw new IllegalArgumentException("no registration stored in row " + row);
+        }
+    }
+
+    private void grow(final int capacity) {
+        endpoints = Arrays.copyOf(endpoints, capacity);
+        registrationIds = Arrays.copyOf(registrationIds, capacity);
+        addresses = Arrays.copyOf(addresses, capacity);
+        ports = Arrays.copyOf(ports, capacity);
+        lifetimes = Arrays.copyOf(lifetimes, capacity);
+        registrationDates = Arrays.copyOf(registrationDates, capacity);
+        lastUpdates = Arrays.copyOf(lastUpdates, capacity);
+        bindingModes = Arrays.copyOf(bindingModes, capacity);
+        versions = Arrays.copyOf(versions, capacity);
+        smsNumbers = Arrays.copyOf(smsNumbers, capacity);
+        registrationEndpoints = Arrays.copyOf(registrationEndpoints, capacity);
+        objectLinks = Arrays.copyOf(objectLinks, capacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T intern(final T value) {
+        if (value == null) {
+            return null;
+        }
+        final Object interned = canonical.get(value);
+        if (interned != null) {
+            return (T) interned;
+        }
+        canonical.put(value, value);
+        return value;
+    }
+
+    private static int toInt(final byte[] address) {
+        return (address[0] & 0xff) << 24 | (address[1] & 0xff) << 16 | (address[2] & 0xff) << 8
+                | address[3] & 0xff;
+    }
+
+    private static InetAddress toInet4Address(final int address) {
+        try {
+            return InetAddress.getByAddress(new byte[] { (byte) (address >>> 24), (byte) (address >>> 16),
+                (byte) (address >>> 8), (byte) address });
+        } catch (final UnknownHostException e) {
+            // only thrown for an illegal length
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+
+/**
+ * Configuration of the {@link LWM2MClientDevice}s. A new instance holds the
+ * default values.
+ * <p>
+ * The response timeout of the synchronous requests is derived from the round
+ * trip time measured per device, bounded by the minimum and maximum timeout.
+ * A fixed timeout can be configured per request type (e.g. for
+ * {@link org.eclipse.leshan.core.request.ExecuteRequest}s starting a firmware
+ * update) and per {@link BindingMode} (e.g. for queue mode devices), the
+ * request type taking precedence.
+ */
+public class DeviceConfig {
+
+    /** How requests waiting for a free slot of a device are ordered. */
+    public enum SchedulingPolicy {
+        /** in the order of submission */
+        FIFO,
+        /** write, execute, create and delete requests ahead of the others */
+        PRIORITY
+    }
+
+    /** Default response timeout in milliseconds until the first RTT sample. */
+    public static final long DEFAULT_INITIAL_TIMEOUT = 2000L;
+
+    /**
+     * The CoAP ACK_TIMEOUT in milliseconds (RFC 7252): the time before a
+     * confirmable request is retransmitted for the first time.
+     */
+    public static final long COAP_ACK_TIMEOUT = 2000L;
+
+    /** Default lower bound of the adaptive response timeout in milliseconds. */
+    public static final long DEFAULT_MIN_TIMEOUT = COAP_ACK_TIMEOUT;
+
+    /** Default upper bound of the adaptive response timeout in milliseconds. */
+    public static final long DEFAULT_MAX_TIMEOUT = 60000L;
+
+    /** Default maximum number of requests queued for a sleeping device. */
+    public static final int DEFAULT_QUEUE_SIZE = 32;
+
+    /** Default time in milliseconds a request may wait in the queue. */
+    public static final long DEFAULT_QUEUED_REQUEST_TTL = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Default time in milliseconds a device in queue mode is considered awake
+     * after registering or updating its registration (CoAP MAX_TRANSMIT_WAIT).
+     */
+    public static final long DEFAULT_AWAKE_TIME = 93000L;
+
+    /** Default maximum number of flushed queued requests in flight. */
+    public static final int DEFAULT_QUEUE_FLUSH_IN_FLIGHT = 1;
+
+    /** Default maximum number of requests in flight per device (CoAP NSTART). */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+    /** Default maximum time in milliseconds a synchronous request waits for a free slot. */
+    public static final long DEFAULT_MAX_SLOT_WAIT = 60000L;
+
+    /** Default max-age of cached read responses in milliseconds, 0 disables the cache. */
+    public static final long DEFAULT_READ_CACHE_MAX_AGE = 0L;
+
+    private long initialTimeout = DEFAULT_INITIAL_TIMEOUT;
+    private long minTimeout = DEFAULT_MIN_TIMEOUT;
+    private long maxTimeout = DEFAULT_MAX_TIMEOUT;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private long queuedRequestTtl = DEFAULT_QUEUED_REQUEST_TTL;
+    private long awakeTime = DEFAULT_AWAKE_TIME;
+    private int queueFlushInFlight = DEFAULT_QUEUE_FLUSH_IN_FLIGHT;
+    private long readCacheMaxAge = DEFAULT_READ_CACHE_MAX_AGE;
+    private boolean coalesceRequests = true;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private long maxSlotWait = DEFAULT_MAX_SLOT_WAIT;
+    private SchedulingPolicy schedulingPolicy = SchedulingPolicy.FIFO;
+    private final ConcurrentMap<BindingMode, Long> bindingModeTimeouts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, Long> requestTimeouts = new ConcurrentHashMap<>();
+
+    /**
+     * @return the response timeout in milliseconds used until the round trip
+     *         time of a device has been measured
+     */
+    public long getInitialTimeout() {
+        return initialTimeout;
+    }
+
+    /**
+     * Sets the response timeout used until the round trip time of a device
+     * has been measured.
+     *
+     * @param initialTimeout in milliseconds, must be positive
+     */
+    public void setInitialTimeout(final long initialTimeout) {
+        if (initialTimeout <= 0) {
+            throw new IllegalArgumentException("initial timeout must be positive");
+        }
+        this.initialTimeout = initialTimeout;
+    }
+
+    /**
+     * @return the lower bound of the adaptive response timeout in
+     *         milliseconds
+     */
+    public long getMinTimeout() {
+        return minTimeout;
+    }
+
+    /**
+     * Sets the lower bound of the adaptive response timeout. The default, the
+     * {@link #COAP_ACK_TIMEOUT}, lets the CoAP layer retransmit a request
+     * before it times out; a lower bound lets the timeout of devices with
+     * short round trips, e.g. in a LAN, follow their round trip time.
+     *
+     * @param minTimeout in milliseconds, must be positive
+     */
+    public void setMinTimeout(final long minTimeout) {
+        if (minTimeout <= 0) {
+            throw new IllegalArgumentException("min timeout must be positive");
+        }
+        this.minTimeout = minTimeout;
+    }
+
+    /**
+     * @return the upper bound of the adaptive response timeout in
+     *         milliseconds
+     */
+    public long getMaxTimeout() {
+        return maxTimeout;
+    }
+
+    /**
+     * Sets the upper bound of the adaptive response timeout. The timeout is
+     * doubled after each request which timed out, up to this bound.
+     *
+     * @param maxTimeout in milliseconds, must be positive
+     */
+    public void setMaxTimeout(final long maxTimeout) {
+        if (maxTimeout <= 0) {
+            throw new IllegalArgumentException("max timeout must be positive");
+        }
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * @param bindingMode
+     * @return the fixed response timeout in milliseconds of devices with the
+     *         given binding mode or <code>null</code> if adaptive
+     */
+    public Long getBindingModeTimeout(final BindingMode bindingMode) {
+        return bindingMode == null ? null : bindingModeTimeouts.get(bindingMode);
+    }
+
+    /**
+     * Sets a fixed response timeout for devices with the given binding mode.
+     *
+     * @param bindingMode
+     * @param timeout in milliseconds or <code>null</code> to use the adaptive
+     *        timeout
+     */
+    public void setBindingModeTimeout(final BindingMode bindingMode, final Long timeout) {
+        setTimeout(bindingModeTimeouts, bindingMode, timeout);
+    }
+
+    /**
+     * @param requestType
+     * @return the fixed response timeout in milliseconds of requests of the
+     *         given type or <code>null</code> if adaptive
+     */
+    public Long getRequestTimeout(final Class<?> requestType) {
+        return requestTimeouts.get(requestType);
+    }
+
+    /**
+     * Sets a fixed response timeout for requests of the given type.
+     *
+     * @param requestType e.g. <code>ExecuteRequest.class</code>
+     * @param timeout in milliseconds or <code>null</code> to use the adaptive
+     *        timeout
+     */
+    public void setRequestTimeout(final Class<? extends DownlinkRequest<?>> requestType, final Long timeout) {
+        setTimeout(requestTimeouts, requestType, timeout);
+    }
+
+    private static <K> void setTimeout(final ConcurrentMap<K, Long> timeouts, final K key, final Long timeout) {
+        if (key == null) {
+            throw new NullPointerException("key must not be null");
+        }
+        if (timeout == null) {
+            timeouts.remove(key);
+        } else if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        } else {
+            timeouts.put(key, timeout);
+        }
+    }
+
+    /**
+     * @return the maximum number of requests queued for a sleeping device
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Sets the maximum number of requests queued for a sleeping device in
+     * queue mode. Further requests fail immediately.
+     *
+     * @param queueSize must be positive
+     */
+    public void setQueueSize(final int queueSize) {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("queue size must be positive");
+        }
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @return the time in milliseconds a request may wait in the queue
+     */
+    public long getQueuedRequestTtl() {
+        return queuedRequestTtl;
+    }
+
+    /**
+     * Sets the time a request may wait in the queue of a sleeping device.
+     * Requests which are not sent in time fail with a
+     * {@link org.eclipse.leshan.core.request.exception.TimeoutException}.
+     *
+     * @param queuedRequestTtl in milliseconds, must be positive
+     */
+    public void setQueuedRequestTtl(final long queuedRequestTtl) {
+        if (queuedRequestTtl <= 0) {
+            throw new IllegalArgumentException("queued request TTL must be positive");
+        }
+        this.queuedRequestTtl = queuedRequestTtl;
+    }
+
+    /**
+     * @return the time in milliseconds a device in queue mode is considered
+     *         awake after registering or updating its registration
+     */
+    public long getAwakeTime() {
+        return awakeTime;
+    }
+
+    /**
+     * Sets the time a device in queue mode is considered awake after
+     * registering or updating its registration. Requests sent later are
+     * queued until the next registration update.
+     *
+     * @param awakeTime in milliseconds, must not be negative
+     */
+    public void setAwakeTime(final long awakeTime) {
+        if (awakeTime < 0) {
+            throw new IllegalArgumentException("awake time must not be negative");
+        }
+        this.awakeTime = awakeTime;
+    }
+
+    /**
+     * @return the maximum number of flushed queued requests in flight
+     */
+    public int getQueueFlushInFlight() {
+        return queueFlushInFlight;
+    }
+
+    /**
+     * Sets the maximum number of queued requests in flight while the queue is
+     * flushed. The default of 1 sends the requests strictly in order.
+     *
+     * @param queueFlushInFlight must be positive
+     */
+    public void setQueueFlushInFlight(final int queueFlushInFlight) {
+        if (queueFlushInFlight <= 0) {
+            throw new IllegalArgumentException("queue flush in flight must be positive");
+        }
+        this.queueFlushInFlight = queueFlushInFlight;
+    }
+
+    /**
+     * @return the max-age in milliseconds of the read responses reused by
+     *         {@link LWM2MClientDevice#read(org.eclipse.leshan.core.request.ReadRequest)}
+     */
+    public long getReadCacheMaxAge() {
+        return readCacheMaxAge;
+    }
+
+    /**
+     * Sets the max-age of the read responses reused by reads which do not
+     * specify a max-age. Concurrent reads of the same path share a single
+     * request as long as the max-age is positive.
+     *
+     * @param readCacheMaxAge in milliseconds, 0 disables the cache, must not be
+     *        negative
+     */
+    public void setReadCacheMaxAge(final long readCacheMaxAge) {
+        if (readCacheMaxAge < 0) {
+            throw new IllegalArgumentException("read cache max-age must not be negative");
+        }
+        this.readCacheMaxAge = readCacheMaxAge;
+    }
+
+    /**
+     * @return <code>true</code> if concurrent identical read, discover and
+     *         observe requests share one exchange
+     */
+    public boolean isCoalesceRequests() {
+        return coalesceRequests;
+    }
+
+    /**
+     * Sets whether a read, discover or observe request of a path for which an
+     * identical request is pending shares the response of the pending request
+     * instead of starting another exchange with the device. Enabled by
+     * default.
+     *
+     * @param coalesceRequests
+     */
+    public void setCoalesceRequests(final boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    /**
+     * @return the maximum number of requests in flight per device
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the maximum number of requests in flight per device. Further
+     * requests wait until the exchange of a request in flight ended.
+     *
+     * @param maxInFlight must be positive
+     */
+    public void setMaxInFlight(final int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("max in flight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @return the maximum time in milliseconds a synchronous request waits for
+     *         a free slot
+     */
+    public long getMaxSlotWait() {
+        return maxSlotWait;
+    }
+
+    /**
+     * Sets the maximum time a synchronous request waits for a free slot before
+     * its response timeout starts. A request still waiting then is dropped
+     * and the synchronous method returns <code>null</code>, so a synchronous
+     * call returns within this time plus the response timeout.
+     *
+     * @param maxSlotWait in milliseconds, must be positive
+     */
+    public void setMaxSlotWait(final long maxSlotWait) {
+        if (maxSlotWait <= 0) {
+            throw new IllegalArgumentException("max slot wait must be positive");
+        }
+        this.maxSlotWait = maxSlotWait;
+    }
+
+    /**
+     * @return how requests waiting for a free slot of a device are ordered
+     */
+    public SchedulingPolicy getSchedulingPolicy() {
+        return schedulingPolicy;
+    }
+
+    /**
+     * Sets how requests waiting for a free slot of a device are ordered. With
+     * {@link SchedulingPolicy#PRIORITY} a steady stream of modifying requests
+     * delays the other requests.
+     *
+     * @param schedulingPolicy must not be <code>null</code>
+     */
+    public void setSchedulingPolicy(final SchedulingPolicy schedulingPolicy) {
+        if (schedulingPolicy == null) {
+            throw new NullPointerException("scheduling policy must not be null");
+        }
+        this.schedulingPolicy = schedulingPolicy;
+    }
+
+    /**
+     * @return a new estimator for the round trip time of a device
+     */
+    RttEstimator newRttEstimator() {
+        return new RttEstimator(initialTimeout, Math.min(minTimeout, maxTimeout), maxTimeout);
+    }
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.List;
+
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Looks up and queries all registered devices, including those not registered
+ * as {@link LWM2MClientDevice} services. Registered as OSGi service by the
+ * {@link OsgiBasedClientRegistry} in the
+ * {@link ClientRegistryConfig.PublicationMode#SELECTIVE} publication mode.
+ * <p>
+ * A consumer needing a device as a service, e.g. to track it, pins its
+ * endpoint; the device is registered as a service while it is pinned, also
+ * after it registers again.
+ */
+public interface DeviceLookupService {
+
+    /**
+     * @param endpoint
+     * @return the device registered under the endpoint or <code>null</code>
+     */
+    LWM2MClientDevice getDevice(String endpoint);
+
+    /**
+     * @param registrationId
+     * @return the device registered under the registration id or
+     *         <code>null</code>
+     */
+    LWM2MClientDevice findDeviceByRegistrationId(String registrationId);
+
+    /**
+     * Queries the devices by their service properties (see {@link Property}),
+     * whether they are registered as services or not.
+     *
+     * @param filter an LDAP filter
+     * @return the matching devices, in no particular order
+     * @throws InvalidSyntaxException if the filter is invalid
+     */
+    List<LWM2MClientDevice> findDevices(String filter) throws InvalidSyntaxException;
+
+    /**
+     * Finds the devices which registered a link to the object, one of its
+     * instances or resources. Unlike a {@link #findDevices(String)} query on
+     * {@link Property#LWM2M_OBJECTS}, which matches whole link urls, this
+     * only tests the precomputed object ids of the shared object link sets.
+     *
+     * @param objectId
+     * @return the devices supporting the object, in no particular order
+     */
+    List<LWM2MClientDevice> findDevicesSupportingObject(int objectId);
+
+    /**
+     * @return the number of registered devices
+     */
+    int getDeviceCount();
+
+    /**
+     * Registers the device of the endpoint as service until it is unpinned as
+     * often as it has been pinned.
+     *
+     * @param endpoint
+     * @return <code>true</code> if a device is registered under the endpoint
+     */
+    boolean pin(String endpoint);
+
+    /**
+     * Releases a pin of the endpoint. The service of the device is
+     * unregistered when the last pin is released, unless the device matches
+     * the publication filter.
+     *
+     * @param endpoint
+     */
+    void unpin(String endpoint);
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.exception.RequestFailedException;
+import org.eclipse.leshan.core.request.exception.TimeoutException;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+
+/**
+ * Outbound queue of a device in queue mode, holding the requests sent while
+ * the device sleeps until its next registration update. Flushing sends the
+ * requests in order, keeping at most the configured number in flight.
+ */
+class DeviceRequestQueue {
+
+    /**
+     * Sends a request which has been taken from the queue.
+     */
+    interface Sender {
+        <T extends LwM2mResponse> void send(DownlinkRequest<T> request, long timeout, ResponseFuture<T> future);
+    }
+
+    private static final class Entry<T extends LwM2mResponse> {
+        private final DownlinkRequest<T> request;
+        private final long timeout;
+        private final long expirationTime;
+        private final ResponseFuture<T> future;
+
+        private Entry(final DownlinkRequest<T> request, final long timeout, final long expirationTime,
+                final ResponseFuture<T> future) {
+            this.request = request;
+            this.timeout = timeout;
+            this.expirationTime = expirationTime;
+            this.future = future;
+        }
+
+        private void send(final Sender sender) {
+            sender.send(request, timeout, future);
+        }
+    }
+
+    private final ArrayDeque<Entry<?>> entries = new ArrayDeque<>();
+    private final int maxSize;
+    private final int maxInFlight;
+    private int inFlight;
+
+    /**
+     * @param maxSize the maximum number of queued requests
+     * @param maxInFlight the maximum number of flushed requests in flight
+     */
+    DeviceRequestQueue(final int maxSize, final int maxInFlight) {
+        this.maxSize = maxSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Queues a request. If the queue is full, the future is completed with a
+     * {@link RequestFailedException}.
+     *
+     * @param request
+     * @param timeout the response timeout in milliseconds, starting when the
+     *        request is sent
+     * @param ttl the time in milliseconds the request may wait in the queue
+     * @param future completed with the response
+     * @return <code>false</code> if the queue is full
+     */
+    <T extends LwM2mResponse> boolean offer(final DownlinkRequest<T> request, final long timeout,
+            final long ttl, final ResponseFuture<T> future) {
+        final List<Entry<?>> expired = new ArrayList<>();
+        final boolean queued;
+        synchronized (this) {
+            if (entries.size() >= maxSize) {
+                purge(System.currentTimeMillis(), expired);
+            }
+            queued = entries.size() < maxSize;
+            if (queued) {
+                entries.add(new Entry<>(request, timeout, System.currentTimeMillis() + ttl, future));
+            }
+        }
+        expire(expired);
+        if (!queued) {
+            future.completeExceptionally(new RequestFailedException("request queue is full"));
+        }
+        return queued;
+    }
+
+    /**
+     * Removes the requests which are done (e.g. cancelled) or expired and
+     * fails the expired ones with a {@link TimeoutException}.
+     */
+    void purge() {
+        final List<Entry<?>> expired = new ArrayList<>();
+        synchronized (this) {
+            purge(System.currentTimeMillis(), expired);
+        }
+        expire(expired);
+    }
+
+    private void purge(final long now, final List<Entry<?>> expired) {
+        final Iterator<Entry<?>> it = entries.iterator();
+        while (it.hasNext()) {
+            final Entry<?> entry = it.next();
+            if (entry.future.isDone()) {
+                it.remove();
+            } else if (entry.expirationTime <= now) {
+                it.remove();
+                expired.add(entry);
+            }
+        }
+    }
+
+    private static void expire(final List<Entry<?>> expired) {
+        for (final Entry<?> entry : expired) {
+            entry.future.completeExceptionally(new TimeoutException());
+        }
+    }
+
+    /**
+     * Sends the queued requests in order, as long as less than the maximum
+     * number of flushed requests is in flight.
+     *
+     * @param sender
+     */
+    void flush(final Sender sender) {
+        final List<Entry<?>> expired = new ArrayList<>();
+        final List<Entry<?>> toSend = new ArrayList<>();
+        synchronized (this) {
+            purge(System.currentTimeMillis(), expired);
+            while (inFlight < maxInFlight && !entries.isEmpty()) {
+                toSend.add(entries.poll());
+                inFlight++;
+            }
+        }
+        expire(expired);
+        for (final Entry<?> entry : toSend) {
+            entry.future.onCompletion(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (DeviceRequestQueue.this) {
+                        inFlight--;
+                    }
+                    flush(sender);
+                }
+            });
+            entry.send(sender);
+        }
+    }
+
+    /**
+     * Fails all queued requests, e.g. because the device deregistered.
+     *
+     * @param reason
+     */
+    void clear(final String reason) {
+        final List<Entry<?>> removed;
+        synchronized (this) {
+            removed = new ArrayList<Entry<?>>(entries);
+            entries.clear();
+        }
+        for (final Entry<?> entry : removed) {
+            entry.future.completeExceptionally(new RequestFailedException(reason));
+        }
+    }
+
+    /**
+     * Moves the queued requests of the given queue to the head of this queue,
+     * keeping their order.
+     *
+     * @param other
+     */
+    void takeOver(final DeviceRequestQueue other) {
+        final List<Entry<?>> moved;
+        synchronized (other) {
+            moved = new ArrayList<Entry<?>>(other.entries);
+            other.entries.clear();
+        }
+        synchronized (this) {
+            for (int i = moved.size() - 1; i >= 0; i--) {
+                entries.addFirst(moved.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return the number of queued requests
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+}
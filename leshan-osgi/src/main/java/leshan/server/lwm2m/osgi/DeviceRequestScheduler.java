@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.leshan.core.request.CreateRequest;
+import org.eclipse.leshan.core.request.DeleteRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ExecuteRequest;
+import org.eclipse.leshan.core.request.WriteAttributesRequest;
+import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+
+/**
+ * Limits the number of requests in flight to a device. Further requests wait
+ * in a FIFO queue or, with {@link DeviceConfig.SchedulingPolicy#PRIORITY}, in
+ * two queues where the modifying requests (write, execute, create, delete)
+ * go ahead of the others. Requests completed while waiting (e.g. timed out or
+ * cancelled by the caller) are skipped.
+ * <p>
+ * A request occupies its slot until the exchange with the device ended, not
+ * until its future is completed: a request timing out or cancelled while in
+ * flight is still being retransmitted by the CoAP stack.
+ */
+class DeviceRequestScheduler {
+
+    /**
+     * Sends the dispatched requests.
+     */
+    interface Sender {
+        /**
+         * @param request
+         * @param timeout the response timeout in milliseconds
+         * @param future completed with the response
+         * @param exchangeDone to be run once the exchange with the device
+         *        ended, i.e. the response or error callback of the request
+         *        sender has been invoked or sending failed
+         */
+        <T extends LwM2mResponse> void send(DownlinkRequest<T> request, long timeout, ResponseFuture<T> future,
+                Runnable exchangeDone);
+    }
+
+    private static final class Task<T extends LwM2mResponse> {
+        private final DownlinkRequest<T> request;
+        private final long timeout;
+        private final ResponseFuture<T> future;
+        private final long queuedAt = System.nanoTime();
+
+        private Task(final DownlinkRequest<T> request, final long timeout, final ResponseFuture<T> future) {
+            this.request = request;
+            this.timeout = timeout;
+            this.future = future;
+        }
+    }
+
+    private final Sender sender;
+    private final int maxInFlight;
+    private final boolean prioritize;
+    private final ArrayDeque<Task<?>> modifying = new ArrayDeque<>();
+    private final ArrayDeque<Task<?>> others = new ArrayDeque<>();
+    private int inFlight;
+    /** a thread is dispatching */
+    private boolean dispatching;
+    /** the dispatching thread has to look at the queues again */
+    private boolean dispatchAgain;
+    private long dispatched;
+    private long queueWaitNanos;
+    private long completed;
+    private long serviceNanos;
+
+    /**
+     * @param sender sends the dispatched requests
+     * @param maxInFlight the maximum number of requests in flight
+     * @param policy how waiting requests are ordered
+     */
+    DeviceRequestScheduler(final Sender sender, final int maxInFlight,
+            final DeviceConfig.SchedulingPolicy policy) {
+        this.sender = sender;
+        this.maxInFlight = maxInFlight;
+        this.prioritize = policy == DeviceConfig.SchedulingPolicy.PRIORITY;
+    }
+
+    /**
+     * Sends the request as soon as less than the maximum number of requests
+     * is in flight.
+     *
+     * @param request
+     * @param timeout the response timeout in milliseconds, starting when the
+     *        request is sent
+     * @param future completed with the response
+     */
+    <T extends LwM2mResponse> void submit(final DownlinkRequest<T> request, final long timeout,
+            final ResponseFuture<T> future) {
+        final Task<T> task = new Task<>(request, timeout, future);
+        synchronized (this) {
+            if (prioritize && isModifying(request)) {
+                modifying.add(task);
+            } else {
+                others.add(task);
+            }
+        }
+        dispatch();
+    }
+
+    private static boolean isModifying(final DownlinkRequest<?> request) {
+        return request instanceof WriteRequest || request instanceof ExecuteRequest
+                || request instanceof WriteAttributesRequest || request instanceof CreateRequest
+                || request instanceof DeleteRequest;
+    }
+
+    private void dispatch() {
+        synchronized (this) {
+            if (dispatching) {
+                // requests completing synchronously while sending do not recurse
+                dispatchAgain = true;
+                return;
+            }
+            dispatching = true;
+        }
+        while (true) {
+            final List<Task<?>> toSend = new ArrayList<>();
+            synchronized (this) {
+                final long now = System.nanoTime();
+                Task<?> task;
+                while (inFlight < maxInFlight && (task = poll()) != null) {
+                    inFlight++;
+                    dispatched++;
+                    queueWaitNanos += now - task.queuedAt;
+                    toSend.add(task);
+                }
+                if (toSend.isEmpty() && !dispatchAgain) {
+                    dispatching = false;
+                    return;
+                }
+                dispatchAgain = false;
+            }
+            for (final Task<?> task : toSend) {
+                send(task);
+            }
+        }
+    }
+
+    /**
+     * @return the next waiting request which is not completed yet
+     */
+    private Task<?> poll() {
+        Task<?> task;
+        do {
+            task = modifying.isEmpty() ? others.poll() : modifying.poll();
+        } while (task != null && task.future.isDone());
+        return task;
+    }
+
+    private <T extends LwM2mResponse> void send(final Task<T> task) {
+        final long sentAt = System.nanoTime();
+        final AtomicBoolean released = new AtomicBoolean();
+        sender.send(task.request, task.timeout, task.future, new Runnable() {
+            @Override
+            public void run() {
+                if (!released.compareAndSet(false, true)) {
+                    return;
+                }
+                synchronized (DeviceRequestScheduler.this) {
+                    inFlight--;
+                    completed++;
+                    serviceNanos += System.nanoTime() - sentAt;
+                }
+                dispatch();
+            }
+        });
+    }
+
+    /**
+     * @return the number of requests waiting to be sent
+     */
+    synchronized int size() {
+        return modifying.size() + others.size();
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of requests sent
+     */
+    synchronized long getDispatchedCount() {
+        return dispatched;
+    }
+
+    /**
+     * @return the mean time in milliseconds the sent requests waited
+     */
+    synchronized double getMeanQueueWait() {
+        return dispatched == 0 ? 0 : (double) queueWaitNanos / dispatched / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the mean time in milliseconds from sending a request until the
+     *         end of its exchange
+     */
+    synchronized double getMeanServiceTime() {
+        return completed == 0 ? 0 : (double) serviceNanos / completed / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
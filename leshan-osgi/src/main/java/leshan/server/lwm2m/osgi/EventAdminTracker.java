@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the {@link EventAdmin} service so that events can be posted without
+ * looking up the service for every event. The service is resolved when it is
+ * registered and swapped atomically when it goes away. Events posted while no
+ * EventAdmin is available are counted and dropped.
+ */
+public class EventAdminTracker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventAdminTracker.class);
+
+    private final AtomicReference<EventAdmin> eventAdmin = new AtomicReference<>();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final ServiceTracker<EventAdmin, EventAdmin> tracker;
+
+    /**
+     * Creates a new EventAdminTracker and starts tracking.
+     *
+     * @param bundleContext
+     */
+    public EventAdminTracker(final BundleContext bundleContext) {
+        tracker = new ServiceTracker<>(bundleContext, EventAdmin.class,
+            new ServiceTrackerCustomizer<EventAdmin, EventAdmin>() {
+                @Override
+                public EventAdmin addingService(final ServiceReference<EventAdmin> reference) {
+                    final EventAdmin service = bundleContext.getService(reference);
+                    if (service != null) {
+                        eventAdmin.set(service);
+                    }
+                    return service;
+                }
+
+                @Override
+                public void modifiedService(final ServiceReference<EventAdmin> reference, final EventAdmin service) {
+                    // the service object stays the same
+                }
+
+                @Override
+                public void removedService(final ServiceReference<EventAdmin> reference, final EventAdmin service) {
+                    // fall back to another EventAdmin, if any
+                    eventAdmin.compareAndSet(service, tracker.getService());
+                    bundleContext.ungetService(reference);
+                }
+            });
+        tracker.open();
+    }
+
+    /**
+     * Posts the event asynchronously if an EventAdmin is available.
+     *
+     * @param event
+     * @return <code>false</code> if the event has been dropped because no
+     *         EventAdmin is available
+     */
+    public boolean postEvent(final Event event) {
+        final EventAdmin service = eventAdmin.get();
+        if (service == null) {
+            droppedEvents.incrementAndGet();
+            LOG.trace("No EventAdmin available, dropping event {}", event.getTopic());
+            return false;
+        }
+        service.postEvent(event);
+        return true;
+    }
+
+    /**
+     * Sends the event synchronously if an EventAdmin is available, i.e. waits
+     * until all event handlers have been notified.
+     *
+     * @param event
+     * @return <code>false</code> if the event has been dropped because no
+     *         EventAdmin is available
+     */
+    public boolean sendEvent(final Event event) {
+        final EventAdmin service = eventAdmin.get();
+        if (service == null) {
+            droppedEvents.incrementAndGet();
+            LOG.trace("No EventAdmin available, dropping event {}", event.getTopic());
+            return false;
+        }
+        service.sendEvent(event);
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if an EventAdmin is available
+     */
+    public boolean isAvailable() {
+        return eventAdmin.get() != null;
+    }
+
+    /**
+     * @return the number of events dropped because no EventAdmin was
+     *         available
+     */
+    public long getDroppedEventCount() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Stops tracking the EventAdmin. Further events are dropped.
+     */
+    public void close() {
+        tracker.close();
+        eventAdmin.set(null);
+    }
+}
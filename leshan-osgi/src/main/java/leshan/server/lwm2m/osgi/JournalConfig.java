@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.io.File;
+
+/**
+ * Configuration of the journal persisting the registrations of the
+ * {@link OsgiBasedClientRegistry} (see
+ * {@link ClientRegistryConfig#setJournalConfig(JournalConfig)}). A new
+ * instance holds the default values.
+ */
+public class JournalConfig {
+
+    /**
+     * How the services of the restored devices are registered in the OSGi
+     * service registry. The registry can be queried for the restored
+     * registrations in all modes as soon as it has been created.
+     */
+    public enum RestoreMode {
+        /** all services are registered before the registry is created */
+        EAGER,
+        /**
+         * the services are registered in chunks by a thread pool after the
+         * registry has been created
+         */
+        CHUNKED,
+        /**
+         * the service of a device is registered when the device is looked up
+         * through the registry, e.g. by
+         * {@link OsgiBasedClientRegistry#getDevice(String)} or by pinning it.
+         * The {@link org.eclipse.leshan.server.client.ClientRegistry} lookups
+         * of the LWM2M server and registration updates do not register it.
+         */
+        ON_DEMAND
+    }
+
+    /**
+     * Default time in milliseconds the journal collects records before
+     * writing and forcing them to disk together.
+     */
+    public static final long DEFAULT_COMMIT_WINDOW = 10L;
+
+    /** Default number of journal records after which a snapshot is taken. */
+    public static final int DEFAULT_SNAPSHOT_THRESHOLD = 100000;
+
+    /** Default number of services registered per chunk in the CHUNKED mode. */
+    public static final int DEFAULT_RESTORE_CHUNK_SIZE = 1000;
+
+    private final File directory;
+    private long commitWindow = DEFAULT_COMMIT_WINDOW;
+    private int snapshotThreshold = DEFAULT_SNAPSHOT_THRESHOLD;
+    private RestoreMode restoreMode = RestoreMode.EAGER;
+    private int restoreChunkSize = DEFAULT_RESTORE_CHUNK_SIZE;
+
+    /**
+     * @param directory the directory holding the journal and snapshot files,
+     *            created if it does not exist
+     */
+    public JournalConfig(final File directory) {
+        if (directory == null) {
+            throw new NullPointerException("journal directory must not be null");
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * @return the directory holding the journal and snapshot files
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the commit window in milliseconds
+     */
+    public long getCommitWindow() {
+        return commitWindow;
+    }
+
+    /**
+     * Sets the time the journal collects records before writing them with a
+     * single write and forcing them to disk (group commit). Operations are
+     * acknowledged before they are on disk, so a crash loses at most the
+     * operations of the last window; the affected devices simply register
+     * again.
+     *
+     * @param commitWindow in milliseconds, 0 writes the records collected
+     *            while the previous commit was forced
+     */
+    public void setCommitWindow(final long commitWindow) {
+        if (commitWindow < 0) {
+            throw new IllegalArgumentException("commit window must not be negative");
+        }
+        this.commitWindow = commitWindow;
+    }
+
+    /**
+     * @return the number of journal records after which a snapshot is taken
+     */
+    public int getSnapshotThreshold() {
+        return snapshotThreshold;
+    }
+
+    /**
+     * Sets the number of journal records after which the registrations are
+     * written to a new snapshot and the older journal files are deleted,
+     * bounding the disk usage and the recovery time.
+     *
+     * @param snapshotThreshold must be positive
+     */
+    public void setSnapshotThreshold(final int snapshotThreshold) {
+        if (snapshotThreshold <= 0) {
+            throw new IllegalArgumentException("snapshot threshold must be positive");
+        }
+        this.snapshotThreshold = snapshotThreshold;
+    }
+
+    /**
+     * @return how the services of the restored devices are registered
+     */
+    public RestoreMode getRestoreMode() {
+        return restoreMode;
+    }
+
+    /**
+     * Sets how the services of the restored devices are registered. Every
+     * service registration fires a service event to all service listeners,
+     * so registering 100k services delays the start of the registry
+     * considerably in the EAGER mode (the default).
+     *
+     * @param restoreMode must not be <code>null</code>
+     */
+    public void setRestoreMode(final RestoreMode restoreMode) {
+        if (restoreMode == null) {
+            throw new NullPointerException("restore mode must not be null");
+        }
+        this.restoreMode = restoreMode;
+    }
+
+    /**
+     * @return the number of services registered per chunk in the CHUNKED mode
+     */
+    public int getRestoreChunkSize() {
+        return restoreChunkSize;
+    }
+
+    /**
+     * Sets the number of services registered per chunk in the CHUNKED mode.
+     *
+     * @param restoreChunkSize must be positive
+     */
+    public void setRestoreChunkSize(final int restoreChunkSize) {
+        if (restoreChunkSize <= 0) {
+            throw new IllegalArgumentException("restore chunk size must be positive");
+        }
+        this.restoreChunkSize = restoreChunkSize;
+    }
+}
@@ -41,7 +41,8 @@ public interface LWM2MClient {
      * Send a ReadRequest to the client.
      *
      * @param readRequest
-     * @return the ValueResponse or <code>null</code> if timeout occurred.
+     * @return the ValueResponse or <code>null</code> if timeout occurred or the
+     *         client sleeps in queue mode.
      * @throws InterruptedException
      * @throws UnsupportedEncodingException
      */
@@ -51,7 +52,8 @@ public interface LWM2MClient {
      * Send a ExecuteRequest to the client.
      *
      * @param executeReqest
-     * @return the ClientResponse or <code>null</code> if timeout occurred.
+     * @return the ClientResponse or <code>null</code> if timeout occurred or the
+     *         client sleeps in queue mode.
      * @throws InterruptedException
      * @throws UnsupportedEncodingException
      */
@@ -61,7 +63,8 @@ public interface LWM2MClient {
      * Send a WriteRequest to the client.
      *
      * @param writeRequest
-     * @return the ClientResponse or <code>null</code> if timeout occurred.
+     * @return the ClientResponse or <code>null</code> if timeout occurred or the
+     *         client sleeps in queue mode.
      * @throws InterruptedException
      * @throws UnsupportedEncodingException
      */
@@ -71,7 +74,8 @@ public interface LWM2MClient {
      * Send a WriteAttributesRequest to the client.
      *
      * @param writeRequest
-     * @return the ClientResponse or <code>null</code> if timeout occurred.
+     * @return the ClientResponse or <code>null</code> if timeout occurred or the
+     *         client sleeps in queue mode.
      * @throws InterruptedException
      * @throws UnsupportedEncodingException
      */
@@ -81,7 +85,8 @@ public interface LWM2MClient {
      * Send a ObserveRequest to the client.
      *
      * @param observeRequest
-     * @return the ValueResponse or <code>null</code> if timeout occurred.
+     * @return the ValueResponse or <code>null</code> if timeout occurred or the
+     *         client sleeps in queue mode.
      * @throws InterruptedException
      * @throws UnsupportedEncodingException
      */
@@ -91,12 +96,85 @@ public interface LWM2MClient {
      * Send a DiscoverRequest to the client.
      *
      * @param discoverRequest
-     * @return the DiscoverResponse or <code>null</code> if timeout occurred.
+     * @return the DiscoverResponse or <code>null</code> if timeout occurred or the
+     *         client sleeps in queue mode.
      * @throws InterruptedException
      * @throws UnsupportedEncodingException
      */
     DiscoverResponse discover(DiscoverRequest discoverRequest);
 
+    /**
+     * Send a ReadRequest to the client without blocking the caller.
+     *
+     * @param readRequest
+     * @param timeout the response timeout in milliseconds
+     * @return the pending response, failing with a
+     *         {@link org.eclipse.leshan.core.request.exception.TimeoutException}
+     *         if the timeout expires. Requests to a client sleeping in
+     *         queue mode are sent on its next registration update.
+     */
+    ResponseFuture<ReadResponse> readAsync(ReadRequest readRequest, long timeout);
+
+    /**
+     * Send a ExecuteRequest to the client without blocking the caller.
+     *
+     * @param executeRequest
+     * @param timeout the response timeout in milliseconds
+     * @return the pending response, failing with a
+     *         {@link org.eclipse.leshan.core.request.exception.TimeoutException}
+     *         if the timeout expires. Requests to a client sleeping in
+     *         queue mode are sent on its next registration update.
+     */
+    ResponseFuture<ExecuteResponse> executeAsync(ExecuteRequest executeRequest, long timeout);
+
+    /**
+     * Send a WriteRequest to the client without blocking the caller.
+     *
+     * @param writeRequest
+     * @param timeout the response timeout in milliseconds
+     * @return the pending response, failing with a
+     *         {@link org.eclipse.leshan.core.request.exception.TimeoutException}
+     *         if the timeout expires. Requests to a client sleeping in
+     *         queue mode are sent on its next registration update.
+     */
+    ResponseFuture<WriteResponse> writeAsync(WriteRequest writeRequest, long timeout);
+
+    /**
+     * Send a WriteAttributesRequest to the client without blocking the caller.
+     *
+     * @param writeRequest
+     * @param timeout the response timeout in milliseconds
+     * @return the pending response, failing with a
+     *         {@link org.eclipse.leshan.core.request.exception.TimeoutException}
+     *         if the timeout expires. Requests to a client sleeping in
+     *         queue mode are sent on its next registration update.
+     */
+    ResponseFuture<WriteAttributesResponse> writeAttributeAsync(WriteAttributesRequest writeRequest, long timeout);
+
+    /**
+     * Send a ObserveRequest to the client without blocking the caller.
+     *
+     * @param observeRequest
+     * @param timeout the response timeout in milliseconds
+     * @return the pending response, failing with a
+     *         {@link org.eclipse.leshan.core.request.exception.TimeoutException}
+     *         if the timeout expires. Requests to a client sleeping in
+     *         queue mode are sent on its next registration update.
+     */
+    ResponseFuture<ObserveResponse> observeAsync(ObserveRequest observeRequest, long timeout);
+
+    /**
+     * Send a DiscoverRequest to the client without blocking the caller.
+     *
+     * @param discoverRequest
+     * @param timeout the response timeout in milliseconds
+     * @return the pending response, failing with a
+     *         {@link org.eclipse.leshan.core.request.exception.TimeoutException}
+     *         if the timeout expires. Requests to a client sleeping in
+     *         queue mode are sent on its next registration update.
+     */
+    ResponseFuture<DiscoverResponse> discoverAsync(DiscoverRequest discoverRequest, long timeout);
+
     /**
      * return a {@link LinkObject}[] Array from the client.
      *
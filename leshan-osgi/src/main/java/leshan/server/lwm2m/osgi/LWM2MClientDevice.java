@@ -16,21 +16,35 @@
 package leshan.server.lwm2m.osgi;
 
 import java.io.UnsupportedEncodingException;
-import java.util.Date;
 import java.util.Dictionary;
-import java.util.Hashtable;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.BindingMode;
 import org.eclipse.leshan.core.request.DiscoverRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
 import org.eclipse.leshan.core.request.ExecuteRequest;
 import org.eclipse.leshan.core.request.ObserveRequest;
 import org.eclipse.leshan.core.request.ReadRequest;
 import org.eclipse.leshan.core.request.WriteAttributesRequest;
 import org.eclipse.leshan.core.request.WriteRequest;
+import org.eclipse.leshan.core.request.exception.RequestFailedException;
+import org.eclipse.leshan.core.request.exception.TimeoutException;
 import org.eclipse.leshan.core.response.DiscoverResponse;
+import org.eclipse.leshan.core.response.ErrorCallback;
 import org.eclipse.leshan.core.response.ExecuteResponse;
+import org.eclipse.leshan.core.response.LwM2mResponse;
 import org.eclipse.leshan.core.response.ObserveResponse;
 import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.core.response.ResponseCallback;
 import org.eclipse.leshan.core.response.WriteAttributesResponse;
 import org.eclipse.leshan.core.response.WriteResponse;
 import org.eclipse.leshan.server.client.Client;
@@ -42,61 +56,581 @@ import org.slf4j.LoggerFactory;
 /**
  * The LWM2MClientDevice implements the {@link LWM2MClient} and contains the
  * properties for registration at OSGi Service Registry.
+ * <p>
+ * Devices in queue mode are considered sleeping once the configured awake
+ * time after their last registration (update) elapsed. Asynchronous requests
+ * to a sleeping device are queued and sent when it updates its registration,
+ * synchronous requests return <code>null</code> immediately.
+ * <p>
+ * Reads with a positive max-age (see {@link DeviceConfig#getReadCacheMaxAge()})
+ * reuse a successful response of the same path not older than the max-age,
+ * also while the device sleeps, and share a pending read of the same path.
+ * Successful writes and executes as well as notifications invalidate the
+ * cached responses of the path.
+ * <p>
+ * Concurrent identical read, discover and observe requests share a single
+ * exchange with the device unless disabled by
+ * {@link DeviceConfig#setCoalesceRequests(boolean)}.
+ * <p>
+ * At most {@link DeviceConfig#getMaxInFlight()} requests are in flight to the
+ * device, further requests wait according to the
+ * {@link DeviceConfig#getSchedulingPolicy()}. The response timeout of a
+ * request starts when it is sent, also for the synchronous methods. A request
+ * occupies its slot until its exchange ended, also if it timed out or has
+ * been cancelled before.
  */
 public class LWM2MClientDevice implements LWM2MClient {
 
     private static final Logger LOG = LoggerFactory.getLogger(LWM2MClientDevice.class);
-    private static final long DEFAULT_RESPONSE_TIMEOUT = 2000L;
+    private static final Set<BindingMode> QUEUE_MODES = EnumSet.of(BindingMode.UQ, BindingMode.SQ,
+        BindingMode.UQS);
+    private static final String[] DEVICE_CATEGORY = new String[] { Property.CATEGORY_LWM2M_CLIENT };
+    /** the maximum number of service properties */
+    private static final int PROPERTY_COUNT = 8;
 
     private Client client;
+    /** the canonical object links of the client */
+    private ObjectLinkSet objectLinkSet;
 
     private final LwM2mRequestSender requestSender;
+    private final ScheduledExecutorService timeoutExecutor;
+    private final DeviceConfig config;
+    private final RttEstimator rttEstimator;
+    private final DeviceRequestQueue requestQueue;
+    private final ReadCache readCache = new ReadCache();
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final DeviceRequestQueue.Sender queueSender = new DeviceRequestQueue.Sender() {
+        @Override
+        public <T extends LwM2mResponse> void send(final DownlinkRequest<T> request, final long timeout,
+                final ResponseFuture<T> future) {
+            LWM2MClientDevice.this.send(request, timeout, future);
+        }
+    };
+    private final DeviceRequestScheduler scheduler;
+    private volatile long awakeUntil;
 
     /**
-     * Constructor for new LWM2MClientDevice.
+     * Constructor for new LWM2MClientDevice. Timeouts of asynchronous requests
+     * are not enforced by devices created with this constructor, only the
+     * synchronous methods stop waiting after the timeout.
      *
      * @param client {@link Client} the client.
      * @param requestSender {@link LwM2mRequestSender}
      */
     public LWM2MClientDevice(final Client client, final LwM2mRequestSender requestSender) {
+        this(client, requestSender, null);
+    }
+
+    /**
+     * Constructor for new LWM2MClientDevice.
+     *
+     * @param client {@link Client} the client.
+     * @param requestSender {@link LwM2mRequestSender}
+     * @param timeoutExecutor executor used to expire asynchronous requests
+     *        whose response timeout elapsed, may be <code>null</code>
+     */
+    public LWM2MClientDevice(final Client client, final LwM2mRequestSender requestSender,
+            final ScheduledExecutorService timeoutExecutor) {
+        this(client, requestSender, timeoutExecutor, new DeviceConfig());
+    }
+
+    /**
+     * Constructor for new LWM2MClientDevice.
+     *
+     * @param client {@link Client} the client.
+     * @param requestSender {@link LwM2mRequestSender}
+     * @param timeoutExecutor executor used to expire asynchronous requests
+     *        whose response timeout elapsed, may be <code>null</code>
+     * @param config {@link DeviceConfig} defining the response timeouts of the
+     *        synchronous requests
+     */
+    public LWM2MClientDevice(final Client client, final LwM2mRequestSender requestSender,
+            final ScheduledExecutorService timeoutExecutor, final DeviceConfig config) {
         this.client = client;
+        this.objectLinkSet = ObjectLinkSet.of(client.getObjectLinks());
         this.requestSender = requestSender;
+        this.timeoutExecutor = timeoutExecutor;
+        this.config = config;
+        this.rttEstimator = config.newRttEstimator();
+        this.requestQueue = new DeviceRequestQueue(config.getQueueSize(), config.getQueueFlushInFlight());
+        this.scheduler = new DeviceRequestScheduler(new DeviceRequestScheduler.Sender() {
+            @Override
+            public <T extends LwM2mResponse> void send(final DownlinkRequest<T> request, final long timeout,
+                    final ResponseFuture<T> future, final Runnable exchangeDone) {
+                transmit(request, timeout, future, exchangeDone);
+            }
+        }, config.getMaxInFlight(), config.getSchedulingPolicy());
+        this.awakeUntil = System.currentTimeMillis() + config.getAwakeTime();
     }
 
     @Override
     public ReadResponse read(final ReadRequest readRequest) throws InterruptedException, UnsupportedEncodingException {
-        LOG.trace("send ReadRequest to {}", client.getEndpoint());
-        return requestSender.send(client, readRequest, DEFAULT_RESPONSE_TIMEOUT);
+        return read(readRequest, config.getReadCacheMaxAge());
+    }
+
+    /**
+     * Sends a ReadRequest to the client unless a response of the same path
+     * not older than the given max-age is cached. A pending read of the same
+     * path is shared.
+     *
+     * @param readRequest
+     * @param maxAge in milliseconds, 0 to always send the request
+     * @return the ValueResponse or <code>null</code> if timeout occurred or the
+     *         client sleeps in queue mode and no response is cached.
+     * @throws InterruptedException
+     */
+    public ReadResponse read(final ReadRequest readRequest, final long maxAge) throws InterruptedException {
+        if (maxAge > 0) {
+            final ReadResponse cached = readCache.getCached(readRequest.getPath(), maxAge);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        if (isSleeping(readRequest)) {
+            return null;
+        }
+        final long timeout = getResponseTimeout(readRequest);
+        final ResponseFuture<ReadResponse> future = readAsync(readRequest, timeout, maxAge);
+        try {
+            return waitFor(future, timeout);
+        } catch (final InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        }
     }
 
     @Override
     public WriteResponse write(final WriteRequest writeRequest) {
-        LOG.trace("send WriteRequest to {}", client.getEndpoint());
-        return requestSender.send(client, writeRequest, DEFAULT_RESPONSE_TIMEOUT);
+        if (isSleeping(writeRequest)) {
+            return null;
+        }
+        final long timeout = getResponseTimeout(writeRequest);
+        return waitForUninterruptibly(writeAsync(writeRequest, timeout), timeout);
     }
 
     @Override
     public WriteAttributesResponse writeAttribute(final WriteAttributesRequest writeRequest) {
-        LOG.trace("send WriteAttributesRequest to {}", client.getEndpoint());
-        return requestSender.send(client, writeRequest, DEFAULT_RESPONSE_TIMEOUT);
+        if (isSleeping(writeRequest)) {
+            return null;
+        }
+        final long timeout = getResponseTimeout(writeRequest);
+        return waitForUninterruptibly(writeAttributeAsync(writeRequest, timeout), timeout);
     }
 
     @Override
     public ExecuteResponse execute(final ExecuteRequest executeReqest) {
-        LOG.trace("send ExecuteRequest to {}", client.getEndpoint());
-        return requestSender.send(client, executeReqest, DEFAULT_RESPONSE_TIMEOUT);
+        if (isSleeping(executeReqest)) {
+            return null;
+        }
+        final long timeout = getResponseTimeout(executeReqest);
+        return waitForUninterruptibly(executeAsync(executeReqest, timeout), timeout);
     }
 
     @Override
     public ObserveResponse observe(final ObserveRequest observeRequest) {
-        LOG.trace("send ObserveRequest to {}", client.getEndpoint());
-        return requestSender.send(client, observeRequest, DEFAULT_RESPONSE_TIMEOUT);
+        if (isSleeping(observeRequest)) {
+            return null;
+        }
+        final long timeout = getResponseTimeout(observeRequest);
+        return waitForUninterruptibly(observeAsync(observeRequest, timeout), timeout);
     }
 
     @Override
     public DiscoverResponse discover(final DiscoverRequest discoverRequest) {
+        if (isSleeping(discoverRequest)) {
+            return null;
+        }
+        final long timeout = getResponseTimeout(discoverRequest);
+        return waitForUninterruptibly(discoverAsync(discoverRequest, timeout), timeout);
+    }
+
+    @Override
+    public ResponseFuture<ReadResponse> readAsync(final ReadRequest readRequest, final long timeout) {
+        return readAsync(readRequest, timeout, config.getReadCacheMaxAge());
+    }
+
+    /**
+     * Sends a ReadRequest to the client without blocking the caller, unless a
+     * response of the same path not older than the given max-age is cached
+     * or a read of the same path is pending.
+     *
+     * @param readRequest
+     * @param timeout the response timeout in milliseconds
+     * @param maxAge in milliseconds, 0 to always send the request
+     * @return the pending response
+     */
+    public ResponseFuture<ReadResponse> readAsync(final ReadRequest readRequest, final long timeout,
+            final long maxAge) {
+        if (maxAge <= 0) {
+            LOG.trace("send ReadRequest to {}", client.getEndpoint());
+            return sendIdempotent(readRequest, timeout);
+        }
+        return readCache.read(readRequest.getPath(), maxAge, new ReadCache.Loader() {
+            @Override
+            public ResponseFuture<ReadResponse> load() {
+                LOG.trace("send ReadRequest to {}", client.getEndpoint());
+                return sendAsync(readRequest, timeout);
+            }
+        });
+    }
+
+    @Override
+    public ResponseFuture<WriteResponse> writeAsync(final WriteRequest writeRequest, final long timeout) {
+        LOG.trace("send WriteRequest to {}", client.getEndpoint());
+        return invalidateOnSuccess(sendAsync(writeRequest, timeout), writeRequest.getPath());
+    }
+
+    @Override
+    public ResponseFuture<WriteAttributesResponse> writeAttributeAsync(final WriteAttributesRequest writeRequest,
+            final long timeout) {
+        LOG.trace("send WriteAttributesRequest to {}", client.getEndpoint());
+        return sendAsync(writeRequest, timeout);
+    }
+
+    @Override
+    public ResponseFuture<ExecuteResponse> executeAsync(final ExecuteRequest executeRequest, final long timeout) {
+        LOG.trace("send ExecuteRequest to {}", client.getEndpoint());
+        return invalidateOnSuccess(sendAsync(executeRequest, timeout), executeRequest.getPath());
+    }
+
+    @Override
+    public ResponseFuture<ObserveResponse> observeAsync(final ObserveRequest observeRequest, final long timeout) {
         LOG.trace("send ObserveRequest to {}", client.getEndpoint());
-        return requestSender.send(client, discoverRequest, DEFAULT_RESPONSE_TIMEOUT);
+        return sendIdempotent(observeRequest, timeout);
+    }
+
+    @Override
+    public ResponseFuture<DiscoverResponse> discoverAsync(final DiscoverRequest discoverRequest, final long timeout) {
+        LOG.trace("send DiscoverRequest to {}", client.getEndpoint());
+        return sendIdempotent(discoverRequest, timeout);
+    }
+
+    /**
+     * Sends an idempotent request or, if an identical request is pending,
+     * shares its response.
+     */
+    private <T extends LwM2mResponse> ResponseFuture<T> sendIdempotent(final DownlinkRequest<T> request,
+            final long timeout) {
+        if (!config.isCoalesceRequests()) {
+            return sendAsync(request, timeout);
+        }
+        return singleFlight.execute(request, new SingleFlight.Call<T>() {
+            @Override
+            public ResponseFuture<T> call() {
+                return sendAsync(request, timeout);
+            }
+        });
+    }
+
+    /**
+     * @return the number of read, discover and observe requests which could
+     *         have been coalesced with a pending identical request
+     */
+    public long getCoalescableRequestCount() {
+        return singleFlight.getRequestCount();
+    }
+
+    /**
+     * @return the number of read, discover and observe requests which shared
+     *         the exchange of a pending identical request
+     */
+    public long getCoalescedRequestCount() {
+        return singleFlight.getCoalescedCount();
+    }
+
+    private <T extends LwM2mResponse> ResponseFuture<T> invalidateOnSuccess(final ResponseFuture<T> future,
+            final LwM2mPath path) {
+        return future.addCallback(new ResponseCallback<T>() {
+            @Override
+            public void onResponse(final T response) {
+                if (response != null && response.isSuccess()) {
+                    readCache.invalidate(path);
+                }
+            }
+        }, null);
+    }
+
+    /**
+     * Invalidates the cached read responses of the given path, e.g. because
+     * a notification reported a new value.
+     *
+     * @param path
+     */
+    public void invalidateCachedValue(final LwM2mPath path) {
+        readCache.invalidate(path);
+    }
+
+    /**
+     * Sends any downlink request to the client without blocking the caller,
+     * using the callback based send of the {@link LwM2mRequestSender}. If the
+     * client sleeps in queue mode, the request is queued until the next
+     * registration update.
+     *
+     * @param request
+     * @param timeout the response timeout in milliseconds, starting when the
+     *        request is sent
+     * @return the pending response, failing with a {@link TimeoutException}
+     *         if the timeout expires or the request expired in the queue.
+     */
+    public <T extends LwM2mResponse> ResponseFuture<T> sendAsync(final DownlinkRequest<T> request,
+            final long timeout) {
+        final ResponseFuture<T> future = new ResponseFuture<>();
+        if (isSleeping()) {
+            LOG.trace("queue {} for sleeping client {}", request, client.getEndpoint());
+            if (requestQueue.offer(request, timeout, config.getQueuedRequestTtl(), future)) {
+                schedulePurge(config.getQueuedRequestTtl());
+                if (!isSleeping()) {
+                    // woke up meanwhile
+                    requestQueue.flush(queueSender);
+                }
+            }
+        } else {
+            send(request, timeout, future);
+        }
+        return future;
+    }
+
+    private <T extends LwM2mResponse> void send(final DownlinkRequest<T> request, final long timeout,
+            final ResponseFuture<T> future) {
+        scheduler.submit(request, timeout, future);
+    }
+
+    /**
+     * Sends the request, the request sender reports the end of every
+     * exchange: the response, the rejection or cancellation of the request
+     * or the expiry of the CoAP retransmissions.
+     */
+    private <T extends LwM2mResponse> void transmit(final DownlinkRequest<T> request, final long timeout,
+            final ResponseFuture<T> future, final Runnable exchangeDone) {
+        future.markSent();
+        scheduleTimeout(future, timeout);
+        final long start = System.nanoTime();
+        try {
+            requestSender.send(client, request, new ResponseCallback<T>() {
+                @Override
+                public void onResponse(final T response) {
+                    if (future.complete(response)) {
+                        rttEstimator.addSample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+                    exchangeDone.run();
+                }
+            }, new ErrorCallback() {
+                @Override
+                public void onError(final Exception e) {
+                    future.completeExceptionally(e);
+                    exchangeDone.run();
+                }
+            });
+        } catch (final RuntimeException e) {
+            future.completeExceptionally(e);
+            exchangeDone.run();
+        }
+    }
+
+    private void schedulePurge(final long delay) {
+        if (timeoutExecutor == null) {
+            // expired requests are purged on the next flush
+            return;
+        }
+        try {
+            timeoutExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    requestQueue.purge();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            LOG.debug("Timeout executor shut down, queued request to {} expires on next flush", client.getEndpoint());
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the client uses a queue binding mode
+     */
+    public boolean isQueueMode() {
+        return QUEUE_MODES.contains(client.getBindingMode());
+    }
+
+    /**
+     * @return <code>true</code> if the client is in queue mode and the awake
+     *         time after its last registration (update) elapsed.
+     */
+    public boolean isSleeping() {
+        return isQueueMode() && System.currentTimeMillis() >= awakeUntil;
+    }
+
+    private boolean isSleeping(final DownlinkRequest<?> request) {
+        if (isSleeping()) {
+            LOG.debug("client {} sleeps, {} not sent", client.getEndpoint(), request);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of requests waiting for a free slot
+     */
+    public int getWaitingRequestCount() {
+        return scheduler.size();
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int getInFlightRequestCount() {
+        return scheduler.getInFlight();
+    }
+
+    /**
+     * @return the mean time in milliseconds the sent requests waited for a
+     *         free slot
+     */
+    public double getMeanQueueWait() {
+        return scheduler.getMeanQueueWait();
+    }
+
+    /**
+     * @return the mean time in milliseconds from sending a request until its
+     *         completion
+     */
+    public double getMeanServiceTime() {
+        return scheduler.getMeanServiceTime();
+    }
+
+    /**
+     * @return the number of requests queued for the sleeping client
+     */
+    public int getQueuedRequestCount() {
+        return requestQueue.size();
+    }
+
+    /**
+     * Takes over the queued requests of the device replaced by this device on
+     * a new registration of the same client, and sends them.
+     *
+     * @param replaced
+     */
+    void takeOverQueuedRequests(final LWM2MClientDevice replaced) {
+        requestQueue.takeOver(replaced.requestQueue);
+        requestQueue.flush(queueSender);
+    }
+
+    /**
+     * Fails all queued requests because the client deregistered or expired.
+     */
+    void dispose() {
+        readCache.clear();
+        requestQueue.clear("client " + client.getEndpoint() + " is not registered anymore");
+    }
+
+    private void scheduleTimeout(final ResponseFuture<?> future, final long timeout) {
+        if (timeoutExecutor == null || timeout <= 0) {
+            return;
+        }
+        try {
+            final ScheduledFuture<?> timer = timeoutExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.completeExceptionally(new TimeoutException())) {
+                        rttEstimator.onTimeout();
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            future.onCompletion(new Runnable() {
+                @Override
+                public void run() {
+                    timer.cancel(false);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            LOG.debug("Timeout executor shut down, timeout of request to {} not enforced", client.getEndpoint());
+        }
+    }
+
+    /**
+     * Returns the response timeout of the synchronous methods for the given
+     * request: the timeout configured for the request type or the binding mode
+     * of the client or, if none is configured, the timeout derived from the
+     * round trip times measured for this device.
+     *
+     * @param request
+     * @return the timeout in milliseconds
+     */
+    public long getResponseTimeout(final DownlinkRequest<?> request) {
+        Long timeout = config.getRequestTimeout(request.getClass());
+        if (timeout == null) {
+            timeout = config.getBindingModeTimeout(client.getBindingMode());
+        }
+        return timeout != null ? timeout : rttEstimator.getTimeout();
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds or -1 if no
+     *         response has been received yet
+     */
+    public long getSmoothedRtt() {
+        return rttEstimator.getSmoothedRtt();
+    }
+
+    /**
+     * @return the round trip time variance in milliseconds
+     */
+    public long getRttVariance() {
+        return rttEstimator.getRttVariance();
+    }
+
+    /**
+     * Waits for the response like the synchronous send of the
+     * {@link LwM2mRequestSender} does. The timeout starts when the request is
+     * sent: a request waits for a free slot until the exchange of a request
+     * in flight ended, but at most {@link DeviceConfig#getMaxSlotWait()}, then
+     * it is dropped. Without a timeout executor the timeout starts right away.
+     *
+     * @return the response or <code>null</code> if the timeout expired.
+     */
+    private <T extends LwM2mResponse> T waitFor(final ResponseFuture<T> future, final long timeout)
+            throws InterruptedException {
+        final long waitStart = System.nanoTime();
+        if (timeoutExecutor != null && !future.awaitSent(config.getMaxSlotWait(), TimeUnit.MILLISECONDS)) {
+            // completing the future removes the request from the scheduler
+            future.completeExceptionally(new TimeoutException());
+            return null;
+        }
+        final long start = future.isSent() ? future.getSentAt() : waitStart;
+        final long remaining = TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - start);
+        try {
+            return future.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+        } catch (final java.util.concurrent.TimeoutException e) {
+            // a request which timed out waiting for a free slot says nothing
+            // about the round trip time
+            if (future.completeExceptionally(new TimeoutException()) && future.isSent()) {
+                rttEstimator.onTimeout();
+            }
+            return null;
+        } catch (final CancellationException e) {
+            return null;
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                return null;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            final RequestFailedException failure = new RequestFailedException(cause.toString());
+            failure.initCause(cause);
+            throw failure;
+        }
+    }
+
+    private <T extends LwM2mResponse> T waitForUninterruptibly(final ResponseFuture<T> future,
+            final long timeout) {
+        try {
+            return waitFor(future, timeout);
+        } catch (final InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            return null;
+        }
     }
 
     @Override
@@ -104,6 +638,18 @@ public class LWM2MClientDevice implements LWM2MClient {
         return client.getObjectLinks();
     }
 
+    /**
+     * Checks whether the client registered a link to the object, one of its
+     * instances or resources, without iterating the object links.
+     *
+     * @param objectId
+     * @return <code>true</code> if the client supports the object
+     */
+    public boolean supportsObject(final int objectId) {
+        final ObjectLinkSet links = objectLinkSet;
+        return links != null && links.containsObject(objectId);
+    }
+
     @Override
     public Client getClient() {
         return client;
@@ -111,17 +657,43 @@ public class LWM2MClientDevice implements LWM2MClient {
 
     /**
      * Returns the ServiceProperties for OSGi Service Registry for the given
-     * Client.
+     * Client. The registration expiration is the last update plus the lifetime
+     * as a {@link Long} (milliseconds since the epoch), so that LDAP filters
+     * like <code>(LWM2M_REGISTRATION_EXPIRATION&lt;=...)</code> compare
+     * numerically.
+     * The device category array is shared by all devices and must not be
+     * modified.
      *
      * @param client
      * @return Dictionary
      */
     public Dictionary<String, Object> getServiceRegistrationProperties(final Client client) {
-        final Dictionary<String, Object> registrationProperties = new Hashtable<>();
-        final Long expirationTime = new Date().getTime() + client.getLifeTimeInSec() * 1000;
+        final Dictionary<String, Object> registrationProperties = newServiceRegistrationProperties(client,
+            rttEstimator.getTimeout());
+        final long smoothedRtt = rttEstimator.getSmoothedRtt();
+        if (smoothedRtt >= 0) {
+            registrationProperties.put(Property.RTT_SMOOTHED, smoothedRtt);
+            registrationProperties.put(Property.RTT_VARIANCE, rttEstimator.getRttVariance());
+        }
+        return registrationProperties;
+    }
+
+    /**
+     * Returns the ServiceProperties of a client without round trip time
+     * estimate, e.g. of a registration for which no device has been created.
+     *
+     * @param client
+     * @param responseTimeout the response timeout in milliseconds
+     * @return Dictionary
+     */
+    static Dictionary<String, Object> newServiceRegistrationProperties(final Client client,
+            final long responseTimeout) {
+        final Dictionary<String, Object> registrationProperties = new PropertyDictionary(PROPERTY_COUNT);
+        final long expirationTime = ClientExpirationQueue.expirationTimeOf(client);
         registrationProperties.put(Property.REGISTRATION_ID, client.getRegistrationId());
-        registrationProperties.put(Constants.DEVICE_CATEGORY, new String[] { Property.CATEGORY_LWM2M_CLIENT });
-        registrationProperties.put(Property.REGISTRATION_EXPIRATION, Long.toString(expirationTime));
+        registrationProperties.put(Constants.DEVICE_CATEGORY, DEVICE_CATEGORY);
+        registrationProperties.put(Property.REGISTRATION_EXPIRATION, expirationTime);
+        registrationProperties.put(Property.RESPONSE_TIMEOUT, responseTimeout);
         registrationProperties.put(Property.LWM2M_OBJECTS, client.getObjectLinks());
         registrationProperties.put(org.osgi.framework.Constants.SERVICE_PID, client.getEndpoint());
 
@@ -149,6 +721,16 @@ public class LWM2MClientDevice implements LWM2MClient {
             throw new IllegalArgumentException(
                     "The client can not be updated because the new endpointID do not match to the existing one.");
         }
+        if (!clientupdated.getAddress().equals(client.getAddress())) {
+            // measured on another network path
+            rttEstimator.reset();
+        }
+        if (objectLinkSet == null || objectLinkSet.getLinks() != clientupdated.getObjectLinks()) {
+            objectLinkSet = ObjectLinkSet.of(clientupdated.getObjectLinks());
+        }
         this.client = clientupdated;
+        // a queue mode client listens for requests after an update
+        awakeUntil = System.currentTimeMillis() + config.getAwakeTime();
+        requestQueue.flush(queueSender);
     }
 }
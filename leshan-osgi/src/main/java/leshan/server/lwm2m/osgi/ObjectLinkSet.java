@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.server.client.Client;
+
+/**
+ * The object links of a client, shared by all clients registering equal links
+ * (same urls and attributes in the same order). Instances are only created
+ * by {@link #of(LinkObject[])}, so equal link sets are the same instance and
+ * can be compared by reference. A set is dropped from the cache once no
+ * client uses it anymore.
+ * <p>
+ * The ids of the linked objects are kept in a bitset, so that checking
+ * whether a client supports an object does not iterate the links. The ids
+ * are taken relative to the alternate root path of the client, if any (see
+ * {@link Client#getRootPath()}).
+ */
+final class ObjectLinkSet {
+
+    /** the resource type of the link to the root path, see {@link Client#getRootPath()} */
+    private static final String ROOT_RESOURCE_TYPE = "oma.lwm2m";
+    /** the largest object id, LWM2M object ids are 16 bit */
+    private static final int MAX_OBJECT_ID = 0xffff;
+
+    /** the canonical sets by their links */
+    private static final Map<List<LinkObject>, WeakReference<ObjectLinkSet>> CANONICAL = new WeakHashMap<>();
+
+    private final LinkObject[] links;
+    /** the key in {@link #CANONICAL}, referenced to keep the entry */
+    private final List<LinkObject> key;
+    /** bit n is set if object n is linked */
+    private final long[] objectIds;
+
+    private ObjectLinkSet(final LinkObject[] links) {
+        this.links = links;
+        this.key = Arrays.asList(links);
+        final LinkObject root = rootOf(links);
+        // the root path without trailing slash, empty for the default root
+        String rootPath = root == null ? "" : root.getUrl();
+        if (rootPath.endsWith("/")) {
+            rootPath = rootPath.substring(0, rootPath.length() - 1);
+        }
+        final int[] ids = new int[links.length];
+        int max = -1;
+        for (int i = 0; i < links.length; i++) {
+            ids[i] = links[i] == root ? -1 : objectIdOf(links[i], rootPath);
+            max = Math.max(max, ids[i]);
+        }
+        objectIds = new long[max / 64 + 1];
+        for (final int objectId : ids) {
+            if (objectId >= 0) {
+                objectIds[objectId >>> 6] |= 1L << objectId;
+            }
+        }
+    }
+
+    /**
+     * @param links
+     * @return the link to the root path as found by {@link Client}, or
+     *         <code>null</code> if the client uses the default root path
+     */
+    private static LinkObject rootOf(final LinkObject[] links) {
+        for (final LinkObject link : links) {
+            if (link != null && ROOT_RESOURCE_TYPE.equals(link.getAttributes().get("rt"))) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param link
+     * @param rootPath the root path without trailing slash
+     * @return the id of the linked object or -1 if the link does not point to
+     *         an object or to an invalid object id
+     */
+    private static int objectIdOf(final LinkObject link, final String rootPath) {
+        if (link == null) {
+            return -1;
+        }
+        final String url = link.getUrl();
+        final Integer objectId;
+        if (!rootPath.isEmpty() && url.startsWith(rootPath + "/")) {
+            // the object path below the alternate root path
+            objectId = new LinkObject(url.substring(rootPath.length())).getObjectId();
+        } else {
+            objectId = link.getObjectId();
+        }
+        return objectId != null && objectId <= MAX_OBJECT_ID ? objectId : -1;
+    }
+
+    /**
+     * @param links
+     * @return the canonical set of the links or <code>null</code> if the
+     *         links are <code>null</code>
+     */
+    static ObjectLinkSet of(final LinkObject[] links) {
+        if (links == null) {
+            return null;
+        }
+        final List<LinkObject> lookup = Arrays.asList(links);
+        synchronized (CANONICAL) {
+            final WeakReference<ObjectLinkSet> reference = CANONICAL.get(lookup);
+            ObjectLinkSet set = reference == null ? null : reference.get();
+            if (set == null) {
+                set = new ObjectLinkSet(links.clone());
+                CANONICAL.put(set.key, new WeakReference<>(set));
+            }
+            return set;
+        }
+    }
+
+    /**
+     * @return the links, shared by all clients using this set; must not be
+     *         modified
+     */
+    LinkObject[] getLinks() {
+        return links;
+    }
+
+    /**
+     * @param objectId
+     * @return <code>true</code> if the set contains a link to the object or
+     *         one of its instances or resources
+     */
+    boolean containsObject(final int objectId) {
+        return objectId >= 0 && objectId >>> 6 < objectIds.length
+                && (objectIds[objectId >>> 6] & 1L << objectId) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(links);
+    }
+}
@@ -15,22 +15,26 @@
  *******************************************************************************/
 package leshan.server.lwm2m.osgi;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Dictionary;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.core.node.LwM2mPath;
 import org.eclipse.leshan.core.request.BindingMode;
 import org.eclipse.leshan.server.client.Client;
 import org.eclipse.leshan.server.client.ClientRegistry;
@@ -38,8 +42,9 @@ import org.eclipse.leshan.server.client.ClientRegistryListener;
 import org.eclipse.leshan.server.client.ClientUpdate;
 import org.eclipse.leshan.server.request.LwM2mRequestSender;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,18 +52,83 @@ import org.slf4j.LoggerFactory;
 /**
  * OSGi based Implementation of the lwm2m {@link ClientRegistry}. The clients
  * are registered in this implementation to the OSGi service registry
+ * <p>
+ * Registration, update, deregistration and expiry of the same endpoint are
+ * serialized by a lock stripe chosen by the endpoint, so that operations on
+ * different endpoints proceed in parallel. The {@link ClientRegistryListener}s
+ * are notified while the stripe is held, in the order of the operations on
+ * the endpoint, and therefore must not block.
+ * <p>
+ * With a {@link JournalConfig} the operations are written to a
+ * {@link RegistrationJournal}, and the registrations which did not expire are
+ * restored from it when the registry is created. The restored devices can be
+ * looked up immediately; their services are registered according to the
+ * {@link JournalConfig.RestoreMode}.
+ * <p>
+ * In the {@link ClientRegistryConfig.PublicationMode#SELECTIVE} publication
+ * mode only the devices matching the publication filter or pinned by a
+ * consumer are registered as services; the registry registers itself as
+ * {@link DeviceLookupService} to look up and query all devices. With
+ * {@link ClientRegistryConfig#setCompactStorage(boolean) compact storage} the
+ * registrations of the other devices are kept in a {@link CompactClientStore}
+ * until a device is looked up.
  */
-public class OsgiBasedClientRegistry implements ClientRegistry {
+public class OsgiBasedClientRegistry implements ClientRegistry, DeviceLookupService {
 
     private static final Logger LOG = LoggerFactory.getLogger(OsgiBasedClientRegistry.class);
+    /** the number of lock stripes, a power of two */
+    private static final int LOCK_STRIPES = Integer.highestOneBit(Math.max(16,
+        Runtime.getRuntime().availableProcessors() * 4) * 2 - 1);
     private final BundleContext context;
     private final LwM2mRequestSender requestSender;
-    private final Map<String, ServiceRegistration<LWM2MClientDevice>> registrations = new ConcurrentHashMap<String, ServiceRegistration<LWM2MClientDevice>>();
+    /**
+     * The registered devices by endpoint. The devices are created by this
+     * registry, so they are kept next to their {@link ServiceRegistration} and
+     * read from memory; the OSGi service registry is only used to publish them
+     * to other bundles.
+     */
+    private final ConcurrentMap<String, RegisteredDevice> registrations = new ConcurrentHashMap<String, RegisteredDevice>();
+    /**
+     * Secondary index registrationId -&gt; device, kept consistent with
+     * {@link #registrations} so that lookups by registration id do not need to
+     * scan all registered devices.
+     */
+    private final ConcurrentMap<String, RegisteredDevice> devicesByRegistrationId = new ConcurrentHashMap<>();
     private final List<ClientRegistryListener> crListeners = new CopyOnWriteArrayList<>();
+    private final ClientExpirationQueue expirations = new ClientExpirationQueue();
+    private final ClientRegistryConfig config;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    /** the journal persisting the registrations, <code>null</code> if disabled */
+    private final RegistrationJournal journal;
+    /**
+     * the restored devices whose service has been neither registered nor
+     * removed, plus one until the restore is finished
+     */
+    private final AtomicInteger unpublishedDevices = new AtomicInteger();
+    private volatile long restoreStart;
+    private volatile long restoreDuration = -1;
+    private volatile long publicationDuration = -1;
+    /** whether the restored devices are registered when looked up */
+    private final boolean onDemand;
+    /** registers the services of the restored devices in the CHUNKED mode */
+    private ExecutorService restoreExecutor;
+    /** whether only selected devices are registered as services */
+    private final boolean selective;
+    /** selects the devices registered as services, may be <code>null</code> */
+    private final Filter publicationFilter;
+    /** the pin counts by endpoint, modified while holding the endpoint lock */
+    private final ConcurrentMap<String, Integer> pins = new ConcurrentHashMap<>();
+    private final ServiceRegistration<DeviceLookupService> lookupRegistration;
+    /**
+     * the registrations for which no device has been created,
+     * <code>null</code> unless compact storage is enabled
+     */
+    private final CompactClientStore store;
 
     /**
      * ScheduledExecutorService checks the availability of a registered
-     * lwm2m-client.
+     * lwm2m-client and expires asynchronous requests whose response timeout
+     * elapsed.
      */
     private final ScheduledExecutorService schedExecutor = Executors.newScheduledThreadPool(1);
 
@@ -70,30 +140,331 @@ public class OsgiBasedClientRegistry implements ClientRegistry {
      * @param requestSender {@link LwM2mRequestSender}
      */
     public OsgiBasedClientRegistry(final BundleContext bundleContext, final LwM2mRequestSender requestSender) {
+        this(bundleContext, requestSender, new ClientRegistryConfig());
+    }
+
+    /**
+     * Constructor for new OsgiBasedClientRegistry using the given
+     * configuration.
+     *
+     * @param bundleContext {@link BundleContext}
+     * @param requestSender {@link LwM2mRequestSender}
+     * @param config {@link ClientRegistryConfig}
+     */
+    public OsgiBasedClientRegistry(final BundleContext bundleContext, final LwM2mRequestSender requestSender,
+            final ClientRegistryConfig config) {
+        if (config == null) {
+            throw new NullPointerException("Client registry config must not be null");
+        }
         context = bundleContext;
         this.requestSender = requestSender;
+        this.config = config;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        selective = config.getPublicationMode() == ClientRegistryConfig.PublicationMode.SELECTIVE;
+        publicationFilter = selective ? createFilter(config.getPublicationFilter()) : null;
+        store = selective && config.isCompactStorage() ? new CompactClientStore() : null;
+        onDemand = config.getJournalConfig() != null
+                && config.getJournalConfig().getRestoreMode() == JournalConfig.RestoreMode.ON_DEMAND;
+        journal = config.getJournalConfig() == null ? null : openJournal(config.getJournalConfig());
         start();
+        lookupRegistration = selective ? context.registerService(DeviceLookupService.class, this, null) : null;
+    }
+
+    private static Filter createFilter(final String filter) {
+        if (filter == null) {
+            return null;
+        }
+        try {
+            return FrameworkUtil.createFilter(filter);
+        } catch (final InvalidSyntaxException e) {
+            // validated by the config
+            throw new IllegalArgumentException("invalid publication filter " + filter, e);
+        }
+    }
+
+    /**
+     * Restores the registrations from the journal and opens it for writing.
+     *
+     * @param journalConfig
+     * @return the journal or <code>null</code> if it cannot be written
+     */
+    private RegistrationJournal openJournal(final JournalConfig journalConfig) {
+        restoreStart = System.currentTimeMillis();
+        unpublishedDevices.set(1);
+        final RegistrationJournal registrationJournal = new RegistrationJournal(journalConfig);
+        final List<RegisteredDevice> restored = new ArrayList<>();
+        int recovered = 0;
+        boolean recoveryFailed = false;
+        try {
+            for (final Client client : registrationJournal.recover(restoreStart)) {
+                recovered++;
+                final RegisteredDevice registered = restoreClient(client);
+                if (registered != null) {
+                    restored.add(registered);
+                }
+            }
+        } catch (final IOException e) {
+            LOG.error("cannot restore the registrations from " + journalConfig.getDirectory(), e);
+            recoveryFailed = true;
+        }
+        unpublishedDevices.addAndGet(restored.size());
+        publishRestored(restored, journalConfig);
+
+        RegistrationJournal result = null;
+        try {
+            if (recoveryFailed) {
+                // the journal would compact over the files
+                LOG.warn("Moved the unrecovered registration journal to {}", registrationJournal.setAside());
+            }
+            registrationJournal.open(this);
+            result = registrationJournal;
+        } catch (final IOException e) {
+            LOG.error("cannot open the registration journal in " + journalConfig.getDirectory()
+                    + ", registrations are not persisted", e);
+        }
+        restoreDuration = System.currentTimeMillis() - restoreStart;
+        LOG.info("Restored {} registrations in {} ms, registering {} services {}", recovered, restoreDuration,
+            restored.size(), journalConfig.getRestoreMode());
+        restoredDeviceDone();
+        return result;
+    }
+
+    /**
+     * Adds a device for a registration restored from the journal, without
+     * registering its service or notifying the listeners.
+     *
+     * @param client
+     * @return the restored device or <code>null</code> if its service is not
+     *         to be registered
+     */
+    private RegisteredDevice restoreClient(final Client client) {
+        synchronized (lockFor(client.getEndpoint())) {
+            registerClientAtOsgiRegistry(withSharedLinks(client), false);
+            final RegisteredDevice registered = registrations.get(client.getEndpoint());
+            if (!isSelected(registered)) {
+                return null;
+            }
+            registered.markRestorePending();
+            return registered;
+        }
+    }
+
+    /**
+     * Registers the services of the restored devices according to the restore
+     * mode.
+     *
+     * @param restored
+     * @param journalConfig
+     */
+    private void publishRestored(final List<RegisteredDevice> restored, final JournalConfig journalConfig) {
+        switch (journalConfig.getRestoreMode()) {
+        case EAGER:
+            for (final RegisteredDevice registered : restored) {
+                ensurePublished(registered);
+            }
+            break;
+        case CHUNKED:
+            if (restored.isEmpty()) {
+                break;
+            }
+            final int chunkSize = journalConfig.getRestoreChunkSize();
+            final int chunks = (restored.size() + chunkSize - 1) / chunkSize;
+            restoreExecutor = Executors.newFixedThreadPool(Math.min(chunks, Runtime.getRuntime()
+                .availableProcessors()));
+            for (int i = 0; i < restored.size(); i += chunkSize) {
+                final List<RegisteredDevice> chunk = restored.subList(i, Math.min(i + chunkSize, restored.size()));
+                restoreExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        for (final RegisteredDevice registered : chunk) {
+                            ensurePublished(registered);
+                        }
+                    }
+                });
+            }
+            // the threads terminate when all chunks are done
+            restoreExecutor.shutdown();
+            break;
+        default:
+            // ON_DEMAND, registered by the lookups
+            break;
+        }
+    }
+
+    /**
+     * Registers the service of a device if it is selected and has neither been
+     * registered nor removed already.
+     *
+     * @param registered may be <code>null</code>
+     * @return the given device
+     */
+    private RegisteredDevice ensurePublished(final RegisteredDevice registered) {
+        if (registered != null && registered.registration == null) {
+            // checking the selection while holding the device, so that a
+            // concurrent unpin unregisters the service afterwards
+            synchronized (registered) {
+                if (isSelected(registered) && registered.publish(context)) {
+                    restoredDeviceDone();
+                }
+            }
+        }
+        return registered;
+    }
+
+    /**
+     * @return <code>true</code> if the device is to be registered as service
+     */
+    private boolean isSelected(final RegisteredDevice registered) {
+        return !selective || registered.selected || pins.containsKey(registered.endpoint);
+    }
+
+    /**
+     * Registers or unregisters the service of a device after its properties
+     * changed, according to the publication filter.
+     *
+     * @param registered
+     * @param properties the new properties
+     */
+    private void updateSelection(final RegisteredDevice registered, final Dictionary<String, Object> properties) {
+        registered.selected = publicationFilter != null && publicationFilter.match(properties);
+        if (isSelected(registered)) {
+            // a restored device waits for its lookup in the ON_DEMAND mode
+            if (!onDemand || !registered.isRestorePending()) {
+                ensurePublished(registered);
+            }
+        } else if (registered.unpublish()) {
+            restoredDeviceDone();
+        }
+    }
+
+    /**
+     * Counts a restored device whose service has been registered or which has
+     * been removed before.
+     */
+    private void restoredDeviceDone() {
+        if (unpublishedDevices.decrementAndGet() == 0) {
+            publicationDuration = System.currentTimeMillis() - restoreStart;
+            LOG.info("Registered the services of all restored devices after {} ms", publicationDuration);
+        }
+    }
+
+    /**
+     * @return the time in milliseconds it took to restore the registrations
+     *         from the journal until the registry was ready, or -1 if the
+     *         registrations are not persisted
+     */
+    public long getRestoreDuration() {
+        return restoreDuration;
+    }
+
+    /**
+     * @return the time in milliseconds from the start of the restore until
+     *         the services of all restored devices were registered (or the
+     *         devices removed), or -1 if this has not happened (yet)
+     */
+    public long getPublicationDuration() {
+        return publicationDuration;
+    }
+
+    /**
+     * @return the number of restored devices whose service has not been
+     *         registered yet
+     */
+    public int getUnpublishedDeviceCount() {
+        return unpublishedDevices.get();
+    }
+
+    /**
+     * @return the number of registrations kept in the compact store
+     */
+    int getStoredDeviceCount() {
+        return store == null ? 0 : store.size();
+    }
+
+    /**
+     * @param endpoint
+     * @return the lock serializing the operations on the endpoint
+     */
+    private Object lockFor(final String endpoint) {
+        int h = endpoint.hashCode();
+        // spread the higher bits like HashMap does
+        h ^= h >>> 16;
+        return locks[h & (locks.length - 1)];
     }
 
     @Override
     public Client get(final String endpoint) {
-        final ServiceRegistration<LWM2MClientDevice> sreg = registrations.get(endpoint);
-        final LWM2MClientDevice device = context.getService(sreg.getReference());
-        return device.getClient();
+        // neither registering the service of a restored device nor creating
+        // a device kept in the compact store: the LWM2M server looks the
+        // clients up on every update
+        final RegisteredDevice registered = registrations.get(endpoint);
+        return registered == null ? null : registered.client();
     }
 
     @Override
     public Collection<Client> allClients() {
         final List<Client> result = new ArrayList<>(registrations.size());
 
-        for (final ServiceRegistration<LWM2MClientDevice> lw : registrations.values()) {
-            final LWM2MClientDevice device = context.getService(lw.getReference());
-            result.add(device.getClient());
+        for (final RegisteredDevice registered : registrations.values()) {
+            final Client client = registered.client();
+            // null if deregistered concurrently
+            if (client != null) {
+                result.add(client);
+            }
         }
 
         return result;
     }
 
+    /**
+     * Returns the {@link LWM2MClientDevice} registered under the given
+     * endpoint.
+     *
+     * @param endpoint
+     * @return the device or <code>null</code> if no device is registered under
+     *         the endpoint.
+     */
+    @Override
+    public LWM2MClientDevice getDevice(final String endpoint) {
+        final RegisteredDevice registered = ensurePublished(registrations.get(endpoint));
+        return registered == null ? null : registered.device();
+    }
+
+    /**
+     * Returns the {@link LWM2MClientDevice} registered under the given
+     * registration id.
+     *
+     * @param registrationId
+     * @return the device or <code>null</code> if no device is registered under
+     *         the registration id.
+     */
+    @Override
+    public LWM2MClientDevice findDeviceByRegistrationId(final String registrationId) {
+        final RegisteredDevice registered = ensurePublished(getRegisteredDeviceById(registrationId));
+        return registered == null ? null : registered.device();
+    }
+
+    /**
+     * Drops the cached read responses of a path of the device registered
+     * under the registration id, e.g. because a notification delivered a
+     * newer value. The device is neither created nor registered as service:
+     * a device kept in the compact store or not yet looked up has not cached
+     * any response.
+     *
+     * @param registrationId
+     * @param path
+     */
+    public void invalidateCachedValue(final String registrationId, final LwM2mPath path) {
+        final RegisteredDevice registered = getRegisteredDeviceById(registrationId);
+        final LWM2MClientDevice device = registered == null ? null : registered.device;
+        if (device != null) {
+            device.invalidateCachedValue(path);
+        }
+    }
+
     @Override
     public void addListener(final ClientRegistryListener listener) {
         crListeners.add(listener);
@@ -105,15 +476,20 @@ public class OsgiBasedClientRegistry implements ClientRegistry {
     }
 
     @Override
-    public boolean registerClient(final Client client) {
+    public boolean registerClient(final Client registration) {
+        final Client client = withSharedLinks(registration);
 
         // Instantiate LWM2MDevice as wrapper around Client object and
         // register as DEVICE in OSGi registry
-        final LWM2MClientDevice lwm2mclient = new LWM2MClientDevice(client, requestSender);
-        registerClientAtOsgiRegistry(lwm2mclient);
+        synchronized (lockFor(client.getEndpoint())) {
+            registerClientAtOsgiRegistry(client, true);
+            if (journal != null) {
+                journal.register(client);
+            }
 
-        for (final ClientRegistryListener crl : crListeners) {
-            crl.registered(client);
+            for (final ClientRegistryListener crl : crListeners) {
+                crl.registered(client);
+            }
         }
         return true;
 
@@ -121,68 +497,161 @@ public class OsgiBasedClientRegistry implements ClientRegistry {
 
     @Override
     public Client updateClient(final ClientUpdate clientUpdate) {
-        final ServiceRegistration<LWM2MClientDevice> registration = getServiceRegistrationById(clientUpdate
-            .getRegistrationId());
-        if (registration == null) {
+        final RegisteredDevice registered = getRegisteredDeviceById(clientUpdate.getRegistrationId());
+        if (registered == null) {
             LOG.warn("updateClient(); return null: no client is registered under the given Registration-ID {}",
                 clientUpdate.getRegistrationId());
             return null;
         }
 
-        final ServiceReference<LWM2MClientDevice> ref = registration.getReference();
-        final LWM2MClientDevice device = context.getService(ref);
-
-        if (device != null) {
+        synchronized (lockFor(registered.endpoint)) {
+            if (devicesByRegistrationId.get(clientUpdate.getRegistrationId()) != registered) {
+                LOG.warn("updateClient(); return null: client with Registration-ID {} deregistered concurrently",
+                    clientUpdate.getRegistrationId());
+                return null;
+            }
             LOG.debug("Updating registration for client: {}", clientUpdate);
-            applyUpdate(device, clientUpdate);
+            final Client updated = applyUpdate(registered.client(), clientUpdate);
+            registered.update(updated);
+            expirations.schedule(updated);
 
-            final Dictionary<String, Object> newProps = device.getServiceRegistrationProperties(device.getClient());
-            registration.setProperties(newProps);
+            final Dictionary<String, Object> newProps = registered.newProperties();
+            try {
+                updateSelection(registered, newProps);
+                publishProperties(registered, newProps);
+            } catch (final IllegalStateException e) {
+                // IllegalStateException - If this ServiceRegistration object has
+                // already been unregistered
+                LOG.warn(String.format(
+                    "updateClient(); return null: LWM2MClientDevice with Registration-ID %s has been unregistered",
+                    clientUpdate.getRegistrationId()));
+                return null;
+            }
+            if (journal != null) {
+                journal.update(clientUpdate, updated);
+            }
 
             for (final ClientRegistryListener crl : crListeners) {
-                crl.updated(device.getClient());
+                crl.updated(updated);
             }
 
-            return device.getClient();
-        } else {
-            LOG.warn(String.format(
-                "updateClient(); return null: no LWM2MClientDevice is found under the given Registration-ID %s",
-                clientUpdate.getRegistrationId()));
-
-            return null;
+            return updated;
         }
     }
 
     @Override
     public Client deregisterClient(final String registrationId) {
 
-        final ServiceRegistration<LWM2MClientDevice> registration = getServiceRegistrationById(registrationId);
+        final RegisteredDevice registered = getRegisteredDeviceById(registrationId);
 
-        if (registration != null) {
-            final ServiceReference<LWM2MClientDevice> ref = registration.getReference();
-            final LWM2MClientDevice device = context.getService(ref);
-            context.ungetService(ref);
-            registration.unregister();
+        if (registered != null) {
+            synchronized (lockFor(registered.endpoint)) {
+                // only the first of concurrent deregistrations proceeds
+                if (devicesByRegistrationId.remove(registrationId, registered)) {
+                    final Client client = registered.client();
+                    unregisterService(registered);
+                    registered.dispose();
 
-            if (registrations.remove(device.getClient().getEndpoint()) == null) {
-                LOG.warn(String.format("[deregisterClient()] no Service found with endpointID = %s", device.getClient()
-                    .getEndpoint()));
-            }
-            LOG.debug(String.format(
-                "[deregisterClient()] ungetService and unregister Client with endpointID=%s  ,id=%s", device
-                .getClient().getEndpoint(), device.getClient().getRegistrationId()));
+                    expirations.cancel(registrationId);
+                    if (journal != null) {
+                        journal.deregister(registrationId);
+                    }
+                    if (!registrations.remove(client.getEndpoint(), registered)) {
+                        LOG.warn(String.format("[deregisterClient()] no Service found with endpointID = %s",
+                            client.getEndpoint()));
+                    }
+                    LOG.debug(String.format(
+                        "[deregisterClient()] unregister Client with endpointID=%s  ,id=%s", client.getEndpoint(),
+                        client.getRegistrationId()));
 
-            for (final ClientRegistryListener crl : crListeners) {
-                crl.unregistered(device.getClient());
-            }
+                    for (final ClientRegistryListener crl : crListeners) {
+                        crl.unregistered(client);
+                    }
 
-            return device.getClient();
+                    return client;
+                }
+            }
         }
         LOG.warn(String.format("[deregisterClient()] no Client found with registrationId = %s", registrationId));
 
         return null;
     }
 
+    /**
+     * Updates the service properties of the device unless they did not change.
+     * Changes of the expiration time and the round trip time only are deferred
+     * to the end of the property update window, coalescing further updates.
+     *
+     * @param registered
+     * @param properties the new properties
+     * @throws IllegalStateException if the service has been unregistered
+     */
+    private void publishProperties(final RegisteredDevice registered, final Dictionary<String, Object> properties) {
+        synchronized (registered) {
+            if (registered.device == null) {
+                // kept in the compact store, the properties are created on
+                // demand
+                return;
+            }
+            final ServicePropertyDiff.Change change = ServicePropertyDiff.compare(registered.published, properties);
+            if (change == ServicePropertyDiff.Change.NONE) {
+                registered.pending = null;
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final long window = config.getPropertyUpdateWindow();
+            final long windowEnd = registered.publishedAt + window;
+            if (change == ServicePropertyDiff.Change.VOLATILE && now < windowEnd
+                    && ServicePropertyDiff.expirationDelta(registered.published, properties) < window) {
+                registered.pending = properties;
+                if (registered.flushScheduled) {
+                    return;
+                }
+                try {
+                    schedExecutor.schedule(new PropertyFlush(registered), windowEnd - now, TimeUnit.MILLISECONDS);
+                    registered.flushScheduled = true;
+                    return;
+                } catch (final RejectedExecutionException e) {
+                    LOG.trace("registry stopped, updating properties of {} immediately", registered.endpoint);
+                }
+            }
+            registered.pending = null;
+            registered.setProperties(properties, now);
+        }
+    }
+
+    /**
+     * Publishes the properties deferred by
+     * {@link OsgiBasedClientRegistry#publishProperties(RegisteredDevice, Dictionary)}
+     */
+    private static class PropertyFlush implements Runnable {
+
+        private final RegisteredDevice registered;
+
+        PropertyFlush(final RegisteredDevice registered) {
+            this.registered = registered;
+        }
+
+        @Override
+        public void run() {
+            synchronized (registered) {
+                registered.flushScheduled = false;
+                final Dictionary<String, Object> pending = registered.pending;
+                registered.pending = null;
+                if (pending == null
+                        || ServicePropertyDiff.compare(registered.published, pending)
+                            == ServicePropertyDiff.Change.NONE) {
+                    return;
+                }
+                try {
+                    registered.setProperties(pending, System.currentTimeMillis());
+                } catch (final IllegalStateException e) {
+                    LOG.trace("[PropertyFlush] service of {} has been unregistered", registered.endpoint);
+                }
+            }
+        }
+    }
+
     /**
      * register a new LWM2MClientDevice at the OSGI Service Registry with
      * service Properties: <br>
@@ -197,18 +666,20 @@ public class OsgiBasedClientRegistry implements ClientRegistry {
      * LWM2MClientDevice will be registered again.
      *
      * @param client
+     * @param publish <code>false</code> to defer the registration of the
+     *            service of a restored device
      * @return
      */
-    private Client registerClientAtOsgiRegistry(final LWM2MClientDevice client) {
+    private Client registerClientAtOsgiRegistry(final Client client, final boolean publish) {
 
-        if (!(registrations.containsKey(client.getClient().getEndpoint()))) {
+        final RegisteredDevice stale = registrations.get(client.getEndpoint());
+        if (stale == null) {
             LOG.trace(
                 "[registerClientAtOsgiRegistry()] Register new LWM2MClientDevice at osgi ServiceRegistry with ep= {}",
-                client.getClient().getEndpoint());
-            registerService(client);
+                client.getEndpoint());
+            registerService(client, publish);
 
-            LOG.trace(String.format("[registerClientAtOsgiRegistry()] origin host: %s", client.getClient().getAddress()
-                .toString()));
+            LOG.trace(String.format("[registerClientAtOsgiRegistry()] origin host: %s", client.getAddress()));
 
         } else {
             LOG.trace("[registerClientAtOsgiRegistry()] update a LWM2MClientDevice Servicereference while clientregistration");
@@ -220,43 +691,32 @@ public class OsgiBasedClientRegistry implements ClientRegistry {
             // registration information and performs the new “Register”
             // operation. This situation happens when the LWM2M Client forgets
             // the state of the LWM2M Server (e.g., factory reset).
-            final ServiceRegistration<LWM2MClientDevice> reg = registrations.get(client.getClient().getEndpoint());
-            try {
-                final ServiceReference<LWM2MClientDevice> ref = reg.getReference();
-
-                for (final ClientRegistryListener crl : crListeners) {
-                    crl.unregistered(context.getService(ref).getClient());
-                }
-
-                // This is the stale registration information for the given
-                // client's end-point name
-                // This may happen, if a client somehow loses track of its
-                // registration status with this server and simply starts over
-                // with a new registration request in order to remedy the
-                // situation.
-                // According to the LWM2M spec an implementation must remove the
-                // stale registration information in this case.
-                final LWM2MClientDevice staleClient = context.getService(ref);
-
-                reg.unregister();
-                context.ungetService(ref);
-                registerService(client);
-
-                if (staleClient != null) {
-                    return staleClient.getClient();
-                }
 
-                LOG.trace(String.format("[registerClientAtOsgiRegistry()] changed host: %s", client.getClient()
-                    .getAddress().toString()));
-            } catch (final IllegalStateException e) {
-                // IllegalStateException - If this ServiceRegistration object
-                // has already been unregistered
-                registerService(client);
+            // This is the stale registration information for the given
+            // client's end-point name
+            // This may happen, if a client somehow loses track of its
+            // registration status with this server and simply starts over
+            // with a new registration request in order to remedy the
+            // situation.
+            // According to the LWM2M spec an implementation must remove the
+            // stale registration information in this case.
+            final Client staleClient = stale.client();
+            for (final ClientRegistryListener crl : crListeners) {
+                crl.unregistered(staleClient);
+            }
 
-                LOG.warn(
-                    "[registerClientAtOsgiRegistry()] ServiceRegistration object has already been unregistered, register again.",
-                    e);
+            devicesByRegistrationId.remove(staleClient.getRegistrationId(), stale);
+            expirations.cancel(staleClient.getRegistrationId());
+            unregisterService(stale);
+            final RegisteredDevice registered = registerService(client, publish);
+            final LWM2MClientDevice staleDevice = stale.device;
+            if (staleDevice != null) {
+                // a device kept in the compact store has no queued requests
+                registered.device().takeOverQueuedRequests(staleDevice);
             }
+
+            LOG.trace(String.format("[registerClientAtOsgiRegistry()] changed host: %s", client.getAddress()));
+            return staleClient;
         }
         // return null because no stale registration info exists for the
         // end-point
@@ -264,84 +724,151 @@ public class OsgiBasedClientRegistry implements ClientRegistry {
     }
 
     /**
-     * register the LWM2MClientDevice as service in osgi service registry.
+     * register the LWM2MClientDevice as service in osgi service registry. A
+     * device not registered as service is kept in the compact store, if
+     * enabled.
      *
      * @param client
+     * @param publish <code>false</code> to add the device without registering
+     *            its service
+     * @return the added device
      */
-    private void registerService(final LWM2MClientDevice client) {
-        final ServiceRegistration<LWM2MClientDevice> registration = context.registerService(LWM2MClientDevice.class,
-            client, client.getServiceRegistrationProperties(client.getClient()));
+    private RegisteredDevice registerService(final Client client, final boolean publish) {
+        final RegisteredDevice registered;
+        if (store == null) {
+            final LWM2MClientDevice device = new LWM2MClientDevice(client, requestSender, schedExecutor,
+                config.getDeviceConfig());
+            final Dictionary<String, Object> properties = device.getServiceRegistrationProperties(client);
+            registered = new RegisteredDevice(device, properties);
+            registered.selected = publicationFilter != null && publicationFilter.match(properties);
+        } else {
+            final boolean selected = publicationFilter != null
+                    && publicationFilter.match(LWM2MClientDevice.newServiceRegistrationProperties(client, config
+                        .getDeviceConfig().getInitialTimeout()));
+            if (selected || pins.containsKey(client.getEndpoint())) {
+                final LWM2MClientDevice device = new LWM2MClientDevice(client, requestSender, schedExecutor,
+                    config.getDeviceConfig());
+                registered = new RegisteredDevice(device, device.getServiceRegistrationProperties(client));
+            } else {
+                registered = new RegisteredDevice(client, store.add(client));
+            }
+            registered.selected = selected;
+        }
+        if (publish && isSelected(registered)) {
+            registered.publish(context);
+        }
+        registrations.put(client.getEndpoint(), registered);
+        devicesByRegistrationId.put(client.getRegistrationId(), registered);
+        expirations.schedule(client);
+        return registered;
+    }
 
-        registrations.put(client.getClient().getEndpoint(), registration);
+    /**
+     * unregister the device from the osgi service registry.
+     *
+     * @param registered
+     */
+    private void unregisterService(final RegisteredDevice registered) {
+        try {
+            if (registered.remove()) {
+                restoredDeviceDone();
+            }
+        } catch (final IllegalStateException e) {
+            // IllegalStateException - If this ServiceRegistration object has
+            // already been unregistered
+            LOG.warn("ServiceRegistration object of {} has already been unregistered", registered.endpoint);
+        }
     }
 
     protected ServiceRegistration<LWM2MClientDevice> getServiceRegistrationById(final String registrationId) {
+        final RegisteredDevice registered = ensurePublished(getRegisteredDeviceById(registrationId));
+        return registered == null ? null : registered.registration;
+    }
 
-        for (final ServiceRegistration<LWM2MClientDevice> sreg : registrations.values()) {
-            final String id = (String) sreg.getReference().getProperty(Property.REGISTRATION_ID);
-            if (registrationId.equals(id)) {
-                return sreg;
-            }
+    private RegisteredDevice getRegisteredDeviceById(final String registrationId) {
+        if (registrationId == null) {
+            return null;
         }
-        return null;
+        return devicesByRegistrationId.get(registrationId);
     }
 
-    private void applyUpdate(final LWM2MClientDevice device, final ClientUpdate update) {
-        if (device == null) {
-            LOG.warn("no client to update");
-            return;
-        } else {
-            final Client cl = device.getClient();
-            final Date lastUpdate = new Date();
-            InetAddress address;
-            int port;
-            LinkObject[] lobj;
-            long lifetime;
-            BindingMode bindingMode;
-            String sms;
-
-            if (update.getAddress() != null) {
-                address = update.getAddress();
-            } else {
-                address = cl.getAddress();
-            }
+    /**
+     * @param client
+     * @return the client with the object links shared by all clients with
+     *         equal links
+     */
+    private static Client withSharedLinks(final Client client) {
+        final LinkObject[] links = sharedLinks(client.getObjectLinks());
+        if (links == client.getObjectLinks()) {
+            return client;
+        }
+        return new Client(client.getRegistrationId(), client.getEndpoint(), client.getAddress(), client.getPort(),
+            client.getLwM2mVersion(), client.getLifeTimeInSec(), client.getSmsNumber(), client.getBindingMode(),
+            links, client.getRegistrationEndpointAddress(), client.getRegistrationDate(), client.getLastUpdate());
+    }
 
-            if (update.getPort() != null) {
-                port = update.getPort();
-            } else {
-                port = cl.getPort();
-            }
+    /**
+     * @param links may be <code>null</code>
+     * @return the links of the canonical {@link ObjectLinkSet}, which is kept
+     *         by the device or the compact store
+     */
+    private static LinkObject[] sharedLinks(final LinkObject[] links) {
+        final ObjectLinkSet linkSet = ObjectLinkSet.of(links);
+        return linkSet == null ? null : linkSet.getLinks();
+    }
 
-            if (update.getObjectLinks() != null) {
-                lobj = update.getObjectLinks();
-            } else {
-                lobj = cl.getObjectLinks();
-            }
+    /**
+     * @param cl the registered client
+     * @param update
+     * @return the updated client
+     */
+    private static Client applyUpdate(final Client cl, final ClientUpdate update) {
+        final Date lastUpdate = new Date();
+        InetAddress address;
+        int port;
+        LinkObject[] lobj;
+        long lifetime;
+        BindingMode bindingMode;
+        String sms;
 
-            if (update.getLifeTimeInSec() != null) {
-                lifetime = update.getLifeTimeInSec();
-            } else {
-                lifetime = cl.getLifeTimeInSec();
-            }
+        if (update.getAddress() != null) {
+            address = update.getAddress();
+        } else {
+            address = cl.getAddress();
+        }
 
-            if (update.getBindingMode() != null) {
-                bindingMode = update.getBindingMode();
-            } else {
-                bindingMode = cl.getBindingMode();
-            }
+        if (update.getPort() != null) {
+            port = update.getPort();
+        } else {
+            port = cl.getPort();
+        }
 
-            if (update.getSmsNumber() != null) {
-                sms = update.getSmsNumber();
-            } else {
-                sms = cl.getSmsNumber();
-            }
+        if (update.getObjectLinks() != null) {
+            lobj = sharedLinks(update.getObjectLinks());
+        } else {
+            lobj = cl.getObjectLinks();
+        }
+
+        if (update.getLifeTimeInSec() != null) {
+            lifetime = update.getLifeTimeInSec();
+        } else {
+            lifetime = cl.getLifeTimeInSec();
+        }
 
-            final Client clientUpdated = new Client(cl.getRegistrationId(), cl.getEndpoint(), address, port,
-                cl.getLwM2mVersion(), lifetime, sms, bindingMode, lobj, cl.getRegistrationEndpointAddress(),
-                cl.getRegistrationDate(), lastUpdate);
+        if (update.getBindingMode() != null) {
+            bindingMode = update.getBindingMode();
+        } else {
+            bindingMode = cl.getBindingMode();
+        }
 
-            device.updateClient(clientUpdated);
+        if (update.getSmsNumber() != null) {
+            sms = update.getSmsNumber();
+        } else {
+            sms = cl.getSmsNumber();
         }
+
+        return new Client(cl.getRegistrationId(), cl.getEndpoint(), address, port, cl.getLwM2mVersion(), lifetime,
+            sms, bindingMode, lobj, cl.getRegistrationEndpointAddress(), cl.getRegistrationDate(), lastUpdate);
     }
 
     /**
@@ -349,71 +876,456 @@ public class OsgiBasedClientRegistry implements ClientRegistry {
      * registrations.
      */
     private void start() {
-        // every 5 seconds clean the registration list
-        // It is also conceivable to configure period,
-        final ScheduledFuture<?> future = schedExecutor.scheduleAtFixedRate(new Cleaner(), 1, 5, TimeUnit.SECONDS);
-        LOG.trace("start ScheduledExecutorService with Cleaner Thread, with period 60s");
+        // every clean period (5 seconds by default) remove the expired
+        // registrations
+        final ScheduledFuture<?> future = schedExecutor.scheduleAtFixedRate(new Cleaner(), 1000,
+            config.getCleanPeriod(), TimeUnit.MILLISECONDS);
+        LOG.trace("start ScheduledExecutorService with Cleaner Thread, with period {}ms", config.getCleanPeriod());
         if (future.isCancelled()) {
             LOG.trace("canceled");
         }
     }
 
     /**
-     * Stop the underlying cleanup of the registrations.
+     * Stop the underlying cleanup of the registrations and write the pending
+     * journal records.
      */
     public void stop() throws InterruptedException {
         schedExecutor.shutdownNow();
         schedExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        if (restoreExecutor != null) {
+            restoreExecutor.shutdownNow();
+            restoreExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (lookupRegistration != null) {
+            try {
+                lookupRegistration.unregister();
+            } catch (final IllegalStateException e) {
+                LOG.trace("DeviceLookupService has already been unregistered");
+            }
+        }
     }
 
     /**
-     * Cleaner Thread.
+     * Removes the registrations whose expiration time has passed, at most
+     * {@link ClientRegistryConfig#getMaxExpirationsPerClean()}. Called
+     * periodically by the Cleaner.
+     *
+     * @param now the current time in milliseconds
+     * @return the number of removed registrations
+     */
+    protected int removeExpiredRegistrations(final long now) {
+        final List<String> expired = expirations.pollExpired(now, config.getMaxExpirationsPerClean());
+
+        int removed = 0;
+        for (final String registrationId : expired) {
+            // not registering the service of a restored device about to expire
+            final RegisteredDevice registered = getRegisteredDeviceById(registrationId);
+            if (registered == null) {
+                continue;
+            }
+            // no update in between the check and the de-registration
+            synchronized (lockFor(registered.endpoint)) {
+                if (getRegisteredDeviceById(registrationId) != registered) {
+                    // deregistered concurrently
+                    continue;
+                }
+                // force de-registration
+                final long expirationTime = registered.expirationTime();
+                if (expirationTime > System.currentTimeMillis()) {
+                    // updated concurrently
+                    expirations.schedule(registrationId, expirationTime);
+                    LOG.trace(String.format("[Cleaner]: client: %s, id: %s, alive", registered.endpoint,
+                        registrationId));
+                } else {
+                    LOG.trace(String.format("[Cleaner]: client: %s, id:%s deregisterd", registered.endpoint,
+                        registrationId));
+                    if (deregisterClient(registrationId) != null) {
+                        removed++;
+                    }
+                }
+            }
+        }
+        if (expired.size() == config.getMaxExpirationsPerClean()) {
+            LOG.debug("[Cleaner]: expiration limit of {} reached, continuing with next run", expired.size());
+        }
+        return removed;
+    }
+
+    /**
+     * Cleaner Thread. Only visits the registrations whose expiration time has
+     * passed, at most {@link ClientRegistryConfig#getMaxExpirationsPerClean()}
+     * per run.
      */
     private class Cleaner implements Runnable {
 
         @Override
         public void run() {
+            try {
+                removeExpiredRegistrations(System.currentTimeMillis());
+            } catch (final RuntimeException e) {
+                // do not let an exception cancel the periodic execution
+                LOG.error("[Cleaner]: unexpected error while removing expired registrations", e);
+            }
+        }
+    }
 
-            for (final Entry<String, ServiceRegistration<LWM2MClientDevice>> e : registrations.entrySet()) {
-                // force de-registration
-                try {
-                    final ServiceReference<LWM2MClientDevice> ref = e.getValue().getReference();
-                    final LWM2MClientDevice lwmClient = context.getService(ref);
-                    if (lwmClient != null) {
-                        if (lwmClient.isAlive()) {
-                            LOG.trace(String.format("[Cleaner]: client: %s, id: %s, alive", lwmClient.getClient()
-                                .getEndpoint(), lwmClient.getClient().getRegistrationId()));
-                        } else {
-                            LOG.trace(String.format("[Cleaner]: client: %s, id:%s deregisterd", lwmClient.getClient()
-                                .getEndpoint(), lwmClient.getClient().getRegistrationId()));
-                            deregisterClient(lwmClient.getClient().getRegistrationId());
-                        }
-                    }
-                } catch (final IllegalStateException ex) {
-                    // IllegalStateException - If this ServiceRegistration
-                    // object has already been unregistered.
-                    LOG.warn(String
-                        .format("[Cleaner]: Device ServiceRegistration object with endpointId %s has already been unregistered: ",
-                            e.getKey()));
+    @Override
+    public List<LWM2MClientDevice> findDevices(final String filter) throws InvalidSyntaxException {
+        final Filter parsed = FrameworkUtil.createFilter(filter);
+        final List<LWM2MClientDevice> result = new ArrayList<>();
+        for (final RegisteredDevice registered : registrations.values()) {
+            final Dictionary<String, Object> properties = registered.getProperties();
+            // null if deregistered concurrently
+            if (properties != null && parsed.match(properties)) {
+                final LWM2MClientDevice device = registered.device();
+                if (device != null) {
+                    result.add(device);
                 }
             }
         }
+        return result;
+    }
+
+    @Override
+    public List<LWM2MClientDevice> findDevicesSupportingObject(final int objectId) {
+        final List<LWM2MClientDevice> result = new ArrayList<>();
+        for (final RegisteredDevice registered : registrations.values()) {
+            if (registered.supportsObject(objectId)) {
+                final LWM2MClientDevice device = registered.device();
+                // null if deregistered concurrently
+                if (device != null) {
+                    result.add(device);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int getDeviceCount() {
+        return registrations.size();
+    }
+
+    @Override
+    public boolean pin(final String endpoint) {
+        synchronized (lockFor(endpoint)) {
+            final Integer count = pins.get(endpoint);
+            pins.put(endpoint, count == null ? 1 : count + 1);
+            return ensurePublished(registrations.get(endpoint)) != null;
+        }
+    }
+
+    @Override
+    public void unpin(final String endpoint) {
+        synchronized (lockFor(endpoint)) {
+            final Integer count = pins.get(endpoint);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                pins.put(endpoint, count - 1);
+                return;
+            }
+            pins.remove(endpoint);
+            final RegisteredDevice registered = registrations.get(endpoint);
+            if (registered != null && !isSelected(registered) && registered.unpublish()) {
+                restoredDeviceDone();
+            }
+        }
     }
 
     @Override
     public Client findByRegistrationId(final String id) {
-        try {
-            Collection<ServiceReference<LWM2MClientDevice>> result =
-                    context.getServiceReferences(LWM2MClientDevice.class, String.format("(%s=%s)", Property.REGISTRATION_ID, id));
-            if (result.isEmpty()) {
-                return null;
+        // see get(String)
+        final RegisteredDevice registered = getRegisteredDeviceById(id);
+        return registered == null ? null : registered.client();
+    }
+
+    /**
+     * A device created by this registry together with its registration in
+     * the OSGi service registry, or a row of the compact store from which the
+     * device is created on demand.
+     */
+    private final class RegisteredDevice {
+
+        private final String endpoint;
+        /**
+         * the device, <code>null</code> while the registration is kept in the
+         * compact store, set while holding this
+         */
+        private volatile LWM2MClientDevice device;
+        /** the row in the compact store or -1, guarded by this */
+        private int row = -1;
+        /**
+         * the service registration, <code>null</code> while the service of a
+         * restored device has not been registered, set while holding this
+         */
+        private volatile ServiceRegistration<LWM2MClientDevice> registration;
+        /**
+         * whether the service is being registered, guarded by this; reset by
+         * {@link #unpublish()} to cancel the registration
+         */
+        private boolean publishing;
+        /** whether the device has been removed, guarded by this */
+        private boolean removed;
+        /** whether the device matches the publication filter */
+        private volatile boolean selected;
+        /**
+         * whether the device has been restored and is counted as unpublished,
+         * guarded by this
+         */
+        private boolean restorePending;
+        /** the properties set at the registration, guarded by this */
+        private Dictionary<String, Object> published;
+        private long publishedAt;
+        /** the properties deferred to the end of the update window */
+        private Dictionary<String, Object> pending;
+        private boolean flushScheduled;
+
+        RegisteredDevice(final LWM2MClientDevice device, final Dictionary<String, Object> published) {
+            this.endpoint = device.getClient().getEndpoint();
+            this.device = device;
+            this.published = published;
+            this.publishedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * @param client
+         * @param row the row of the client in the compact store
+         */
+        RegisteredDevice(final Client client, final int row) {
+            this.endpoint = client.getEndpoint();
+            this.row = row;
+        }
+
+        /**
+         * @return the device, created from the compact store if needed, or
+         *         <code>null</code> if it has been removed from the compact
+         *         store
+         */
+        private LWM2MClientDevice device() {
+            final LWM2MClientDevice created = device;
+            return created != null ? created : createDevice();
+        }
+
+        private synchronized LWM2MClientDevice createDevice() {
+            if (device == null && row >= 0) {
+                device = new LWM2MClientDevice(store.get(row), requestSender, schedExecutor,
+                    config.getDeviceConfig());
+                store.remove(row);
+                row = -1;
+            }
+            return device;
+        }
+
+        /**
+         * @return the registered client or <code>null</code> if it has been
+         *         removed from the compact store
+         */
+        private Client client() {
+            LWM2MClientDevice created = device;
+            if (created == null) {
+                synchronized (this) {
+                    created = device;
+                    if (created == null) {
+                        return row < 0 ? null : store.get(row);
+                    }
+                }
+            }
+            return created.getClient();
+        }
+
+        /**
+         * Replaces the registered client after an update.
+         *
+         * @param client
+         */
+        private void update(final Client client) {
+            final LWM2MClientDevice created;
+            synchronized (this) {
+                created = device;
+                if (created == null) {
+                    store.set(row, client);
+                    return;
+                }
+            }
+            created.updateClient(client);
+        }
+
+        /**
+         * @return the expiration time of the registration in milliseconds
+         */
+        private synchronized long expirationTime() {
+            return device != null ? ClientExpirationQueue.expirationTimeOf(device.getClient()) : store
+                .expirationTimeOf(row);
+        }
+
+        /**
+         * @param objectId
+         * @return <code>true</code> if the registered client links the object,
+         *         <code>false</code> if not or if the device has been removed
+         *         from the compact store
+         */
+        private boolean supportsObject(final int objectId) {
+            final LWM2MClientDevice created = device;
+            if (created != null) {
+                return created.supportsObject(objectId);
+            }
+            synchronized (this) {
+                if (device != null) {
+                    return device.supportsObject(objectId);
+                }
+                return row >= 0 && store.supportsObject(row, objectId);
+            }
+        }
+
+        /**
+         * @return new service properties of the registered client
+         */
+        private Dictionary<String, Object> newProperties() {
+            final LWM2MClientDevice created = device;
+            if (created != null) {
+                return created.getServiceRegistrationProperties(created.getClient());
+            }
+            final Client client = client();
+            return client == null ? null : LWM2MClientDevice.newServiceRegistrationProperties(client, config
+                .getDeviceConfig().getInitialTimeout());
+        }
+
+        /**
+         * Fails the queued requests of a removed device.
+         */
+        private void dispose() {
+            final LWM2MClientDevice created = device;
+            if (created != null) {
+                created.dispose();
+            }
+        }
+
+        private synchronized void markRestorePending() {
+            restorePending = true;
+        }
+
+        /**
+         * @return <code>true</code> if the device has been restored and its
+         *         service not been registered yet
+         */
+        private synchronized boolean isRestorePending() {
+            return restorePending;
+        }
+
+        /**
+         * @return <code>true</code> if the device was counted as unpublished
+         *         restored device
+         */
+        private boolean clearRestorePending() {
+            final boolean pending = restorePending;
+            restorePending = false;
+            return pending;
+        }
+
+        /**
+         * Registers the service with the latest properties unless it has been
+         * registered or removed already or is being registered.
+         * <p>
+         * The framework calls the service listeners before the registration is
+         * returned, on this thread and so while holding this. A listener
+         * looking the device up does not register it again; a removal,
+         * unpublication or property update done by a listener is applied to
+         * the registration once it is returned.
+         *
+         * @return <code>true</code> if the device was counted as unpublished
+         *         restored device
+         */
+        private synchronized boolean publish(final BundleContext context) {
+            if (registration != null || publishing || removed) {
+                return false;
+            }
+            final LWM2MClientDevice created = device();
+            if (published == null) {
+                published = created.getServiceRegistrationProperties(created.getClient());
+                publishedAt = System.currentTimeMillis();
+            }
+            final Dictionary<String, Object> properties = published;
+            final ServiceRegistration<LWM2MClientDevice> registered;
+            publishing = true;
+            try {
+                registered = context.registerService(LWM2MClientDevice.class, created, properties);
+            } catch (final RuntimeException e) {
+                publishing = false;
+                throw e;
+            }
+            if (removed || !publishing) {
+                registered.unregister();
             } else {
-                LWM2MClientDevice device = context.getService(result.iterator().next());
-                return device.getClient();
+                registration = registered;
+                if (published != properties) {
+                    registered.setProperties(published);
+                }
             }
-        } catch (InvalidSyntaxException e) {
-            LOG.error("Cannot retrieve LWM2M Client frmo OSGi registry", e);
-            return null;
+            publishing = false;
+            return clearRestorePending();
+        }
+
+        /**
+         * Unregisters the service, if it has been registered, keeping the
+         * device.
+         *
+         * @return <code>true</code> if the device was counted as unpublished
+         *         restored device
+         */
+        private synchronized boolean unpublish() {
+            publishing = false;
+            if (registration != null && !removed) {
+                registration.unregister();
+                registration = null;
+            }
+            return clearRestorePending();
+        }
+
+        /**
+         * Unregisters the service, if it has been registered.
+         *
+         * @return <code>true</code> if the device was counted as unpublished
+         *         restored device
+         * @throws IllegalStateException if the service has already been
+         *             unregistered
+         */
+        private synchronized boolean remove() {
+            removed = true;
+            if (row >= 0) {
+                store.remove(row);
+                row = -1;
+            }
+            if (registration != null) {
+                // a repeated removal is reported by the framework
+                registration.unregister();
+            }
+            return clearRestorePending();
+        }
+
+        /**
+         * @return the latest properties, including deferred ones, or
+         *         <code>null</code> if the device has been removed from the
+         *         compact store
+         */
+        private synchronized Dictionary<String, Object> getProperties() {
+            if (pending != null) {
+                return pending;
+            }
+            return published != null ? published : newProperties();
+        }
+
+        private void setProperties(final Dictionary<String, Object> properties, final long now) {
+            if (registration != null) {
+                registration.setProperties(properties);
+            }
+            published = properties;
+            publishedAt = now;
         }
     }
 
@@ -21,7 +21,6 @@ import java.util.Hashtable;
 import org.eclipse.leshan.server.client.Client;
 import org.eclipse.leshan.server.client.ClientRegistryListener;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 
@@ -31,15 +30,16 @@ import org.osgi.service.event.EventAdmin;
  */
 public class OsgiBasedClientRegistryListener implements ClientRegistryListener {
 
-    private final BundleContext context;
+    private final EventAdminTracker eventAdminTracker;
 
     /**
-     * Creates a new OsgiBasedClientRegistryListener.
+     * Creates a new OsgiBasedClientRegistryListener. Events are dropped while
+     * no {@link EventAdmin} is available.
      *
      * @param bundleContext
      */
     public OsgiBasedClientRegistryListener(final BundleContext bundleContext) {
-        context = bundleContext;
+        eventAdminTracker = new EventAdminTracker(bundleContext);
     }
 
     /**
@@ -79,14 +79,27 @@ public class OsgiBasedClientRegistryListener implements ClientRegistryListener {
 
     private void sendEvent(final String topic, final Client client) {
 
-        final ServiceReference<?> ref = context.getServiceReference(EventAdmin.class.getName());
         final Dictionary<String, Object> properties = new Hashtable<String, Object>();
 
         properties.put(Property.CLIENT, client);
 
         final Event notifyEvent = new Event(topic, properties);
 
-        final EventAdmin eventAdmin = (EventAdmin) context.getService(ref);
-        eventAdmin.postEvent(notifyEvent);
+        eventAdminTracker.postEvent(notifyEvent);
+    }
+
+    /**
+     * @return the number of events dropped because no {@link EventAdmin} was
+     *         available
+     */
+    public long getDroppedEventCount() {
+        return eventAdminTracker.getDroppedEventCount();
+    }
+
+    /**
+     * Stops tracking the {@link EventAdmin}.
+     */
+    public void close() {
+        eventAdminTracker.close();
     }
 }
@@ -24,10 +24,15 @@ public final class Property {
     public static final String REGISTRATION_EXPIRATION = "LWM2M_REGISTRATION_EXPIRATION";
     public static final String LWM2M_OBJECTS = "LWM2M_OBJECTS";
     public static final String CATEGORY_LWM2M_CLIENT = "LWM2MClient";
+    public static final String RESPONSE_TIMEOUT = "LWM2M_RESPONSE_TIMEOUT";
+    public static final String RTT_SMOOTHED = "LWM2M_RTT_SMOOTHED";
+    public static final String RTT_VARIANCE = "LWM2M_RTT_VARIANCE";
 
     public static final String LWM2MPATH = "lwm2mpath";
     public static final String LWM2MNODE = "node";
     public static final String CLIENT = "client";
+    public static final String BATCH_ENTRIES = "entries";
+    public static final String BATCH_TOPIC = "BATCH";
 
     public static final String REGISTERED_EVENT = "CLIENT_REGISTERED";
     public static final String UPDATED_EVENT = "CLIENT_UPDATED";
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+/**
+ * A small, unsynchronized {@link Dictionary} backed by two arrays, used for
+ * service properties. The framework copies the properties on registration,
+ * so a linear search over a handful of keys is cheaper to build and to read
+ * than a {@link java.util.Hashtable}.
+ */
+final class PropertyDictionary extends Dictionary<String, Object> {
+
+    private String[] keys;
+    private Object[] values;
+    private int size;
+
+    /**
+     * @param capacity the expected number of properties
+     */
+    PropertyDictionary(final int capacity) {
+        keys = new String[capacity];
+        values = new Object[capacity];
+    }
+
+    private int indexOf(final Object key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Enumeration<String> keys() {
+        return new ArrayEnumeration<>(keys, size);
+    }
+
+    @Override
+    public Enumeration<Object> elements() {
+        return new ArrayEnumeration<>(values, size);
+    }
+
+    @Override
+    public Object get(final Object key) {
+        final int i = indexOf(key);
+        return i < 0 ? null : values[i];
+    }
+
+    @Override
+    public Object put(final String key, final Object value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key and value must not be null");
+        }
+        final int i = indexOf(key);
+        if (i >= 0) {
+            final Object previous = values[i];
+            values[i] = value;
+            return previous;
+        }
+        if (size == keys.length) {
+            final int capacity = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        return null;
+    }
+
+    @Override
+    public Object remove(final Object key) {
+        final int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        final Object previous = values[i];
+        size--;
+        keys[i] = keys[size];
+        values[i] = values[size];
+        keys[size] = null;
+        values[size] = null;
+        return previous;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(keys[i]).append('=');
+            sb.append(values[i] instanceof Object[] ? Arrays.toString((Object[]) values[i]) : values[i]);
+        }
+        return sb.append('}').toString();
+    }
+
+    private static final class ArrayEnumeration<E> implements Enumeration<E> {
+
+        private final E[] elements;
+        private final int size;
+        private int next;
+
+        ArrayEnumeration(final E[] elements, final int size) {
+            this.elements = elements;
+            this.size = size;
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return next < size;
+        }
+
+        @Override
+        public E nextElement() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            return elements[next++];
+        }
+    }
+}
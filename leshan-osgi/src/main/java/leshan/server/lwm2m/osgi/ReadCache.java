@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.response.ErrorCallback;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.core.response.ResponseCallback;
+
+/**
+ * Caches the successful read responses of a device by path. Concurrent reads
+ * of the same path share a single request; a response is reused as long as
+ * it is younger than the max-age of the read. Failed reads are not cached.
+ */
+class ReadCache {
+
+    /** Sends the read request on a cache miss. */
+    interface Loader {
+        ResponseFuture<ReadResponse> load();
+    }
+
+    private static final class Entry {
+        private final ResponseFuture<ReadResponse> future = new ResponseFuture<>();
+        /** the time of the successful response in milliseconds, -1 before */
+        private volatile long responseTime = -1;
+    }
+
+    private final ConcurrentMap<LwM2mPath, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the response of a read of the given path which is pending or
+     * not older than the max-age, otherwise reads the path using the loader.
+     *
+     * @param path
+     * @param maxAge in milliseconds
+     * @param loader
+     * @return the pending response, owned by the caller, i.e. cancelling it
+     *         does not affect other readers
+     */
+    ResponseFuture<ReadResponse> read(final LwM2mPath path, final long maxAge, final Loader loader) {
+        while (true) {
+            final Entry entry = entries.get(path);
+            if (entry != null && isUsable(entry, maxAge)) {
+                return entry.future.newDependent();
+            }
+            final Entry created = new Entry();
+            final boolean added = entry == null ? entries.putIfAbsent(path, created) == null : entries.replace(path,
+                entry, created);
+            if (added) {
+                load(path, created, loader);
+                return created.future.newDependent();
+            }
+        }
+    }
+
+    /**
+     * @param path
+     * @param maxAge in milliseconds
+     * @return the cached response not older than the max-age or
+     *         <code>null</code>
+     */
+    ReadResponse getCached(final LwM2mPath path, final long maxAge) {
+        final Entry entry = entries.get(path);
+        if (entry == null || entry.responseTime < 0 || !isUsable(entry, maxAge)) {
+            return null;
+        }
+        try {
+            return entry.future.get();
+        } catch (final Exception e) {
+            // a cached response is always successful
+            return null;
+        }
+    }
+
+    private static boolean isUsable(final Entry entry, final long maxAge) {
+        if (!entry.future.isDone()) {
+            return true;
+        }
+        final long responseTime = entry.responseTime;
+        return responseTime >= 0 && System.currentTimeMillis() - responseTime <= maxAge;
+    }
+
+    private void load(final LwM2mPath path, final Entry entry, final Loader loader) {
+        // registered before the readers' callbacks, so that the response is
+        // cached once they are notified
+        entry.future.addCallback(new ResponseCallback<ReadResponse>() {
+            @Override
+            public void onResponse(final ReadResponse response) {
+                if (response != null && response.isSuccess()) {
+                    entry.responseTime = System.currentTimeMillis();
+                } else {
+                    entries.remove(path, entry);
+                }
+            }
+        }, new ErrorCallback() {
+            @Override
+            public void onError(final Exception e) {
+                entries.remove(path, entry);
+            }
+        });
+        final ResponseFuture<ReadResponse> loaded;
+        try {
+            loaded = loader.load();
+        } catch (final RuntimeException e) {
+            entry.future.completeExceptionally(e);
+            return;
+        }
+        loaded.pipeTo(entry.future);
+    }
+
+    /**
+     * Removes the responses of the given path and of the paths containing it
+     * or contained by it, e.g. after a write.
+     *
+     * @param path
+     */
+    void invalidate(final LwM2mPath path) {
+        final Iterator<LwM2mPath> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (overlaps(path, it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    private static boolean overlaps(final LwM2mPath a, final LwM2mPath b) {
+        if (a.getObjectId() != b.getObjectId()) {
+            return false;
+        }
+        if (a.getObjectInstanceId() == null || b.getObjectInstanceId() == null) {
+            return true;
+        }
+        if (!a.getObjectInstanceId().equals(b.getObjectInstanceId())) {
+            return false;
+        }
+        return a.getResourceId() == null || b.getResourceId() == null || a.getResourceId().equals(b.getResourceId());
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return the number of cached and pending reads
+     */
+    int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,822 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistry;
+import org.eclipse.leshan.server.client.ClientUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the registrations of the
+ * {@link OsgiBasedClientRegistry}.
+ * <p>
+ * Register, update and deregister operations are encoded as records (length,
+ * CRC32, payload) and collected in memory; a writer thread appends all records
+ * collected within the commit window with a single {@link FileChannel} write
+ * and forces them to disk (group commit). After
+ * {@link JournalConfig#getSnapshotThreshold()} records, the writer switches to
+ * a new journal file, writes the current registrations to a snapshot and
+ * deletes the older files. A snapshot is named
+ * <code>registry-&lt;generation&gt;.snapshot</code> and holds the state at some
+ * point after the journal <code>registry-&lt;generation&gt;.journal</code> has
+ * been started; replaying the journal over the snapshot yields the latest
+ * state, since every record sets the values it carries.
+ * <p>
+ * Records are appended by the registry while it holds the lock of the
+ * endpoint, after the operation has been applied, so that a snapshot contains
+ * all operations written to the previous journal files.
+ * <p>
+ * Files which could not be recovered are never compacted: the journal refuses
+ * to open until they have been moved aside with {@link #setAside()}.
+ */
+final class RegistrationJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RegistrationJournal.class);
+
+    private static final Pattern FILE_NAME = Pattern.compile("registry-(\\d+)\\.(journal|snapshot)");
+    private static final String JOURNAL = "journal";
+    private static final String SNAPSHOT = "snapshot";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte REGISTER = 1;
+    private static final byte UPDATE = 2;
+    private static final byte DEREGISTER = 3;
+
+    /** flags of the values carried by an update record */
+    private static final int UPDATE_ADDRESS = 1;
+    private static final int UPDATE_PORT = 1 << 1;
+    private static final int UPDATE_LIFETIME = 1 << 2;
+    private static final int UPDATE_SMS = 1 << 3;
+    private static final int UPDATE_BINDING = 1 << 4;
+    private static final int UPDATE_LINKS = 1 << 5;
+
+    /** upper bound of a record, larger lengths indicate a corrupted file */
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    /** size of the chunks a snapshot is written in */
+    private static final int SNAPSHOT_CHUNK = 64 * 1024;
+
+    private final JournalConfig config;
+    private final File directory;
+
+    private final Object lock = new Object();
+    /** the records not yet written, guarded by lock */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingRecords;
+    /** the records appended since the last snapshot, guarded by lock */
+    private int recordsSinceSnapshot;
+    private boolean snapshotRequested;
+    private boolean closed;
+    /** the error the writer thread stopped with, guarded by lock */
+    private Throwable writerFailure;
+    /** set if the files could not be recovered and have not been set aside */
+    private boolean recoveryFailed;
+
+    /** only accessed by the writer thread after {@link #open(ClientRegistry)} */
+    private FileChannel channel;
+    private long generation;
+    private ClientRegistry registry;
+    private Thread writer;
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong writtenRecords = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+
+    /**
+     * @param config
+     */
+    RegistrationJournal(final JournalConfig config) {
+        this.config = config;
+        this.directory = config.getDirectory();
+    }
+
+    /**
+     * Reads the latest complete snapshot and the journal files written after
+     * it.
+     *
+     * @param now the current time in milliseconds
+     * @return the registrations which did not expire at <code>now</code>, in
+     *         the order of their last registration
+     * @throws IOException if the directory cannot be read
+     */
+    Collection<Client> recover(final long now) throws IOException {
+        recoveryFailed = true;
+        if (!directory.isDirectory()) {
+            recoveryFailed = false;
+            return new ArrayList<>();
+        }
+        final TreeSet<Long> journals = new TreeSet<>();
+        long snapshot = -1;
+        final String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("cannot list journal directory " + directory);
+        }
+        for (final String name : names) {
+            final Matcher matcher = FILE_NAME.matcher(name);
+            if (matcher.matches()) {
+                final long fileGeneration = Long.parseLong(matcher.group(1));
+                if (JOURNAL.equals(matcher.group(2))) {
+                    journals.add(fileGeneration);
+                } else {
+                    snapshot = Math.max(snapshot, fileGeneration);
+                }
+            }
+        }
+
+        final State state = new State();
+        if (snapshot >= 0) {
+            replay(file(snapshot, SNAPSHOT), state);
+        }
+        for (final Long journal : journals.tailSet(Math.max(snapshot, 0L))) {
+            replay(file(journal, JOURNAL), state);
+        }
+
+        final Collection<Client> clients = new ArrayList<>(state.byEndpoint.size());
+        int expired = 0;
+        for (final Client client : state.byEndpoint.values()) {
+            if (ClientExpirationQueue.expirationTimeOf(client) > now) {
+                clients.add(client);
+            } else {
+                expired++;
+            }
+        }
+        LOG.info("Recovered {} registrations from {}, dropped {} expired registrations", clients.size(), directory,
+            expired);
+        recoveryFailed = false;
+        return clients;
+    }
+
+    /**
+     * Moves the files of a journal which could not be recovered to a new
+     * subdirectory, where they are kept for a manual recovery, so that a new
+     * journal can be opened.
+     *
+     * @return the directory the files have been moved to
+     * @throws IOException if the files cannot be moved
+     */
+    File setAside() throws IOException {
+        final File target = new File(directory, "unrecovered-" + System.currentTimeMillis());
+        Files.createDirectory(target.toPath());
+        final String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("cannot list journal directory " + directory);
+        }
+        for (final String name : names) {
+            if (FILE_NAME.matcher(name).matches()) {
+                Files.move(new File(directory, name).toPath(), new File(target, name).toPath());
+            }
+        }
+        recoveryFailed = false;
+        return target;
+    }
+
+    /**
+     * Starts a new journal file and the writer thread, which writes the
+     * current registrations of the registry to a snapshot in the background.
+     * Until then, the previous files are kept for recovery.
+     *
+     * @param clientRegistry the registry taking snapshots from
+     * @throws IOException if the files cannot be written or the previous
+     *         files could not be recovered and have not been set aside
+     */
+    void open(final ClientRegistry clientRegistry) throws IOException {
+        if (recoveryFailed) {
+            throw new IOException("the registrations in " + directory
+                    + " have not been recovered, not compacting the journal");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create journal directory " + directory);
+        }
+        this.registry = clientRegistry;
+        long last = 0;
+        final String[] names = directory.list();
+        if (names != null) {
+            for (final String name : names) {
+                final Matcher matcher = FILE_NAME.matcher(name);
+                if (matcher.matches()) {
+                    last = Math.max(last, Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        generation = last;
+        rotate();
+        snapshotRequested = true;
+
+        writer = new Thread(new Writer(), "LWM2M registry journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends the registration of the client.
+     *
+     * @param client
+     */
+    void register(final Client client) {
+        final Encoder encoder = new Encoder();
+        try {
+            encoder.writeClient(client);
+        } catch (final IOException e) {
+            // not thrown by the in-memory stream
+            throw new IllegalStateException(e);
+        }
+        append(encoder);
+    }
+
+    /**
+     * Appends the update of a registration.
+     *
+     * @param update the values sent by the client
+     * @param updated the updated client, providing the update time
+     */
+    void update(final ClientUpdate update, final Client updated) {
+        final Encoder encoder = new Encoder();
+        try {
+            encoder.writeByte(UPDATE);
+            encoder.writeString(update.getRegistrationId());
+            encoder.writeLong(updated.getLastUpdate().getTime());
+            int flags = 0;
+            flags |= update.getAddress() != null ? UPDATE_ADDRESS : 0;
+            flags |= update.getPort() != null ? UPDATE_PORT : 0;
+            flags |= update.getLifeTimeInSec() != null ? UPDATE_LIFETIME : 0;
+            flags |= update.getSmsNumber() != null ? UPDATE_SMS : 0;
+            flags |= update.getBindingMode() != null ? UPDATE_BINDING : 0;
+            flags |= update.getObjectLinks() != null ? UPDATE_LINKS : 0;
+            encoder.writeByte(flags);
+            if (update.getAddress() != null) {
+                encoder.writeAddress(update.getAddress());
+            }
+            if (update.getPort() != null) {
+                encoder.writeInt(update.getPort());
+            }
+            if (update.getLifeTimeInSec() != null) {
+                encoder.writeLong(update.getLifeTimeInSec());
+            }
+            if (update.getSmsNumber() != null) {
+                encoder.writeString(update.getSmsNumber());
+            }
+            if (update.getBindingMode() != null) {
+                encoder.writeString(update.getBindingMode().name());
+            }
+            if (update.getObjectLinks() != null) {
+                encoder.writeLinks(update.getObjectLinks());
+            }
+        } catch (final IOException e) {
+            // not thrown by the in-memory stream
+            throw new IllegalStateException(e);
+        }
+        append(encoder);
+    }
+
+    /**
+     * Appends the deregistration.
+     *
+     * @param registrationId
+     */
+    void deregister(final String registrationId) {
+        final Encoder encoder = new Encoder();
+        try {
+            encoder.writeByte(DEREGISTER);
+            encoder.writeString(registrationId);
+        } catch (final IOException e) {
+            // not thrown by the in-memory stream
+            throw new IllegalStateException(e);
+        }
+        append(encoder);
+    }
+
+    private void append(final Encoder encoder) {
+        synchronized (lock) {
+            if (closed) {
+                LOG.trace("journal closed, dropping record");
+                return;
+            }
+            if (writerFailure != null) {
+                LOG.debug("journal writer failed, dropping record");
+                return;
+            }
+            try {
+                encoder.frameTo(pending);
+            } catch (final IOException e) {
+                // not thrown by the in-memory stream
+                throw new IllegalStateException(e);
+            }
+            pendingRecords++;
+            if (pendingRecords == 1) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the pending records, stops the writer thread and closes the
+     * journal file. Further records are dropped.
+     */
+    void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the error the writer thread stopped with, <code>null</code> if
+     *         it is running or has been closed
+     */
+    Throwable getWriterFailure() {
+        synchronized (lock) {
+            return writerFailure;
+        }
+    }
+
+    /**
+     * @return the number of group commits
+     */
+    long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * @return the number of records written to the journal files
+     */
+    long getWrittenRecordCount() {
+        return writtenRecords.get();
+    }
+
+    /**
+     * @return the number of snapshots written
+     */
+    long getSnapshotCount() {
+        return snapshots.get();
+    }
+
+    /**
+     * Commits the pending records in batches until closed.
+     */
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (commitNext()) {
+                    // next batch
+                }
+            } catch (final InterruptedException e) {
+                LOG.error("journal writer interrupted, registrations are no longer persisted");
+                stopBuffering(e);
+            } catch (final RuntimeException | Error e) {
+                LOG.error("journal writer failed, registrations are no longer persisted", e);
+                stopBuffering(e);
+            } finally {
+                closeChannel();
+            }
+        }
+
+        /**
+         * Drops the pending records, further records are dropped by
+         * {@link RegistrationJournal#append(Encoder)}.
+         */
+        private void stopBuffering(final Throwable failure) {
+            synchronized (lock) {
+                writerFailure = failure;
+                pending = new ByteArrayOutputStream();
+                pendingRecords = 0;
+            }
+        }
+    }
+
+    /**
+     * Waits for pending records, collects further records for the commit
+     * window and writes them.
+     *
+     * @return <code>false</code> if the journal has been closed
+     */
+    private boolean commitNext() throws InterruptedException {
+        final ByteArrayOutputStream batch;
+        final int batchRecords;
+        final boolean snapshot;
+        synchronized (lock) {
+            while (pendingRecords == 0 && !snapshotRequested && !closed) {
+                lock.wait();
+            }
+            final long deadline = System.currentTimeMillis() + config.getCommitWindow();
+            long remaining = config.getCommitWindow();
+            while (remaining > 0 && !closed) {
+                lock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (pendingRecords == 0 && (closed || !snapshotRequested)) {
+                return false;
+            }
+            batch = pending;
+            batchRecords = pendingRecords;
+            pending = new ByteArrayOutputStream(Math.max(32, batch.size()));
+            pendingRecords = 0;
+            recordsSinceSnapshot += batchRecords;
+            snapshot = snapshotRequested || recordsSinceSnapshot >= config.getSnapshotThreshold();
+            if (snapshot) {
+                // the records appended from now on go to the next journal
+                recordsSinceSnapshot = 0;
+                snapshotRequested = false;
+            }
+        }
+
+        try {
+            write(channel, ByteBuffer.wrap(batch.toByteArray()));
+            channel.force(false);
+            commits.incrementAndGet();
+            writtenRecords.addAndGet(batchRecords);
+        } catch (final IOException e) {
+            LOG.error("cannot write " + batchRecords + " records to the registry journal, taking a snapshot", e);
+            requestSnapshot();
+        }
+        if (snapshot) {
+            try {
+                rotate();
+                writeSnapshot();
+            } catch (final IOException e) {
+                LOG.error("cannot write snapshot of the registrations", e);
+            }
+        }
+        return true;
+    }
+
+    private void requestSnapshot() {
+        synchronized (lock) {
+            snapshotRequested = true;
+        }
+    }
+
+    /**
+     * Closes the current journal file and starts the one of the next
+     * generation.
+     */
+    private void rotate() throws IOException {
+        final long next = generation + 1;
+        final FileChannel nextChannel = FileChannel.open(file(next, JOURNAL).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        closeChannel();
+        channel = nextChannel;
+        generation = next;
+    }
+
+    /**
+     * Writes the registrations of the registry to the snapshot of the current
+     * generation and deletes the files of the previous generations.
+     */
+    private void writeSnapshot() throws IOException {
+        final File target = file(generation, SNAPSHOT);
+        final File tmp = new File(directory, target.getName() + ".tmp");
+        int written = 0;
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteArrayOutputStream chunk = new ByteArrayOutputStream(SNAPSHOT_CHUNK + 1024);
+            for (final Client client : registry.allClients()) {
+                final Encoder encoder = new Encoder();
+                encoder.writeClient(client);
+                encoder.frameTo(chunk);
+                written++;
+                if (chunk.size() >= SNAPSHOT_CHUNK) {
+                    write(out, ByteBuffer.wrap(chunk.toByteArray()));
+                    chunk.reset();
+                }
+            }
+            write(out, ByteBuffer.wrap(chunk.toByteArray()));
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        snapshots.incrementAndGet();
+        LOG.debug("Wrote snapshot {} with {} registrations", target, written);
+
+        final String[] names = directory.list();
+        if (names != null) {
+            for (final String name : names) {
+                final Matcher matcher = FILE_NAME.matcher(name);
+                if (matcher.matches() && Long.parseLong(matcher.group(1)) < generation
+                        && !new File(directory, name).delete()) {
+                    LOG.warn("cannot delete outdated journal file {}", name);
+                }
+            }
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (final IOException e) {
+                LOG.warn("cannot close registry journal", e);
+            }
+            channel = null;
+        }
+    }
+
+    private File file(final long fileGeneration, final String type) {
+        return new File(directory, "registry-" + fileGeneration + "." + type);
+    }
+
+    private static void write(final FileChannel out, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Applies the records of a file to the state. Stops at the first
+     * incomplete or corrupted record, e.g. one torn by a crash. A record
+     * which cannot be decoded although its CRC matches is skipped.
+     */
+    private static void replay(final File file, final State state) throws IOException {
+        int records = 0;
+        try (InputStream fileIn = Files.newInputStream(file.toPath());
+                DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn))) {
+            while (true) {
+                final byte[] payload;
+                try {
+                    final int length = in.readInt();
+                    final int crc = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        LOG.warn("corrupted record in {} after {} records, ignoring the rest", file, records);
+                        return;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (crc != crcOf(payload)) {
+                        LOG.warn("corrupted record in {} after {} records, ignoring the rest", file, records);
+                        return;
+                    }
+                } catch (final EOFException e) {
+                    // end of file or a record torn by a crash
+                    return;
+                }
+                try {
+                    state.apply(new Decoder(payload));
+                } catch (final IOException | RuntimeException e) {
+                    LOG.warn("cannot decode record " + records + " of " + file + ", skipping it", e);
+                }
+                records++;
+            }
+        } finally {
+            LOG.debug("Replayed {} records of {}", records, file);
+        }
+    }
+
+    private static int crcOf(final byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The registrations rebuilt from the records.
+     */
+    private static final class State {
+
+        private final Map<String, Client> byEndpoint = new LinkedHashMap<>();
+        private final Map<String, String> endpointByRegistrationId = new HashMap<>();
+
+        private void apply(final Decoder in) throws IOException {
+            final byte type = in.readByte();
+            switch (type) {
+            case REGISTER:
+                final Client client = in.readClient();
+                // re-insert at the end, keeping the order of registration
+                final Client stale = byEndpoint.remove(client.getEndpoint());
+                if (stale != null) {
+                    endpointByRegistrationId.remove(stale.getRegistrationId());
+                }
+                byEndpoint.put(client.getEndpoint(), client);
+                endpointByRegistrationId.put(client.getRegistrationId(), client.getEndpoint());
+                break;
+            case UPDATE:
+                applyUpdate(in);
+                break;
+            case DEREGISTER:
+                final String endpoint = endpointByRegistrationId.remove(in.readString());
+                if (endpoint != null) {
+                    byEndpoint.remove(endpoint);
+                }
+                break;
+            default:
+                throw new IOException("unknown journal record type " + type);
+            }
+        }
+
+        private void applyUpdate(final Decoder in) throws IOException {
+            final String registrationId = in.readString();
+            final long lastUpdate = in.readLong();
+            final int flags = in.readByte();
+            final String endpoint = endpointByRegistrationId.get(registrationId);
+            final Client cl = endpoint == null ? null : byEndpoint.get(endpoint);
+            if (cl == null) {
+                // deregistered in the snapshot already
+                return;
+            }
+            final InetAddress address = (flags & UPDATE_ADDRESS) != 0 ? in.readAddress() : cl.getAddress();
+            final int port = (flags & UPDATE_PORT) != 0 ? in.readInt() : cl.getPort();
+            final Long lifetime = (flags & UPDATE_LIFETIME) != 0 ? Long.valueOf(in.readLong()) : cl
+                .getLifeTimeInSec();
+            final String sms = (flags & UPDATE_SMS) != 0 ? in.readString() : cl.getSmsNumber();
+            final BindingMode bindingMode = (flags & UPDATE_BINDING) != 0 ? BindingMode.valueOf(in.readString())
+                    : cl.getBindingMode();
+            final LinkObject[] links = (flags & UPDATE_LINKS) != 0 ? in.readLinks() : cl.getObjectLinks();
+            byEndpoint.put(endpoint, new Client(registrationId, endpoint, address, port, cl.getLwM2mVersion(),
+                lifetime, sms, bindingMode, links, cl.getRegistrationEndpointAddress(), cl.getRegistrationDate(),
+                new Date(lastUpdate)));
+        }
+    }
+
+    /**
+     * Encodes the payload of a record.
+     */
+    private static final class Encoder extends DataOutputStream {
+
+        Encoder() {
+            super(new ByteArrayOutputStream(256));
+        }
+
+        private void writeClient(final Client client) throws IOException {
+            writeByte(REGISTER);
+            writeString(client.getRegistrationId());
+            writeString(client.getEndpoint());
+            writeAddress(client.getAddress());
+            writeInt(client.getPort());
+            writeString(client.getLwM2mVersion());
+            final Long lifetime = client.getLifeTimeInSec();
+            writeLong(lifetime == null ? -1 : lifetime);
+            writeString(client.getSmsNumber());
+            writeString(client.getBindingMode() == null ? null : client.getBindingMode().name());
+            writeLinks(client.getObjectLinks());
+            final InetSocketAddress registrationEndpoint = client.getRegistrationEndpointAddress();
+            writeBoolean(registrationEndpoint != null);
+            if (registrationEndpoint != null) {
+                // the address is missing if the endpoint is unresolved
+                writeString(registrationEndpoint.getHostString());
+                writeAddress(registrationEndpoint.getAddress());
+                writeInt(registrationEndpoint.getPort());
+            }
+            writeLong(client.getRegistrationDate().getTime());
+            writeLong(client.getLastUpdate().getTime());
+        }
+
+        private void writeString(final String value) throws IOException {
+            if (value == null) {
+                writeInt(-1);
+            } else {
+                final byte[] bytes = value.getBytes(UTF_8);
+                writeInt(bytes.length);
+                write(bytes);
+            }
+        }
+
+        private void writeAddress(final InetAddress address) throws IOException {
+            final byte[] bytes = address == null ? new byte[0] : address.getAddress();
+            writeByte(bytes.length);
+            write(bytes);
+        }
+
+        private void writeLinks(final LinkObject[] links) throws IOException {
+            writeString(links == null ? null : LinkObject.serialyse(links));
+        }
+
+        /**
+         * Writes length, CRC and payload of the record to the stream.
+         */
+        private void frameTo(final ByteArrayOutputStream target) throws IOException {
+            final byte[] payload = ((ByteArrayOutputStream) out).toByteArray();
+            final DataOutputStream frame = new DataOutputStream(target);
+            frame.writeInt(payload.length);
+            frame.writeInt(crcOf(payload));
+            frame.write(payload);
+        }
+    }
+
+    /**
+     * Decodes the payload of a record.
+     */
+    private static final class Decoder {
+
+        private final ByteBuffer buffer;
+
+        Decoder(final byte[] payload) {
+            this.buffer = ByteBuffer.wrap(payload);
+        }
+
+        private byte readByte() {
+            return buffer.get();
+        }
+
+        private int readInt() {
+            return buffer.getInt();
+        }
+
+        private long readLong() {
+            return buffer.getLong();
+        }
+
+        private String readString() {
+            final int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            final String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        private InetAddress readAddress() throws IOException {
+            final int length = buffer.get();
+            if (length == 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return InetAddress.getByAddress(bytes);
+        }
+
+        private LinkObject[] readLinks() {
+            final String links = readString();
+            if (links == null) {
+                return null;
+            }
+            return links.isEmpty() ? new LinkObject[0] : LinkObject.parse(links.getBytes(UTF_8));
+        }
+
+        private Client readClient() throws IOException {
+            final String registrationId = readString();
+            final String endpoint = readString();
+            final InetAddress address = readAddress();
+            final int port = readInt();
+            final String version = readString();
+            final long lifetime = readLong();
+            final String sms = readString();
+            final String bindingMode = readString();
+            final LinkObject[] links = readLinks();
+            InetSocketAddress registrationEndpoint = null;
+            if (readByte() != 0) {
+                final String host = readString();
+                final InetAddress registrationAddress = readAddress();
+                final int registrationPort = readInt();
+                registrationEndpoint = registrationAddress == null ? InetSocketAddress.createUnresolved(host,
+                    registrationPort) : new InetSocketAddress(registrationAddress, registrationPort);
+            }
+            final Date registrationDate = new Date(readLong());
+            final Date lastUpdate = new Date(readLong());
+            return new Client(registrationId, endpoint, address, port, version, lifetime < 0 ? null : lifetime,
+                sms, bindingMode == null ? null : BindingMode.valueOf(bindingMode), links, registrationEndpoint,
+                registrationDate, lastUpdate);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.leshan.core.response.ErrorCallback;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ResponseCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The pending response of an asynchronous request sent to a LWM2M client.
+ * Besides the blocking {@link Future} methods, callbacks can be registered
+ * which are invoked once the response is available, the request failed or
+ * timed out, or the future has been cancelled.
+ * <p>
+ * Callbacks are invoked on the thread completing the future (usually a
+ * thread of the CoAP stack) and therefore must not block.
+ *
+ * @param <T> the type of the response
+ */
+public class ResponseFuture<T extends LwM2mResponse> implements Future<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResponseFuture.class);
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Callbacks<T>> callbacks = new ArrayList<>(1);
+    private final List<Runnable> completionHandlers = new ArrayList<>(1);
+    private boolean completed;
+    private volatile boolean sent;
+    /** the {@link System#nanoTime()} the request has been sent at */
+    private volatile long sentAt;
+    private T response;
+    private Exception error;
+
+    /**
+     * Registers callbacks to be invoked on completion. If the future is
+     * already completed the matching callback is invoked immediately.
+     *
+     * @param responseCallback invoked with the response, may be
+     *        <code>null</code>
+     * @param errorCallback invoked with the error, a
+     *        {@link org.eclipse.leshan.core.request.exception.TimeoutException}
+     *        on timeout or a {@link CancellationException} on cancellation;
+     *        may be <code>null</code>
+     * @return this future
+     */
+    public ResponseFuture<T> addCallback(final ResponseCallback<T> responseCallback,
+            final ErrorCallback errorCallback) {
+        final Callbacks<T> cb = new Callbacks<>(responseCallback, errorCallback);
+        synchronized (this) {
+            if (!completed) {
+                callbacks.add(cb);
+                return this;
+            }
+        }
+        cb.invoke(response, error);
+        return this;
+    }
+
+    /**
+     * Registers an action run once this future is completed in any way.
+     * Intended for resource cleanup like cancelling timers.
+     *
+     * @param handler
+     */
+    void onCompletion(final Runnable handler) {
+        synchronized (this) {
+            if (!completed) {
+                completionHandlers.add(handler);
+                return;
+            }
+        }
+        handler.run();
+    }
+
+    /**
+     * Marks the request as sent to the client, as opposed to waiting in a
+     * queue.
+     */
+    synchronized void markSent() {
+        sentAt = System.nanoTime();
+        sent = true;
+        notifyAll();
+    }
+
+    /**
+     * @return <code>true</code> if the request has been sent to the client
+     */
+    boolean isSent() {
+        return sent;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} the request has been sent at,
+     *         only meaningful if {@link #isSent()}
+     */
+    long getSentAt() {
+        return sentAt;
+    }
+
+    /**
+     * Waits until the request has been sent or this future is completed,
+     * e.g. while the request waits for a free slot.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return <code>false</code> if the timeout elapsed before
+     * @throws InterruptedException
+     */
+    synchronized boolean awaitSent(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!sent && !completed) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Completes the given future like this future once this future is
+     * completed.
+     *
+     * @param target
+     */
+    void pipeTo(final ResponseFuture<T> target) {
+        addCallback(new ResponseCallback<T>() {
+            @Override
+            public void onResponse(final T response) {
+                target.complete(response);
+            }
+        }, new ErrorCallback() {
+            @Override
+            public void onError(final Exception e) {
+                target.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Returns a new future completed like this future, used to hand out a
+     * shared response: cancelling the returned future does not cancel this
+     * one.
+     *
+     * @return the dependent future
+     */
+    ResponseFuture<T> newDependent() {
+        final ResponseFuture<T> dependent = new ResponseFuture<>();
+        pipeTo(dependent);
+        return dependent;
+    }
+
+    /**
+     * Completes this future with the given response.
+     *
+     * @param response
+     * @return <code>true</code> if this call completed the future
+     */
+    public boolean complete(final T response) {
+        return doComplete(response, null);
+    }
+
+    /**
+     * Completes this future with the given error.
+     *
+     * @param error
+     * @return <code>true</code> if this call completed the future
+     */
+    public boolean completeExceptionally(final Exception error) {
+        if (error == null) {
+            throw new NullPointerException("error must not be null");
+        }
+        return doComplete(null, error);
+    }
+
+    private boolean doComplete(final T response, final Exception error) {
+        final List<Callbacks<T>> toNotify;
+        final List<Runnable> handlers;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            this.response = response;
+            this.error = error;
+            completed = true;
+            toNotify = new ArrayList<>(callbacks);
+            handlers = new ArrayList<>(completionHandlers);
+            callbacks.clear();
+            completionHandlers.clear();
+            // wakes up awaitSent()
+            notifyAll();
+        }
+        done.countDown();
+        for (final Runnable handler : handlers) {
+            handler.run();
+        }
+        for (final Callbacks<T> cb : toNotify) {
+            cb.invoke(response, error);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return doComplete(null, new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return error instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    @Override
+    public T get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    private synchronized T report() throws ExecutionException {
+        if (error instanceof CancellationException) {
+            throw (CancellationException) error;
+        } else if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return response;
+    }
+
+    private static final class Callbacks<T extends LwM2mResponse> {
+
+        private final ResponseCallback<T> responseCallback;
+        private final ErrorCallback errorCallback;
+
+        Callbacks(final ResponseCallback<T> responseCallback, final ErrorCallback errorCallback) {
+            this.responseCallback = responseCallback;
+            this.errorCallback = errorCallback;
+        }
+
+        void invoke(final T response, final Exception error) {
+            try {
+                if (error == null) {
+                    if (responseCallback != null) {
+                        responseCallback.onResponse(response);
+                    }
+                } else if (errorCallback != null) {
+                    errorCallback.onError(error);
+                }
+            } catch (final RuntimeException e) {
+                LOG.warn("Response callback failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+/**
+ * Estimates the round trip time of a device and derives a response timeout
+ * from it, following the retransmission timer computation of RFC 6298:
+ * <code>timeout = SRTT + max(G, 4 * RTTVAR)</code>, doubled on each timeout
+ * (back-off) until the next response.
+ * <p>
+ * Karn's rule (RFC 6298, section 3) is not applied: the request sender does
+ * not report whether the CoAP layer retransmitted a request, and the elapsed
+ * time does not tell either (separate responses, slow links). A round trip
+ * is measured from the first transmission, so a retransmitted exchange
+ * overestimates the round trip time rather than underestimating it.
+ */
+class RttEstimator {
+
+    /** clock granularity in milliseconds */
+    private static final long GRANULARITY = 10L;
+
+    private final long initialTimeout;
+    private final long minTimeout;
+    private final long maxTimeout;
+
+    private long smoothedRtt = -1;
+    private long rttVariance;
+    private long timeout;
+
+    /**
+     * @param initialTimeout the timeout in milliseconds used until the first
+     *        response has been measured
+     * @param minTimeout lower bound of the timeout in milliseconds
+     * @param maxTimeout upper bound of the timeout in milliseconds
+     */
+    RttEstimator(final long initialTimeout, final long minTimeout, final long maxTimeout) {
+        this.initialTimeout = initialTimeout;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.timeout = initialTimeout;
+    }
+
+    /**
+     * Adds a measured round trip time.
+     *
+     * @param rtt in milliseconds
+     */
+    synchronized void addSample(final long rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            // RTTVAR <- 3/4 * RTTVAR + 1/4 * |SRTT - R'|
+            // SRTT <- 7/8 * SRTT + 1/8 * R'
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+        timeout = bound(smoothedRtt + Math.max(GRANULARITY, 4 * rttVariance));
+    }
+
+    /**
+     * Backs off the timeout after a request timed out.
+     */
+    synchronized void onTimeout() {
+        timeout = bound(timeout * 2);
+    }
+
+    private long bound(final long value) {
+        return Math.min(maxTimeout, Math.max(minTimeout, value));
+    }
+
+    /**
+     * @return the current timeout in milliseconds
+     */
+    synchronized long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds or -1 if no sample
+     *         has been measured yet
+     */
+    synchronized long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * @return the round trip time variance in milliseconds
+     */
+    synchronized long getRttVariance() {
+        return rttVariance;
+    }
+
+    /**
+     * Forgets all samples, e.g. after the device changed its address.
+     */
+    synchronized void reset() {
+        smoothedRtt = -1;
+        rttVariance = 0;
+        timeout = initialTimeout;
+    }
+}
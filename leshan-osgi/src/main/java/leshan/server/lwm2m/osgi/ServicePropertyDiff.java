@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compares the service properties of a {@link LWM2MClientDevice} before and
+ * after a registration update, distinguishing values which change with every
+ * update (expiration, round trip time) from the structural ones.
+ */
+final class ServicePropertyDiff {
+
+    /** the kind of a change of the service properties */
+    enum Change {
+        /** all properties are equal */
+        NONE,
+        /** only properties changing with every update differ */
+        VOLATILE,
+        /** other properties differ */
+        STRUCTURAL
+    }
+
+    private static final Set<String> VOLATILE_KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        Property.REGISTRATION_EXPIRATION, Property.RESPONSE_TIMEOUT, Property.RTT_SMOOTHED, Property.RTT_VARIANCE)));
+
+    private ServicePropertyDiff() {
+
+    }
+
+    /**
+     * @param previous the published properties
+     * @param next the new properties
+     * @return the kind of the change
+     */
+    static Change compare(final Dictionary<String, ?> previous, final Dictionary<String, ?> next) {
+        if (previous == null) {
+            return Change.STRUCTURAL;
+        }
+        Change change = Change.NONE;
+        for (final Enumeration<String> keys = next.keys(); keys.hasMoreElements();) {
+            final String key = keys.nextElement();
+            if (!valueEquals(previous.get(key), next.get(key))) {
+                if (!VOLATILE_KEYS.contains(key)) {
+                    return Change.STRUCTURAL;
+                }
+                change = Change.VOLATILE;
+            }
+        }
+        for (final Enumeration<String> keys = previous.keys(); keys.hasMoreElements();) {
+            final String key = keys.nextElement();
+            if (next.get(key) == null) {
+                if (!VOLATILE_KEYS.contains(key)) {
+                    return Change.STRUCTURAL;
+                }
+                change = Change.VOLATILE;
+            }
+        }
+        return change;
+    }
+
+    /**
+     * @return the absolute difference of the registration expiration times in
+     *         milliseconds
+     */
+    static long expirationDelta(final Dictionary<String, ?> previous, final Dictionary<String, ?> next) {
+        return Math.abs(expirationOf(next) - expirationOf(previous));
+    }
+
+    private static long expirationOf(final Dictionary<String, ?> properties) {
+        final Object expiration = properties.get(Property.REGISTRATION_EXPIRATION);
+        return expiration instanceof Long ? (Long) expiration : 0;
+    }
+
+    private static boolean valueEquals(final Object a, final Object b) {
+        if (a == b) {
+            // e.g. the shared object links of a client
+            return true;
+        }
+        if (a instanceof Object[] && b instanceof Object[]) {
+            return Arrays.deepEquals((Object[]) a, (Object[]) b);
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+}
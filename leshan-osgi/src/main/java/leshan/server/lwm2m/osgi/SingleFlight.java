@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+
+/**
+ * Single-flight execution of the idempotent requests of a device: while a
+ * request of a given type and path is pending, identical requests do not
+ * start another exchange but share its response.
+ */
+class SingleFlight {
+
+    /** Starts the exchange of a request which is not pending yet. */
+    interface Call<T extends LwM2mResponse> {
+        ResponseFuture<T> call();
+    }
+
+    /** request type and path */
+    private static final class Key {
+        private final Class<?> type;
+        private final LwM2mPath path;
+
+        Key(final DownlinkRequest<?> request) {
+            this.type = request.getClass();
+            this.path = request.getPath();
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return type == other.type && path.equals(other.path);
+        }
+    }
+
+    private final ConcurrentMap<Key, ResponseFuture<?>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Shares the response of a pending identical request or starts the
+     * exchange.
+     *
+     * @param request
+     * @param call starts the exchange
+     * @return the pending response, owned by the caller, i.e. cancelling it
+     *         does not affect other callers
+     */
+    @SuppressWarnings("unchecked")
+    <T extends LwM2mResponse> ResponseFuture<T> execute(final DownlinkRequest<T> request, final Call<T> call) {
+        requests.incrementAndGet();
+        final Key key = new Key(request);
+        final ResponseFuture<T> created = new ResponseFuture<>();
+        final ResponseFuture<?> existing = pending.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            // same request type, so the same response type
+            return ((ResponseFuture<T>) existing).newDependent();
+        }
+        created.onCompletion(new Runnable() {
+            @Override
+            public void run() {
+                pending.remove(key, created);
+            }
+        });
+        try {
+            call.call().pipeTo(created);
+        } catch (final RuntimeException e) {
+            created.completeExceptionally(e);
+        }
+        return created.newDependent();
+    }
+
+    /**
+     * @return the number of requests passed to
+     *         {@link #execute(DownlinkRequest, Call)}
+     */
+    long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests which shared the response of a pending
+     *         identical request
+     */
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+/**
+ * Configuration of the batching mode of the {@link Lwm2mEventPublisher}. A
+ * new instance holds the default values.
+ */
+public class EventBatchConfig {
+
+    /** How notifications are grouped into batches. */
+    public enum Grouping {
+        /** one batch per device, topic <code>endpoint/BATCH</code> */
+        DEVICE,
+        /** one batch per device and object, topic <code>endpoint/objectId/BATCH</code> */
+        OBJECT
+    }
+
+    /** Default maximum number of notifications per batch. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    /** Default maximum delay of a notification in milliseconds. */
+    public static final long DEFAULT_MAX_DELAY = 1000L;
+
+    private Grouping grouping = Grouping.DEVICE;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+
+    /**
+     * @return how notifications are grouped into batches
+     */
+    public Grouping getGrouping() {
+        return grouping;
+    }
+
+    /**
+     * Sets how notifications are grouped into batches.
+     *
+     * @param grouping must not be <code>null</code>
+     */
+    public void setGrouping(final Grouping grouping) {
+        if (grouping == null) {
+            throw new NullPointerException("grouping must not be null");
+        }
+        this.grouping = grouping;
+    }
+
+    /**
+     * @return the maximum number of notifications per batch
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the number of notifications at which a batch is published.
+     *
+     * @param maxBatchSize must be positive
+     */
+    public void setMaxBatchSize(final int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("max batch size must be positive");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return the maximum delay of a notification in milliseconds
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Sets the time after the first notification of a batch at which the
+     * batch is published, even if it is not full.
+     *
+     * @param maxDelay in milliseconds, must be positive
+     */
+    public void setMaxDelay(final long maxDelay) {
+        if (maxDelay <= 0) {
+            throw new IllegalArgumentException("max delay must be positive");
+        }
+        this.maxDelay = maxDelay;
+    }
+}
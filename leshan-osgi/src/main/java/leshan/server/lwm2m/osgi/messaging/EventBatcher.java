@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import leshan.server.lwm2m.osgi.Property;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.server.client.Client;
+import org.osgi.service.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects notifications per device (or per device and object) and posts
+ * them as a single event once the batch is full or its first notification
+ * waited for the maximum delay.
+ */
+class EventBatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventBatcher.class);
+
+    private final EventBatchConfig config;
+    private final EventSink eventSink;
+    private final TopicCache topicCache;
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final class Batch implements Runnable {
+
+        private final String topic;
+        private Client client;
+        private List<ObservationEntry> entries = new ArrayList<>();
+        private boolean flushScheduled;
+        /** set once the batch has been removed from the map */
+        private boolean closed;
+
+        Batch(final String topic) {
+            this.topic = topic;
+        }
+
+        /**
+         * @return <code>false</code> if the batch is closed
+         */
+        boolean add(final Client client, final ObservationEntry entry) {
+            final List<ObservationEntry> full;
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                this.client = client;
+                entries.add(entry);
+                if (entries.size() < config.getMaxBatchSize()) {
+                    if (!flushScheduled) {
+                        flushScheduled = schedule(this);
+                    }
+                    return true;
+                }
+                full = entries;
+                entries = new ArrayList<>();
+            }
+            post(topic, client, full);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            final List<ObservationEntry> pending;
+            final Client batchClient;
+            synchronized (this) {
+                flushScheduled = false;
+                if (entries.isEmpty()) {
+                    // idle for a whole period, forget the batch
+                    closed = true;
+                    batches.remove(topic, this);
+                    return;
+                }
+                pending = entries;
+                batchClient = client;
+                entries = new ArrayList<>();
+                // check again after the next period whether the batch is idle
+                flushScheduled = schedule(this);
+            }
+            post(topic, batchClient, pending);
+        }
+    }
+
+    EventBatcher(final EventBatchConfig config, final EventSink eventSink, final TopicCache topicCache) {
+        this.config = config;
+        this.eventSink = eventSink;
+        this.topicCache = topicCache;
+    }
+
+    /**
+     * Adds a notification to the batch of its device (and object).
+     *
+     * @param client
+     * @param entry
+     */
+    void add(final Client client, final ObservationEntry entry) {
+        final String topic = topicOf(client, entry.getPath());
+        while (true) {
+            Batch batch = batches.get(topic);
+            if (batch == null) {
+                final Batch created = new Batch(topic);
+                batch = batches.putIfAbsent(topic, created);
+                if (batch == null) {
+                    batch = created;
+                }
+            }
+            if (batch.add(client, entry)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param client
+     * @param path
+     * @return the topic of the batch the notifications of the path belong to
+     */
+    String topicOf(final Client client, final LwM2mPath path) {
+        return topicCache.batchTopic(client, path, config.getGrouping());
+    }
+
+    private boolean schedule(final Batch batch) {
+        try {
+            flushExecutor.schedule(batch, config.getMaxDelay(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (final RejectedExecutionException e) {
+            // closed, the remaining entries are flushed by close()
+            return false;
+        }
+    }
+
+    private void post(final String topic, final Client client, final List<ObservationEntry> entries) {
+        final Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(Property.CLIENT, client);
+        properties.put(Property.BATCH_ENTRIES, entries.toArray(new ObservationEntry[entries.size()]));
+        eventSink.publish(new Event(topic, properties), null);
+        LOG.trace("Sending batch of {} notifications to topic {}", entries.size(), topic);
+    }
+
+    /**
+     * Stops the time based flushing and posts all pending batches.
+     */
+    void close() {
+        flushExecutor.shutdownNow();
+        for (final Batch batch : batches.values()) {
+            batch.run();
+        }
+        batches.clear();
+    }
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+import org.osgi.service.event.Event;
+
+/**
+ * Receives the events of the {@link Lwm2mEventPublisher} for delivery.
+ */
+interface EventSink {
+
+    /**
+     * @param event
+     * @param coalesceKey identifies the device and path of a notification, so
+     *        that a queued notification may be replaced by a newer one, or
+     *        <code>null</code> if the event must not be replaced
+     */
+    void publish(Event event, Object coalesceKey);
+}
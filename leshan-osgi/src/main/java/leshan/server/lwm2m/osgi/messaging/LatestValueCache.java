@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+
+/**
+ * {@link LatestValueService} backed by a {@link LinkedHashMap} in access
+ * order, evicting the least recently used value once the maximum number of
+ * values is exceeded.
+ * <p>
+ * The values are also indexed by registration id, so that looking up or
+ * removing the values of a registration only visits the values of that
+ * registration.
+ */
+class LatestValueCache implements LatestValueService {
+
+    /** registration id and observed path */
+    private static final class Key {
+        private final String registrationId;
+        private final LwM2mPath path;
+        private final int hash;
+
+        Key(final String registrationId, final LwM2mPath path) {
+            this.registrationId = registrationId;
+            this.path = path;
+            this.hash = 31 * registrationId.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hash == other.hash && registrationId.equals(other.registrationId) && path.equals(other.path);
+        }
+    }
+
+    private final LinkedHashMap<Key, ObservationEntry> values;
+    /** the values of {@link #values} by registration id, guarded by values */
+    private final Map<String, Map<LwM2mPath, ObservationEntry>> valuesByRegistrationId = new HashMap<>();
+
+    LatestValueCache(final LatestValueCacheConfig config) {
+        final int maxEntries = config.getMaxEntries();
+        values = new LinkedHashMap<Key, ObservationEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, ObservationEntry> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                unindex(eldest.getKey());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Stores the notified value.
+     *
+     * @param registrationId
+     * @param entry
+     */
+    void put(final String registrationId, final ObservationEntry entry) {
+        final Key key = new Key(registrationId, entry.getPath());
+        synchronized (values) {
+            Map<LwM2mPath, ObservationEntry> registrationValues = valuesByRegistrationId.get(registrationId);
+            if (registrationValues == null) {
+                registrationValues = new HashMap<>(4);
+                valuesByRegistrationId.put(registrationId, registrationValues);
+            }
+            // indexed first, the put may evict a value of the same registration
+            registrationValues.put(key.path, entry);
+            values.put(key, entry);
+        }
+    }
+
+    /**
+     * Removes the value of a cancelled observation.
+     *
+     * @param registrationId
+     * @param path
+     */
+    void remove(final String registrationId, final LwM2mPath path) {
+        final Key key = new Key(registrationId, path);
+        synchronized (values) {
+            if (values.remove(key) != null) {
+                unindex(key);
+            }
+        }
+    }
+
+    /**
+     * Removes all values of a registration.
+     *
+     * @param registrationId
+     */
+    void remove(final String registrationId) {
+        synchronized (values) {
+            final Map<LwM2mPath, ObservationEntry> registrationValues = valuesByRegistrationId
+                .remove(registrationId);
+            if (registrationValues != null) {
+                for (final LwM2mPath path : registrationValues.keySet()) {
+                    values.remove(new Key(registrationId, path));
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a value from the index, holding values.
+     *
+     * @param key
+     */
+    private void unindex(final Key key) {
+        final Map<LwM2mPath, ObservationEntry> registrationValues = valuesByRegistrationId.get(key.registrationId);
+        if (registrationValues != null) {
+            registrationValues.remove(key.path);
+            if (registrationValues.isEmpty()) {
+                valuesByRegistrationId.remove(key.registrationId);
+            }
+        }
+    }
+
+    @Override
+    public ObservationEntry getLatestValue(final String registrationId, final LwM2mPath path) {
+        if (registrationId == null || path == null) {
+            return null;
+        }
+        synchronized (values) {
+            return values.get(new Key(registrationId, path));
+        }
+    }
+
+    @Override
+    public List<ObservationEntry> getLatestValues(final String registrationId) {
+        synchronized (values) {
+            // reading the index does not change the access order
+            final Map<LwM2mPath, ObservationEntry> registrationValues = valuesByRegistrationId.get(registrationId);
+            return registrationValues == null ? new ArrayList<ObservationEntry>() : new ArrayList<>(
+                registrationValues.values());
+        }
+    }
+
+    @Override
+    public int size() {
+        synchronized (values) {
+            return values.size();
+        }
+    }
+}
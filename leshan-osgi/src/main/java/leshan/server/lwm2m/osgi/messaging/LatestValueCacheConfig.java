@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+/**
+ * Configuration of the cache of the latest notified values published as
+ * {@link LatestValueService} by the {@link Lwm2mEventPublisher}. A new
+ * instance holds the default values.
+ */
+public class LatestValueCacheConfig {
+
+    /** Default maximum number of cached values. */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    /**
+     * @return the maximum number of cached values
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the maximum number of cached values. If exceeded, the least
+     * recently notified or read value is evicted.
+     *
+     * @param maxEntries must be positive
+     */
+    public void setMaxEntries(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("max entries must be positive");
+        }
+        this.maxEntries = maxEntries;
+    }
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+import java.util.List;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+
+/**
+ * Provides the latest notified value of the observed resources, so that
+ * consumers can read the current value locally instead of sending a read
+ * request to the device. Registered as OSGi service by the
+ * {@link Lwm2mEventPublisher} if configured with a
+ * {@link LatestValueCacheConfig}.
+ * <p>
+ * The values are kept per registration and observed path until the
+ * observation is cancelled, the client deregisters or the value is evicted
+ * as the least recently used one.
+ */
+public interface LatestValueService {
+
+    /**
+     * @param registrationId the registration id of the device, see
+     *        {@link leshan.server.lwm2m.osgi.Property#REGISTRATION_ID}
+     * @param path the observed path
+     * @return the latest value with the time it has been received or
+     *         <code>null</code> if no value is cached
+     */
+    ObservationEntry getLatestValue(String registrationId, LwM2mPath path);
+
+    /**
+     * @param registrationId the registration id of the device
+     * @return the latest values of all observed paths of the device, in no
+     *         particular order
+     */
+    List<ObservationEntry> getLatestValues(String registrationId);
+
+    /**
+     * @return the number of cached values
+     */
+    int size();
+}
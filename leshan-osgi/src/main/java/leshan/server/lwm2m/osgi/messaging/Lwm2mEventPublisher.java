@@ -17,17 +17,23 @@ package leshan.server.lwm2m.osgi.messaging;
 
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import leshan.server.lwm2m.osgi.EventAdminTracker;
+import leshan.server.lwm2m.osgi.OsgiBasedClientRegistry;
 import leshan.server.lwm2m.osgi.Property;
 
 import org.eclipse.leshan.core.node.LwM2mNode;
 import org.eclipse.leshan.core.node.LwM2mPath;
 import org.eclipse.leshan.server.client.Client;
 import org.eclipse.leshan.server.client.ClientRegistry;
+import org.eclipse.leshan.server.client.ClientRegistryListener;
 import org.eclipse.leshan.core.observation.Observation;
 import org.eclipse.leshan.core.observation.ObservationListener;
+import org.eclipse.leshan.server.observation.ObservationRegistryListener;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.slf4j.Logger;
@@ -37,29 +43,214 @@ import org.slf4j.LoggerFactory;
  * Publishes observed resources as events using OSGi Event Admin service. The
  * Lwm2mEventPublisher implements the {@link ObservationListener} to receive the
  * new Value from the observed resources.
+ * <p>
+ * In batching mode (see {@link EventBatchConfig}) the notifications are
+ * collected per device (or per device and object) and published as a single
+ * event on the topic <code>endpoint/BATCH</code> (or
+ * <code>endpoint/objectId/BATCH</code>), carrying the
+ * {@link ObservationEntry}s in the property {@link Property#BATCH_ENTRIES}.
+ * <p>
+ * The topics are computed once per registration and observed path, when the
+ * observation is established (see {@link ObservationRegistryListener}) or on
+ * its first notification, and dropped when the observation is cancelled or the
+ * client deregisters.
+ * <p>
+ * The clients are resolved by registration id through the index of an
+ * {@link OsgiBasedClientRegistry}. For other registries, which may query a
+ * store, an index is maintained from the {@link ClientRegistryListener}
+ * callbacks of the registry, so a notification does not query the registry.
+ * <p>
+ * With a {@link PublishQueueConfig} the events are queued in a bounded queue
+ * and delivered to the EventAdmin by a single thread. Events are shed
+ * according to the configured overflow policy while a slow event handler
+ * keeps the queue full, see {@link #getShedEventCount()} and
+ * {@link #getPublishQueueDepth()}.
+ * <p>
+ * With a {@link LatestValueCacheConfig} the latest notified value of each
+ * registration and path is cached and provided by the
+ * {@link LatestValueService} registered as OSGi service.
  */
-public class Lwm2mEventPublisher implements ObservationListener {
+public class Lwm2mEventPublisher implements ObservationRegistryListener {
 
     private static final Logger LOG = LoggerFactory.getLogger(Lwm2mEventPublisher.class);
-    private final BundleContext context;
+    private final EventAdminTracker eventAdminTracker;
     private final ClientRegistry clientRegistry;
+    /** the registry if it provides the devices, to invalidate their read caches */
+    private final OsgiBasedClientRegistry deviceRegistry;
+    private final EventBatcher batcher;
+    private final PublishQueue publishQueue;
+    private final EventSink eventSink;
+    private final LatestValueCache latestValues;
+    private final ServiceRegistration<LatestValueService> latestValueRegistration;
+    private final TopicCache topicCache = new TopicCache();
+    /**
+     * the clients by registration id, <code>null</code> if the registry is an
+     * {@link OsgiBasedClientRegistry}
+     */
+    private final ConcurrentMap<String, Client> clientsByRegistrationId;
+    private final ClientRegistryListener registryListener = new ClientRegistryListener() {
+        @Override
+        public void registered(final Client client) {
+            if (clientsByRegistrationId != null) {
+                clientsByRegistrationId.put(client.getRegistrationId(), client);
+            }
+        }
+
+        @Override
+        public void updated(final Client clientUpdated) {
+            if (clientsByRegistrationId != null) {
+                clientsByRegistrationId.put(clientUpdated.getRegistrationId(), clientUpdated);
+            }
+        }
+
+        @Override
+        public void unregistered(final Client client) {
+            if (clientsByRegistrationId != null) {
+                clientsByRegistrationId.remove(client.getRegistrationId());
+            }
+            topicCache.invalidate(client.getRegistrationId());
+            if (latestValues != null) {
+                latestValues.remove(client.getRegistrationId());
+            }
+        }
+    };
 
     /**
      * Constructor for new Lwm2mEventPublisher. The Lwm2mEventPublisher
      * implements the {@link ObservationListener} to receive the new Value from
-     * the observed resources.
+     * the observed resources. Events are dropped while no {@link EventAdmin} is
+     * available.
      *
      * @param bundleContext
      * @param clientRegistry the LWM2M client registry to use for looking up clients by registration id.
      */
     public Lwm2mEventPublisher(final BundleContext bundleContext, final ClientRegistry clientRegistry) {
+        this(bundleContext, clientRegistry, null);
+    }
+
+    /**
+     * Constructor for new Lwm2mEventPublisher, publishing the notifications
+     * in batches.
+     *
+     * @param bundleContext
+     * @param clientRegistry the LWM2M client registry to use for looking up clients by registration id.
+     * @param batchConfig the batching configuration or <code>null</code> to
+     *        publish one event per notification
+     */
+    public Lwm2mEventPublisher(final BundleContext bundleContext, final ClientRegistry clientRegistry,
+            final EventBatchConfig batchConfig) {
+        this(bundleContext, clientRegistry, batchConfig, null);
+    }
+
+    /**
+     * Constructor for new Lwm2mEventPublisher, publishing the events through
+     * a bounded queue.
+     *
+     * @param bundleContext
+     * @param clientRegistry the LWM2M client registry to use for looking up clients by registration id.
+     * @param batchConfig the batching configuration or <code>null</code> to
+     *        publish one event per notification
+     * @param publishQueueConfig the configuration of the publish queue or
+     *        <code>null</code> to post the events directly to the EventAdmin
+     */
+    public Lwm2mEventPublisher(final BundleContext bundleContext, final ClientRegistry clientRegistry,
+            final EventBatchConfig batchConfig, final PublishQueueConfig publishQueueConfig) {
+        this(bundleContext, clientRegistry, batchConfig, publishQueueConfig, null);
+    }
+
+    /**
+     * Constructor for new Lwm2mEventPublisher, caching the latest notified
+     * values.
+     *
+     * @param bundleContext
+     * @param clientRegistry the LWM2M client registry to use for looking up clients by registration id.
+     * @param batchConfig the batching configuration or <code>null</code> to
+     *        publish one event per notification
+     * @param publishQueueConfig the configuration of the publish queue or
+     *        <code>null</code> to post the events directly to the EventAdmin
+     * @param latestValueCacheConfig the configuration of the
+     *        {@link LatestValueService} or <code>null</code> to not cache the
+     *        notified values
+     */
+    public Lwm2mEventPublisher(final BundleContext bundleContext, final ClientRegistry clientRegistry,
+            final EventBatchConfig batchConfig, final PublishQueueConfig publishQueueConfig,
+            final LatestValueCacheConfig latestValueCacheConfig) {
         if (bundleContext == null) {
             throw new NullPointerException("Bundle context must not be null");
         } else if (clientRegistry == null) {
             throw new NullPointerException("Client registry must not be null");
         } else {
-            this.context = bundleContext;
             this.clientRegistry = clientRegistry;
+            this.deviceRegistry = clientRegistry instanceof OsgiBasedClientRegistry
+                    ? (OsgiBasedClientRegistry) clientRegistry : null;
+            // the registry already indexes its clients by registration id
+            this.clientsByRegistrationId = deviceRegistry == null ? new ConcurrentHashMap<String, Client>() : null;
+            this.eventAdminTracker = new EventAdminTracker(bundleContext);
+            if (publishQueueConfig == null) {
+                this.publishQueue = null;
+                this.eventSink = new EventSink() {
+                    @Override
+                    public void publish(final Event event, final Object coalesceKey) {
+                        // postEvent sends events asynchronously -> Method does not block
+                        if (eventAdminTracker.postEvent(event)) {
+                            LOG.trace("Sending event to topic {}", event.getTopic());
+                        }
+                    }
+                };
+            } else {
+                this.publishQueue = new PublishQueue(publishQueueConfig, eventAdminTracker);
+                this.eventSink = publishQueue;
+            }
+            this.batcher = batchConfig == null ? null : new EventBatcher(batchConfig, eventSink, topicCache);
+            if (latestValueCacheConfig == null) {
+                this.latestValues = null;
+                this.latestValueRegistration = null;
+            } else {
+                this.latestValues = new LatestValueCache(latestValueCacheConfig);
+                this.latestValueRegistration = bundleContext.registerService(LatestValueService.class,
+                    latestValues, null);
+            }
+            clientRegistry.addListener(registryListener);
+            if (clientsByRegistrationId != null) {
+                indexRegisteredClients();
+            }
+        }
+    }
+
+    /**
+     * Indexes the clients registered before the listener was added. A client
+     * deregistering meanwhile is either removed by the listener after it has
+     * been indexed or no longer found by the registry when checked after
+     * indexing it.
+     */
+    private void indexRegisteredClients() {
+        for (final Client client : clientRegistry.allClients()) {
+            final String registrationId = client.getRegistrationId();
+            if (clientsByRegistrationId.putIfAbsent(registrationId, client) == null
+                    && clientRegistry.findByRegistrationId(registrationId) == null) {
+                clientsByRegistrationId.remove(registrationId, client);
+            }
+        }
+    }
+
+    /**
+     * @param registrationId
+     * @return the client from the index or, if not indexed, from the registry
+     */
+    private Client findClient(final String registrationId) {
+        final Client client = clientsByRegistrationId == null ? null : clientsByRegistrationId.get(registrationId);
+        return client != null ? client : clientRegistry.findByRegistrationId(registrationId);
+    }
+
+    @Override
+    public void newObservation(final Observation observation) {
+        final Client client = findClient(observation.getRegistrationId());
+        if (client != null) {
+            if (batcher != null) {
+                batcher.topicOf(client, observation.getPath());
+            } else {
+                topicCache.topic(client, observation.getPath());
+            }
         }
     }
 
@@ -69,8 +260,22 @@ public class Lwm2mEventPublisher implements ObservationListener {
         if (node == null || observation == null) {
             throw new NullPointerException("Missing required property");
         } else {
-            Client client = clientRegistry.findByRegistrationId(observation.getRegistrationId());
-            if (client != null) {
+            final Client client = findClient(observation.getRegistrationId());
+            if (client == null) {
+                return;
+            }
+            if (deviceRegistry != null) {
+                // the notified value replaces cached read responses
+                deviceRegistry.invalidateCachedValue(client.getRegistrationId(), observation.getPath());
+            }
+            final ObservationEntry entry = latestValues == null && batcher == null ? null
+                    : new ObservationEntry(observation.getPath(), node, System.currentTimeMillis());
+            if (latestValues != null) {
+                latestValues.put(client.getRegistrationId(), entry);
+            }
+            if (batcher != null) {
+                batcher.add(client, entry);
+            } else {
                 final Dictionary<String, Object> properties = new Hashtable<String, Object>();
                 properties.put(Property.LWM2MNODE, node);
                 properties.put(Property.LWM2MPATH, observation.getPath());
@@ -84,29 +289,81 @@ public class Lwm2mEventPublisher implements ObservationListener {
 
     @Override
     public void cancelled(final Observation observation) {
-        // cancel
+        topicCache.invalidate(observation.getRegistrationId(), observation.getPath());
+        if (latestValues != null) {
+            latestValues.remove(observation.getRegistrationId(), observation.getPath());
+        }
     }
 
     private void sendEvent(final Client client, final LwM2mPath path, final Dictionary<String, Object> properties) {
 
-        final ServiceReference<EventAdmin> ref = context.getServiceReference(EventAdmin.class);
-        if (ref != null) {
-
-            final StringBuilder topic = new StringBuilder();
-            topic.append(client.getEndpoint());
-            topic.append('/').append(path.getObjectId());
-            if (path.getObjectInstanceId() != null) {
-                topic.append('/').append(path.getObjectInstanceId());
-                if (path.getResourceId() != null) {
-                    topic.append('/').append(path.getResourceId());
-                }
-            }
-            final Event notifyEvent = new Event(topic.toString(), properties);
+        final String topic = topicCache.topic(client, path);
+        // the topic identifies the device and path of the notification
+        eventSink.publish(new Event(topic, properties), topic);
+    }
+
+    /**
+     * @return the number of events dropped because no {@link EventAdmin} was
+     *         available
+     */
+    public long getDroppedEventCount() {
+        return eventAdminTracker.getDroppedEventCount();
+    }
 
-            // postEvent sends events asynchronously -> Method does not block
-            final EventAdmin eventAdmin = context.getService(ref);
-            eventAdmin.postEvent(notifyEvent);
-            LOG.trace("Sending event to topic {}", topic.toString());
+    /**
+     * @return the number of events dropped or blocked too long because the
+     *         publish queue was full
+     */
+    public long getShedEventCount() {
+        return publishQueue == null ? 0 : publishQueue.getShedEventCount();
+    }
+
+    /**
+     * @return the number of queued notifications replaced by a newer value
+     *         of the same device and path
+     */
+    public long getCoalescedEventCount() {
+        return publishQueue == null ? 0 : publishQueue.getCoalescedEventCount();
+    }
+
+    /**
+     * @return the number of events waiting in the publish queue
+     */
+    public int getPublishQueueDepth() {
+        return publishQueue == null ? 0 : publishQueue.size();
+    }
+
+    /**
+     * @return the cache of the latest notified values or <code>null</code> if
+     *         not configured
+     */
+    public LatestValueService getLatestValueService() {
+        return latestValues;
+    }
+
+    /**
+     * Unregisters the {@link LatestValueService}, publishes the pending
+     * batches, delivers the queued events and stops tracking the
+     * {@link EventAdmin}.
+     */
+    public void close() {
+        if (latestValueRegistration != null) {
+            try {
+                latestValueRegistration.unregister();
+            } catch (final IllegalStateException e) {
+                LOG.trace("LatestValueService has already been unregistered");
+            }
+        }
+        clientRegistry.removeListener(registryListener);
+        if (clientsByRegistrationId != null) {
+            clientsByRegistrationId.clear();
+        }
+        if (batcher != null) {
+            batcher.close();
+        }
+        if (publishQueue != null) {
+            publishQueue.close();
         }
+        eventAdminTracker.close();
     }
 }
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+
+/**
+ * A single notification of an observed resource, as carried in the
+ * {@link leshan.server.lwm2m.osgi.Property#BATCH_ENTRIES} of a batch event.
+ */
+public final class ObservationEntry {
+
+    private final LwM2mPath path;
+    private final LwM2mNode node;
+    private final long timestamp;
+
+    /**
+     * @param path the observed path
+     * @param node the new value
+     * @param timestamp the time the notification was received in milliseconds
+     */
+    public ObservationEntry(final LwM2mPath path, final LwM2mNode node, final long timestamp) {
+        this.path = path;
+        this.node = node;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return the observed path
+     */
+    public LwM2mPath getPath() {
+        return path;
+    }
+
+    /**
+     * @return the new value
+     */
+    public LwM2mNode getNode() {
+        return node;
+    }
+
+    /**
+     * @return the time the notification was received in milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ObservationEntry [path=%s, node=%s, timestamp=%d]", path, node, timestamp);
+    }
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import leshan.server.lwm2m.osgi.EventAdminTracker;
+
+import org.osgi.service.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue in front of the EventAdmin. A single dispatcher thread
+ * delivers the queued events synchronously, so that a slow event handler
+ * slows down the dispatcher and fills this queue, where events are shed
+ * according to the {@link PublishQueueConfig.OverflowPolicy}, instead of the
+ * unbounded queue of the EventAdmin.
+ */
+class PublishQueue implements EventSink, Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PublishQueue.class);
+
+    /** time in milliseconds {@link #close()} waits for the queue to drain */
+    private static final long DRAIN_TIMEOUT = 5000L;
+
+    private final PublishQueueConfig.OverflowPolicy policy;
+    private final int capacity;
+    private final long blockTimeout;
+    private final EventAdminTracker eventAdminTracker;
+    private final Thread dispatcher;
+    /** the queued events in order, keyed by their coalesce key */
+    private final LinkedHashMap<Object, Event> events = new LinkedHashMap<>();
+    private final AtomicLong shedEvents = new AtomicLong();
+    private final AtomicLong coalescedEvents = new AtomicLong();
+    private boolean closed;
+
+    PublishQueue(final PublishQueueConfig config, final EventAdminTracker eventAdminTracker) {
+        this.policy = config.getOverflowPolicy();
+        this.capacity = config.getCapacity();
+        this.blockTimeout = config.getBlockTimeout();
+        this.eventAdminTracker = eventAdminTracker;
+        dispatcher = new Thread(this, "LWM2M event publisher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    @Override
+    public void publish(final Event event, final Object coalesceKey) {
+        final Object key = coalesceKey != null && policy == PublishQueueConfig.OverflowPolicy.LATEST_PER_PATH
+                ? coalesceKey : new Object();
+        synchronized (this) {
+            if (closed) {
+                shed(event);
+                return;
+            }
+            if (events.containsKey(key)) {
+                // keeps the position of the replaced notification
+                events.put(key, event);
+                coalescedEvents.incrementAndGet();
+                return;
+            }
+            if (events.size() >= capacity && !makeRoom(event)) {
+                return;
+            }
+            events.put(key, event);
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the offered event has been dropped
+     */
+    private boolean makeRoom(final Event event) {
+        switch (policy) {
+        case DROP_NEWEST:
+            shed(event);
+            return false;
+        case BLOCK:
+            final long deadline = System.currentTimeMillis() + blockTimeout;
+            long wait = blockTimeout;
+            try {
+                while (events.size() >= capacity && !closed && wait > 0) {
+                    wait(wait);
+                    wait = deadline - System.currentTimeMillis();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (events.size() >= capacity || closed) {
+                shed(event);
+                return false;
+            }
+            return true;
+        default:
+            final Iterator<Map.Entry<Object, Event>> oldest = events.entrySet().iterator();
+            shed(oldest.next().getValue());
+            oldest.remove();
+            return true;
+        }
+    }
+
+    private void shed(final Event event) {
+        shedEvents.incrementAndGet();
+        LOG.trace("Publish queue full, dropping event {}", event.getTopic());
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final Event event;
+            synchronized (this) {
+                while (events.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+                if (events.isEmpty()) {
+                    // closed and drained
+                    return;
+                }
+                final Iterator<Event> it = events.values().iterator();
+                event = it.next();
+                it.remove();
+                // wake up blocked publishers
+                notifyAll();
+            }
+            try {
+                eventAdminTracker.sendEvent(event);
+            } catch (final RuntimeException e) {
+                LOG.warn("Failed to deliver event {}", event.getTopic(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of queued events
+     */
+    synchronized int size() {
+        return events.size();
+    }
+
+    /**
+     * @return the number of events dropped because the queue was full
+     */
+    long getShedEventCount() {
+        return shedEvents.get();
+    }
+
+    /**
+     * @return the number of queued notifications replaced by a newer value
+     */
+    long getCoalescedEventCount() {
+        return coalescedEvents.get();
+    }
+
+    /**
+     * Stops accepting events and waits a limited time for the queued events
+     * to be delivered.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            dispatcher.join(DRAIN_TIMEOUT);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dispatcher.isAlive()) {
+            LOG.warn("Publish queue not drained within {} ms, {} events left", DRAIN_TIMEOUT, size());
+            dispatcher.interrupt();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+/**
+ * Configuration of the bounded publishing stage of the
+ * {@link Lwm2mEventPublisher}. A new instance holds the default values.
+ * <p>
+ * The events are queued and delivered to the EventAdmin by a single thread,
+ * so a slow event handler fills this queue instead of the unbounded queue of
+ * the EventAdmin. The {@link OverflowPolicy} decides what happens to the
+ * events offered while the queue is full.
+ */
+public class PublishQueueConfig {
+
+    /** What happens to an event offered while the queue is full. */
+    public enum OverflowPolicy {
+        /** the oldest queued event is dropped */
+        DROP_OLDEST,
+        /** the offered event is dropped */
+        DROP_NEWEST,
+        /**
+         * a queued notification of the same device and path is replaced, so
+         * only the latest value is delivered; otherwise the oldest queued
+         * event is dropped
+         */
+        LATEST_PER_PATH,
+        /**
+         * the notifying thread waits for free space, at most for the block
+         * timeout, after which the offered event is dropped
+         */
+        BLOCK
+    }
+
+    /** Default maximum number of queued events. */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /** Default maximum time in milliseconds the notifying thread is blocked. */
+    public static final long DEFAULT_BLOCK_TIMEOUT = 5000L;
+
+    private int capacity = DEFAULT_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+
+    /**
+     * @return the maximum number of queued events
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the maximum number of events waiting for delivery.
+     *
+     * @param capacity must be positive
+     */
+    public void setCapacity(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return what happens to an event offered while the queue is full
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets what happens to an event offered while the queue is full.
+     *
+     * @param overflowPolicy must not be <code>null</code>
+     */
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new NullPointerException("overflow policy must not be null");
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return the maximum time in milliseconds the notifying thread waits for
+     *         free space with {@link OverflowPolicy#BLOCK}
+     */
+    public long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * Sets the maximum time the notifying thread waits for free space with
+     * {@link OverflowPolicy#BLOCK}.
+     *
+     * @param blockTimeout in milliseconds, must be positive
+     */
+    public void setBlockTimeout(final long blockTimeout) {
+        if (blockTimeout <= 0) {
+            throw new IllegalArgumentException("block timeout must be positive");
+        }
+        this.blockTimeout = blockTimeout;
+    }
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import leshan.server.lwm2m.osgi.Property;
+
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.server.client.Client;
+
+/**
+ * Caches the event topics per registration and observed path, so that the
+ * notification path does not build a topic string per event and EventAdmin
+ * sees identical topic instances. The topics of a path are dropped when its
+ * observation is cancelled, all topics of a registration when the client
+ * deregisters.
+ */
+class TopicCache {
+
+    private static final Integer DEVICE = -1;
+
+    /** the topics of one registration */
+    private static final class RegistrationTopics {
+        private final String endpoint;
+        private final ConcurrentMap<LwM2mPath, String> pathTopics = new ConcurrentHashMap<>();
+        private final ConcurrentMap<Integer, String> batchTopics = new ConcurrentHashMap<>();
+
+        RegistrationTopics(final String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    private final ConcurrentMap<String, RegistrationTopics> registrations = new ConcurrentHashMap<>();
+
+    private RegistrationTopics topicsOf(final Client client) {
+        RegistrationTopics topics = registrations.get(client.getRegistrationId());
+        if (topics == null) {
+            final RegistrationTopics created = new RegistrationTopics(client.getEndpoint());
+            topics = registrations.putIfAbsent(client.getRegistrationId(), created);
+            if (topics == null) {
+                topics = created;
+            }
+        }
+        return topics;
+    }
+
+    /**
+     * @param client
+     * @param path
+     * @return the topic <code>endpoint/objectId[/instanceId[/resourceId]]</code>
+     */
+    String topic(final Client client, final LwM2mPath path) {
+        final RegistrationTopics topics = topicsOf(client);
+        String topic = topics.pathTopics.get(path);
+        if (topic == null) {
+            topic = buildTopic(topics.endpoint, path);
+            final String previous = topics.pathTopics.putIfAbsent(path, topic);
+            if (previous != null) {
+                topic = previous;
+            }
+        }
+        return topic;
+    }
+
+    /**
+     * @param client
+     * @param path
+     * @param grouping
+     * @return the topic of the batch the notification of the path belongs to
+     */
+    String batchTopic(final Client client, final LwM2mPath path, final EventBatchConfig.Grouping grouping) {
+        final RegistrationTopics topics = topicsOf(client);
+        final Integer key = grouping == EventBatchConfig.Grouping.OBJECT ? path.getObjectId() : DEVICE;
+        String topic = topics.batchTopics.get(key);
+        if (topic == null) {
+            if (key == DEVICE) {
+                topic = topics.endpoint + '/' + Property.BATCH_TOPIC;
+            } else {
+                topic = topics.endpoint + '/' + key + '/' + Property.BATCH_TOPIC;
+            }
+            final String previous = topics.batchTopics.putIfAbsent(key, topic);
+            if (previous != null) {
+                topic = previous;
+            }
+        }
+        return topic;
+    }
+
+    private static String buildTopic(final String endpoint, final LwM2mPath path) {
+        final StringBuilder topic = new StringBuilder();
+        topic.append(endpoint);
+        topic.append('/').append(path.getObjectId());
+        if (path.getObjectInstanceId() != null) {
+            topic.append('/').append(path.getObjectInstanceId());
+            if (path.getResourceId() != null) {
+                topic.append('/').append(path.getResourceId());
+            }
+        }
+        return topic.toString();
+    }
+
+    /**
+     * Drops the topic of a cancelled observation.
+     *
+     * @param registrationId
+     * @param path
+     */
+    void invalidate(final String registrationId, final LwM2mPath path) {
+        final RegistrationTopics topics = registrations.get(registrationId);
+        if (topics != null) {
+            topics.pathTopics.remove(path);
+        }
+    }
+
+    /**
+     * Drops all topics of a registration.
+     *
+     * @param registrationId
+     */
+    void invalidate(final String registrationId) {
+        registrations.remove(registrationId);
+    }
+
+    /**
+     * @return the number of registrations with cached topics
+     */
+    int size() {
+        return registrations.size();
+    }
+}
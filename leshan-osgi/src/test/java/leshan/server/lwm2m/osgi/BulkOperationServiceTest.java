@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.core.request.DownlinkRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.ErrorCallback;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.core.response.ResponseCallback;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.request.LwM2mRequestSender;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.BundleContext;
+
+@SuppressWarnings("unchecked")
+public class BulkOperationServiceTest {
+
+    private BulkOperationService service;
+    private LwM2mRequestSender sender;
+    private final ConcurrentLinkedQueue<ResponseCallback<ReadResponse>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger maxPending = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        service = new BulkOperationService(mock(BundleContext.class));
+        sender = mock(LwM2mRequestSender.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                synchronized (pending) {
+                    pending.add((ResponseCallback<ReadResponse>) invocation.getArguments()[2]);
+                    maxPending.set(Math.max(maxPending.get(), pending.size()));
+                }
+                return null;
+            }
+        }).when(sender).send(any(Client.class), any(DownlinkRequest.class), any(ResponseCallback.class),
+            any(ErrorCallback.class));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        service.stop();
+    }
+
+    @Test
+    public void testInFlightLimitAndSummary() throws Exception {
+        final List<LWM2MClientDevice> devices = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            devices.add(new LWM2MClientDevice(OsgiBasedClientRegistryTest.newClient("ep" + i), sender));
+        }
+        final BulkOperationOptions options = new BulkOperationOptions();
+        options.setMaxInFlight(3);
+        final AtomicInteger responses = new AtomicInteger();
+
+        final BulkOperation<ReadResponse> operation = service.start(devices, new ReadRequest(3, 0),
+            options, new BulkOperationListener<ReadResponse>() {
+                @Override
+                public void onResponse(final LWM2MClientDevice device, final ReadResponse response) {
+                    responses.incrementAndGet();
+                }
+
+                @Override
+                public void onError(final LWM2MClientDevice device, final Exception error) {
+                }
+
+                @Override
+                public void onCompleted(final BulkOperationSummary summary) {
+                }
+            });
+
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (!operation.isDone() && System.currentTimeMillis() < deadline) {
+            final ResponseCallback<ReadResponse> callback = pending.poll();
+            if (callback == null) {
+                Thread.sleep(1);
+            } else {
+                callback.onResponse(ReadResponse.success(9, 55L));
+            }
+        }
+
+        final BulkOperationSummary summary = operation.awaitCompletion(1, TimeUnit.SECONDS);
+        Assert.assertNotNull(summary);
+        Assert.assertEquals(20, summary.getDevices());
+        Assert.assertEquals(20, summary.getSucceeded());
+        Assert.assertEquals(20, responses.get());
+        Assert.assertTrue("max in flight exceeded: " + maxPending.get(), maxPending.get() <= 3);
+    }
+
+    @Test
+    public void testFilterMatchesUnpublishedDevices() throws Exception {
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setPublicationMode(ClientRegistryConfig.PublicationMode.SELECTIVE);
+        final OsgiBasedClientRegistry registry = new OsgiBasedClientRegistry(
+            OsgiBasedClientRegistryTest.newBundleContextMock(), sender, config);
+        final BulkOperationService lookupService = new BulkOperationService(registry);
+        try {
+            final Client client = OsgiBasedClientRegistryTest.newClient("ep1");
+            registry.registerClient(client);
+            registry.registerClient(OsgiBasedClientRegistryTest.newClient("ep2"));
+
+            final BulkOperation<ReadResponse> operation = lookupService.start("(" + Property.REGISTRATION_ID + "="
+                    + client.getRegistrationId() + ")", new ReadRequest(3, 0), new BulkOperationOptions(),
+                mock(BulkOperationListener.class));
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while (!operation.isDone() && System.currentTimeMillis() < deadline) {
+                final ResponseCallback<ReadResponse> callback = pending.poll();
+                if (callback == null) {
+                    Thread.sleep(1);
+                } else {
+                    callback.onResponse(ReadResponse.success(9, 55L));
+                }
+            }
+
+            // none of the devices is registered as service
+            Assert.assertNull(registry.getServiceRegistrationById(client.getRegistrationId()));
+            Assert.assertEquals(1, operation.awaitCompletion(1, TimeUnit.SECONDS).getSucceeded());
+        } finally {
+            lookupService.stop();
+            registry.stop();
+        }
+    }
+}
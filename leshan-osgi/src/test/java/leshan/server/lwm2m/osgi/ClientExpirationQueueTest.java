@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClientExpirationQueueTest {
+
+    @Test
+    public void testPollReturnsOnlyExpiredInDeadlineOrder() {
+        final ClientExpirationQueue queue = new ClientExpirationQueue();
+        queue.schedule("c", 300L);
+        queue.schedule("a", 100L);
+        queue.schedule("b", 200L);
+
+        Assert.assertEquals(Arrays.asList("a", "b"), queue.pollExpired(250L, 10));
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(Collections.emptyList(), queue.pollExpired(250L, 10));
+    }
+
+    @Test
+    public void testRescheduleReplacesPreviousExpiration() {
+        final ClientExpirationQueue queue = new ClientExpirationQueue();
+        queue.schedule("a", 100L);
+        queue.schedule("a", 500L);
+
+        Assert.assertEquals(Collections.emptyList(), queue.pollExpired(200L, 10));
+        Assert.assertEquals(Arrays.asList("a"), queue.pollExpired(500L, 10));
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testCancelAndLimit() {
+        final ClientExpirationQueue queue = new ClientExpirationQueue();
+        queue.schedule("a", 100L);
+        queue.schedule("b", 110L);
+        queue.schedule("c", 120L);
+        queue.cancel("b");
+
+        Assert.assertEquals(Arrays.asList("a"), queue.pollExpired(1000L, 1));
+        Assert.assertEquals(Arrays.asList("c"), queue.pollExpired(1000L, 1));
+    }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import static leshan.server.lwm2m.osgi.OsgiBasedClientRegistryTest.newClient;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Date;
+
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.server.client.Client;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactClientStoreTest {
+
+    @Test
+    public void testClientsAreRestoredFromRows() throws Exception {
+        final CompactClientStore store = new CompactClientStore();
+        final Client ipv4 = newClient("ep1");
+        final Client ipv6 = new Client("reg2", "ep2", InetAddress.getByName("::1"), 5684, null, 60L, "+49123",
+            null, null, new InetSocketAddress("127.0.0.1", 5683), new Date(1000L), new Date(2000L));
+
+        final int row1 = store.add(ipv4);
+        final int row2 = store.add(ipv6);
+        Assert.assertEquals(ipv4, store.get(row1));
+        Assert.assertEquals(ipv6, store.get(row2));
+        Assert.assertEquals(62000L, store.expirationTimeOf(row2));
+
+        // the object links of equal link sets are shared
+        final Client other = newClient("ep3");
+        Assert.assertSame(store.get(row1).getObjectLinks(), store.get(store.add(other)).getObjectLinks());
+
+        final Client updated = new Client("reg2", "ep2", InetAddress.getByName("10.0.0.1"), 5683, "1.0", 120L,
+            null, BindingMode.UQ, new LinkObject[] { new LinkObject("/5/0") }, ipv6
+                .getRegistrationEndpointAddress(), ipv6.getRegistrationDate(), new Date(3000L));
+        store.set(row2, updated);
+        Assert.assertEquals(updated, store.get(row2));
+    }
+
+    @Test
+    public void testRowsAreReused() throws Exception {
+        final CompactClientStore store = new CompactClientStore();
+        for (int i = 0; i < 100; i++) {
+            store.add(newClient("ep" + i));
+        }
+        store.remove(42);
+        Assert.assertEquals(99, store.size());
+        try {
+            store.get(42);
+            Assert.fail("removed row must not be readable");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals(42, store.add(newClient("ep42")));
+        Assert.assertEquals(100, store.size());
+    }
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+public class EventAdminTrackerTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testEventAdminComingAndGoing() throws Exception {
+        final BundleContext context = mock(BundleContext.class);
+        final EventAdminTracker tracker = new EventAdminTracker(context);
+        final ArgumentCaptor<ServiceListener> listener = ArgumentCaptor.forClass(ServiceListener.class);
+        verify(context).addServiceListener(listener.capture(), anyString());
+        final Event event = new Event("ep/3/0", new HashMap<String, Object>());
+
+        // no EventAdmin yet
+        Assert.assertFalse(tracker.postEvent(event));
+        Assert.assertEquals(1, tracker.getDroppedEventCount());
+
+        final ServiceReference<EventAdmin> ref = mock(ServiceReference.class);
+        final EventAdmin eventAdmin = mock(EventAdmin.class);
+        when(context.getService(ref)).thenReturn(eventAdmin);
+        listener.getValue().serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, ref));
+
+        Assert.assertTrue(tracker.postEvent(event));
+        verify(eventAdmin).postEvent(eq(event));
+        // resolved once, not per event
+        verify(context).getService(ref);
+
+        listener.getValue().serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, ref));
+        Assert.assertFalse(tracker.postEvent(event));
+        Assert.assertEquals(2, tracker.getDroppedEventCount());
+        verify(context).ungetService(ref);
+        tracker.close();
+    }
+}
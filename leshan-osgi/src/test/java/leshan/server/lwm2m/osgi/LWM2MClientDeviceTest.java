@@ -15,43 +15,78 @@
  *******************************************************************************/
 package leshan.server.lwm2m.osgi;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.leshan.LinkObject;
 import org.eclipse.leshan.ObserveSpec;
+import org.eclipse.leshan.core.node.LwM2mPath;
 import org.eclipse.leshan.core.request.BindingMode;
 import org.eclipse.leshan.core.request.DiscoverRequest;
+import org.eclipse.leshan.core.request.DownlinkRequest;
 import org.eclipse.leshan.core.request.ExecuteRequest;
 import org.eclipse.leshan.core.request.ObserveRequest;
 import org.eclipse.leshan.core.request.ReadRequest;
 import org.eclipse.leshan.core.request.WriteAttributesRequest;
 import org.eclipse.leshan.core.request.WriteRequest;
 import org.eclipse.leshan.core.request.WriteRequest.Mode;
+import org.eclipse.leshan.core.request.exception.TimeoutException;
+import org.eclipse.leshan.core.response.DiscoverResponse;
+import org.eclipse.leshan.core.response.ErrorCallback;
+import org.eclipse.leshan.core.response.ExecuteResponse;
+import org.eclipse.leshan.core.response.LwM2mResponse;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.core.response.ResponseCallback;
+import org.eclipse.leshan.core.response.WriteResponse;
 import org.eclipse.leshan.server.client.Client;
 import org.eclipse.leshan.server.request.LwM2mRequestSender;
 import org.eclipse.leshan.util.RandomStringUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 /**
  * TODO, please write javadoc for class 'Lwm2mUtilTest'!
  *
  */
 @RunWith(MockitoJUnitRunner.class)
+@SuppressWarnings("unchecked")
 public class LWM2MClientDeviceTest {
 
-    private static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 2000L;
-
     @Mock
     LwM2mRequestSender lwM2mRequestSenderMock;
 
@@ -60,6 +95,15 @@ public class LWM2MClientDeviceTest {
     @Before
     public void setUp() throws UnknownHostException {
         client = newClient();
+        // answer every request immediately
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                ((ResponseCallback<?>) invocation.getArguments()[2]).onResponse(null);
+                return null;
+            }
+        }).when(lwM2mRequestSenderMock).send(any(Client.class), any(DownlinkRequest.class),
+            any(ResponseCallback.class), any(ErrorCallback.class));
     }
 
     @Test
@@ -69,7 +113,7 @@ public class LWM2MClientDeviceTest {
         final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock);
         clientUnderTest.read(readRequest);
 
-        verify(lwM2mRequestSenderMock).send(client, readRequest, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        verifyAsyncSend(readRequest);
     }
 
     @Test
@@ -80,7 +124,7 @@ public class LWM2MClientDeviceTest {
         final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock);
         clientUnderTest.write(writeRequest);
 
-        verify(lwM2mRequestSenderMock).send(client, writeRequest, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        verifyAsyncSend(writeRequest);
     }
 
     @Test
@@ -90,7 +134,7 @@ public class LWM2MClientDeviceTest {
         final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock);
         clientUnderTest.writeAttribute(readRequest);
 
-        verify(lwM2mRequestSenderMock).send(client, readRequest, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        verifyAsyncSend(readRequest);
     }
 
     @Test
@@ -100,7 +144,7 @@ public class LWM2MClientDeviceTest {
         final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock);
         clientUnderTest.execute(readRequest);
 
-        verify(lwM2mRequestSenderMock).send(client, readRequest, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        verifyAsyncSend(readRequest);
     }
 
     @Test
@@ -110,7 +154,7 @@ public class LWM2MClientDeviceTest {
         final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock);
         clientUnderTest.observe(readRequest);
 
-        verify(lwM2mRequestSenderMock).send(client, readRequest, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        verifyAsyncSend(readRequest);
     }
 
     @Test
@@ -120,7 +164,324 @@ public class LWM2MClientDeviceTest {
         final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock);
         clientUnderTest.discover(readRequest);
 
-        verify(lwM2mRequestSenderMock).send(client, readRequest, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        verifyAsyncSend(readRequest);
+    }
+
+    @Test
+    public void testReadAsync() throws Exception {
+        final ReadResponse response = ReadResponse.success(9, 55L);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                ((ResponseCallback<ReadResponse>) invocation.getArguments()[2]).onResponse(response);
+                return null;
+            }
+        }).when(lwM2mRequestSenderMock).send(any(Client.class), any(ReadRequest.class), any(ResponseCallback.class),
+            any(ErrorCallback.class));
+
+        final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock);
+        final ResponseFuture<ReadResponse> future = clientUnderTest.readAsync(new ReadRequest(3, 0, 9), 1000L);
+
+        assertTrue(future.isDone());
+        assertSame(response, future.get());
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        doNothing().when(lwM2mRequestSenderMock).send(any(Client.class), any(ReadRequest.class),
+            any(ResponseCallback.class), any(ErrorCallback.class));
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock, timer);
+            final ResponseFuture<ReadResponse> future = clientUnderTest.readAsync(new ReadRequest(3, 0, 9), 50L);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("request should have timed out");
+            } catch (final ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncCancel() throws Exception {
+        final ResponseCallback<ReadResponse>[] pending = new ResponseCallback[1];
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                pending[0] = (ResponseCallback<ReadResponse>) invocation.getArguments()[2];
+                return null;
+            }
+        }).when(lwM2mRequestSenderMock).send(any(Client.class), any(ReadRequest.class), any(ResponseCallback.class),
+            any(ErrorCallback.class));
+
+        final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock);
+        final ResponseFuture<ReadResponse> future = clientUnderTest.readAsync(new ReadRequest(3, 0, 9), 1000L);
+        assertTrue(future.cancel(false));
+        // a late response is ignored
+        pending[0].onResponse(ReadResponse.success(9, 55L));
+
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void testResponseTimeouts() throws Exception {
+        final DeviceConfig config = new DeviceConfig();
+        config.setBindingModeTimeout(BindingMode.U, 10000L);
+        config.setRequestTimeout(ExecuteRequest.class, 30000L);
+        final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock, null,
+            config);
+
+        assertEquals(30000L, clientUnderTest.getResponseTimeout(new ExecuteRequest(3, 0, 4)));
+        assertEquals(10000L, clientUnderTest.getResponseTimeout(new ReadRequest(3, 0, 9)));
+
+        config.setBindingModeTimeout(BindingMode.U, null);
+        assertEquals(DeviceConfig.DEFAULT_INITIAL_TIMEOUT,
+            clientUnderTest.getResponseTimeout(new ReadRequest(3, 0, 9)));
+        clientUnderTest.read(new ReadRequest(3, 0, 9));
+        assertTrue(clientUnderTest.getSmoothedRtt() >= 0);
+        assertEquals(clientUnderTest.getResponseTimeout(new ReadRequest(3, 0, 9)),
+            clientUnderTest.getServiceRegistrationProperties(client).get(Property.RESPONSE_TIMEOUT));
+    }
+
+    @Test
+    public void testQueueMode() throws Exception {
+        final DeviceConfig config = new DeviceConfig();
+        config.setAwakeTime(0L);
+        config.setQueueSize(2);
+        final Client sleepingClient = newClient(BindingMode.UQ);
+        final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(sleepingClient, lwM2mRequestSenderMock,
+            null, config);
+        assertTrue(clientUnderTest.isSleeping());
+
+        final ReadRequest first = new ReadRequest(3, 0, 9);
+        final ReadRequest second = new ReadRequest(3, 0, 8);
+        final ResponseFuture<ReadResponse> firstFuture = clientUnderTest.readAsync(first, 1000L);
+        final ResponseFuture<ReadResponse> secondFuture = clientUnderTest.readAsync(second, 1000L);
+        final ResponseFuture<ReadResponse> rejected = clientUnderTest.readAsync(new ReadRequest(3, 0, 7), 1000L);
+        assertNull(clientUnderTest.read(new ReadRequest(3, 0, 9)));
+
+        verify(lwM2mRequestSenderMock, never()).send(any(Client.class), any(DownlinkRequest.class),
+            any(ResponseCallback.class), any(ErrorCallback.class));
+        assertEquals(2, clientUnderTest.getQueuedRequestCount());
+        assertTrue(rejected.isDone());
+        assertFalse(firstFuture.isDone());
+
+        // registration update wakes the client up
+        clientUnderTest.updateClient(sleepingClient);
+
+        final InOrder inOrder = inOrder(lwM2mRequestSenderMock);
+        inOrder.verify(lwM2mRequestSenderMock).send(eq(sleepingClient), eq(first), any(ResponseCallback.class),
+            any(ErrorCallback.class));
+        inOrder.verify(lwM2mRequestSenderMock).send(eq(sleepingClient), eq(second), any(ResponseCallback.class),
+            any(ErrorCallback.class));
+        assertTrue(firstFuture.isDone());
+        assertTrue(secondFuture.isDone());
+        assertEquals(0, clientUnderTest.getQueuedRequestCount());
+    }
+
+    @Test
+    public void testReadCache() throws Exception {
+        final List<ResponseCallback<ReadResponse>> pending = new ArrayList<>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                pending.add((ResponseCallback<ReadResponse>) invocation.getArguments()[2]);
+                return null;
+            }
+        }).when(lwM2mRequestSenderMock).send(any(Client.class), isA(ReadRequest.class), any(ResponseCallback.class),
+            any(ErrorCallback.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                ((ResponseCallback<WriteResponse>) invocation.getArguments()[2]).onResponse(WriteResponse.success());
+                return null;
+            }
+        }).when(lwM2mRequestSenderMock).send(any(Client.class), isA(WriteRequest.class), any(ResponseCallback.class),
+            any(ErrorCallback.class));
+        final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock);
+
+        // concurrent reads share a single request
+        final ResponseFuture<ReadResponse> first = clientUnderTest.readAsync(new ReadRequest(3, 0, 9), 1000L, 60000L);
+        final ResponseFuture<ReadResponse> second = clientUnderTest.readAsync(new ReadRequest(3, 0, 9), 1000L, 60000L);
+        assertEquals(1, pending.size());
+        assertTrue(second.cancel(false));
+        final ReadResponse response = ReadResponse.success(9, 55L);
+        pending.get(0).onResponse(response);
+        assertSame(response, first.get());
+
+        // the response is reused within its max-age
+        assertSame(response, clientUnderTest.read(new ReadRequest(3, 0, 9), 60000L));
+        assertEquals(1, pending.size());
+
+        // a write of the resource invalidates the response
+        assertTrue(clientUnderTest.write(new WriteRequest(Mode.REPLACE, 3, 0, 9, 56L)).isSuccess());
+        clientUnderTest.readAsync(new ReadRequest(3, 0, 9), 1000L, 60000L);
+        assertEquals(2, pending.size());
+        pending.get(1).onResponse(ReadResponse.success(9, 56L));
+
+        // as does a notification
+        clientUnderTest.invalidateCachedValue(new LwM2mPath(3, 0, 9));
+        clientUnderTest.readAsync(new ReadRequest(3, 0, 9), 1000L, 60000L);
+        assertEquals(3, pending.size());
+    }
+
+    @Test
+    public void testRequestCoalescing() throws Exception {
+        final List<ResponseCallback<DiscoverResponse>> pending = new ArrayList<>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                pending.add((ResponseCallback<DiscoverResponse>) invocation.getArguments()[2]);
+                return null;
+            }
+        }).when(lwM2mRequestSenderMock).send(any(Client.class), isA(DiscoverRequest.class),
+            any(ResponseCallback.class), any(ErrorCallback.class));
+        final DeviceConfig config = new DeviceConfig();
+        config.setMaxInFlight(4);
+        final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock, null,
+            config);
+
+        final ResponseFuture<DiscoverResponse> first = clientUnderTest.discoverAsync(new DiscoverRequest(3), 1000L);
+        final ResponseFuture<DiscoverResponse> second = clientUnderTest.discoverAsync(new DiscoverRequest(3), 1000L);
+        clientUnderTest.discoverAsync(new DiscoverRequest(4), 1000L);
+        assertEquals(2, pending.size());
+        final DiscoverResponse response = DiscoverResponse.success(new LinkObject[0]);
+        pending.get(0).onResponse(response);
+        assertSame(response, first.get());
+        assertSame(response, second.get());
+        assertEquals(3, clientUnderTest.getCoalescableRequestCount());
+        assertEquals(1, clientUnderTest.getCoalescedRequestCount());
+
+        // completed requests are not shared
+        clientUnderTest.discoverAsync(new DiscoverRequest(3), 1000L);
+        assertEquals(3, pending.size());
+
+        config.setCoalesceRequests(false);
+        clientUnderTest.discoverAsync(new DiscoverRequest(4), 1000L);
+        assertEquals(4, pending.size());
+    }
+
+    @Test
+    public void testRequestScheduling() throws Exception {
+        final List<DownlinkRequest<?>> sent = new ArrayList<>();
+        final List<ResponseCallback<LwM2mResponse>> pending = new ArrayList<>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                sent.add((DownlinkRequest<?>) invocation.getArguments()[1]);
+                pending.add((ResponseCallback<LwM2mResponse>) invocation.getArguments()[2]);
+                return null;
+            }
+        }).when(lwM2mRequestSenderMock).send(any(Client.class), any(DownlinkRequest.class),
+            any(ResponseCallback.class), any(ErrorCallback.class));
+        final DeviceConfig config = new DeviceConfig();
+        config.setSchedulingPolicy(DeviceConfig.SchedulingPolicy.PRIORITY);
+        config.setCoalesceRequests(false);
+        final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock, null,
+            config);
+
+        final ReadRequest first = new ReadRequest(3, 0, 9);
+        final ReadRequest second = new ReadRequest(3, 0, 8);
+        final ExecuteRequest reboot = new ExecuteRequest(3, 0, 4);
+        clientUnderTest.readAsync(first, 1000L);
+        final ResponseFuture<ReadResponse> last = clientUnderTest.readAsync(second, 1000L);
+        final ResponseFuture<ExecuteResponse> executed = clientUnderTest.executeAsync(reboot, 1000L);
+
+        // one request in flight (NSTART = 1)
+        assertEquals(1, sent.size());
+        assertEquals(1, clientUnderTest.getInFlightRequestCount());
+        assertEquals(2, clientUnderTest.getWaitingRequestCount());
+
+        // the execute request goes ahead of the waiting read
+        pending.get(0).onResponse(ReadResponse.success(9, 55L));
+        assertEquals(Arrays.<DownlinkRequest<?>> asList(first, reboot), sent);
+        pending.get(1).onResponse(ExecuteResponse.success());
+        assertTrue(executed.isDone());
+        assertEquals(Arrays.<DownlinkRequest<?>> asList(first, reboot, second), sent);
+        assertEquals(0, clientUnderTest.getWaitingRequestCount());
+        assertTrue(clientUnderTest.getMeanQueueWait() >= 0);
+        assertTrue(clientUnderTest.getMeanServiceTime() >= 0);
+
+        // a cancelled request keeps its slot until its exchange ended
+        last.cancel(false);
+        clientUnderTest.readAsync(first, 1000L);
+        assertEquals(1, clientUnderTest.getWaitingRequestCount());
+        pending.get(2).onResponse(ReadResponse.success(8, 1L));
+        assertEquals(4, sent.size());
+        assertEquals(0, clientUnderTest.getWaitingRequestCount());
+    }
+
+    @Test
+    public void testSynchronousTimeoutStartsWhenSent() throws Exception {
+        final List<ResponseCallback<LwM2mResponse>> pending = new CopyOnWriteArrayList<>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                pending.add((ResponseCallback<LwM2mResponse>) invocation.getArguments()[2]);
+                if (pending.size() > 1) {
+                    // the synchronous read is answered right away
+                    pending.get(1).onResponse(ReadResponse.success(8, 1L));
+                }
+                return null;
+            }
+        }).when(lwM2mRequestSenderMock).send(any(Client.class), any(DownlinkRequest.class),
+            any(ResponseCallback.class), any(ErrorCallback.class));
+        final DeviceConfig config = new DeviceConfig();
+        config.setBindingModeTimeout(BindingMode.U, 100L);
+        config.setCoalesceRequests(false);
+        config.setMaxSlotWait(2000L);
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock, timer,
+                config);
+            clientUnderTest.readAsync(new ReadRequest(3, 0, 9), 1000L);
+            // the read waits longer than its timeout for the slot
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pending.get(0).onResponse(ReadResponse.success(9, 55L));
+                }
+            }, 300L, TimeUnit.MILLISECONDS);
+
+            assertNotNull(clientUnderTest.read(new ReadRequest(3, 0, 8)));
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSynchronousSlotWaitIsBounded() throws Exception {
+        // the exchanges never end, their slots are never freed
+        doNothing().when(lwM2mRequestSenderMock).send(any(Client.class), any(DownlinkRequest.class),
+            any(ResponseCallback.class), any(ErrorCallback.class));
+        final DeviceConfig config = new DeviceConfig();
+        config.setBindingModeTimeout(BindingMode.U, 100L);
+        config.setCoalesceRequests(false);
+        config.setMaxSlotWait(200L);
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final LWM2MClientDevice clientUnderTest = new LWM2MClientDevice(client, lwM2mRequestSenderMock, timer,
+                config);
+            clientUnderTest.readAsync(new ReadRequest(3, 0, 9), 100L);
+
+            final long start = System.nanoTime();
+            assertNull(clientUnderTest.read(new ReadRequest(3, 0, 8)));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+
+            // only the first read has been sent
+            verify(lwM2mRequestSenderMock, times(1)).send(any(Client.class), any(DownlinkRequest.class),
+                any(ResponseCallback.class), any(ErrorCallback.class));
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    private void verifyAsyncSend(final DownlinkRequest<?> request) {
+        verify(lwM2mRequestSenderMock).send(eq(client), eq(request), any(ResponseCallback.class),
+            any(ErrorCallback.class));
     }
 
     private ObserveSpec ObserveSpec() {
@@ -128,6 +489,10 @@ public class LWM2MClientDeviceTest {
     }
 
     private Client newClient() throws UnknownHostException {
+        return newClient(BindingMode.U);
+    }
+
+    private Client newClient(final BindingMode bindingMode) throws UnknownHostException {
         final String registrationId = RandomStringUtils.random(10, true, true);
         final String endpoint = "test" + registrationId;
         final InetAddress address = InetAddress.getLocalHost();
@@ -135,7 +500,6 @@ public class LWM2MClientDeviceTest {
         final String lwM2mVersion = "1.0";
         final Long lifetimeInSec = 10000L;
         final String smsNumber = "0170" + RandomStringUtils.random(7, false, true);
-        final BindingMode bindingMode = BindingMode.U;
         final Map<String, String> attribs = new HashMap<>();
         final LinkObject[] objectLinks = new LinkObject[] { new LinkObject("/3/1", attribs),
                 new LinkObject("/1", attribs), new LinkObject("/1/52343", attribs),
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import java.util.Collections;
+
+import org.eclipse.leshan.LinkObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ObjectLinkSetTest {
+
+    @Test
+    public void testEqualLinksShareOneInstance() {
+        final LinkObject[] links = new LinkObject[] { new LinkObject("/3/0"), new LinkObject("/4/0") };
+        final ObjectLinkSet set = ObjectLinkSet.of(links);
+
+        Assert.assertSame(set, ObjectLinkSet.of(new LinkObject[] { new LinkObject("/3/0"), new LinkObject("/4/0") }));
+        Assert.assertNotSame(links, set.getLinks());
+        Assert.assertNotSame(set, ObjectLinkSet.of(new LinkObject[] { new LinkObject("/3/0"),
+                new LinkObject("/4/0", Collections.singletonMap("ver", "1.1")) }));
+        Assert.assertNull(ObjectLinkSet.of(null));
+    }
+
+    @Test
+    public void testContainsObject() {
+        final ObjectLinkSet set = ObjectLinkSet.of(new LinkObject[] { new LinkObject("/"), new LinkObject("/3/0"),
+                new LinkObject("/5"), new LinkObject("/10241/0/1") });
+
+        Assert.assertTrue(set.containsObject(3));
+        Assert.assertTrue(set.containsObject(5));
+        Assert.assertTrue(set.containsObject(10241));
+        Assert.assertFalse(set.containsObject(0));
+        Assert.assertFalse(set.containsObject(4));
+        Assert.assertFalse(set.containsObject(65));
+        Assert.assertFalse(set.containsObject(20000));
+        Assert.assertFalse(set.containsObject(-1));
+
+        // object ids are 16 bit, larger ids are not linked
+        final ObjectLinkSet invalid = ObjectLinkSet.of(new LinkObject[] { new LinkObject("/2000000000/0") });
+        Assert.assertFalse(invalid.containsObject(2000000000));
+    }
+
+    @Test
+    public void testObjectIdsBelowAlternateRootPath() {
+        final ObjectLinkSet set = ObjectLinkSet.of(LinkObject.parse("</2016>;rt=\"oma.lwm2m\", </2016/3/0>, </2016/5>"
+            .getBytes()));
+
+        Assert.assertTrue(set.containsObject(3));
+        Assert.assertTrue(set.containsObject(5));
+        Assert.assertFalse(set.containsObject(2016));
+    }
+}
@@ -0,0 +1,505 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.leshan.LinkObject;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.BindingMode;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.eclipse.leshan.server.client.ClientUpdate;
+import org.eclipse.leshan.util.RandomStringUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Unit tests for the {@link OsgiBasedClientRegistry} against a mocked
+ * {@link BundleContext}.
+ */
+public class OsgiBasedClientRegistryTest {
+
+    /** the filter documented in {@link ClientRegistryConfig#setPublicationFilter(String)} */
+    private static final String FIRMWARE_FILTER = "(|(" + Property.LWM2M_OBJECTS + "=/5)(" + Property.LWM2M_OBJECTS
+            + "=/5/0))";
+
+    private BundleContext context;
+    private OsgiBasedClientRegistry registry;
+
+    @Before
+    public void setUp() {
+        context = newBundleContextMock();
+        registry = new OsgiBasedClientRegistry(context, null);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        registry.stop();
+    }
+
+    @Test
+    public void testFindByRegistrationId() throws UnknownHostException {
+        final Client client = newClient("ep1");
+        registry.registerClient(client);
+        registry.registerClient(newClient("ep2"));
+
+        Assert.assertEquals(client, registry.findByRegistrationId(client.getRegistrationId()));
+        Assert.assertNull(registry.findByRegistrationId("unknown"));
+    }
+
+    @Test
+    public void testReRegistrationReplacesRegistrationId() throws UnknownHostException {
+        final Client stale = newClient("ep1");
+        final Client fresh = newClient("ep1");
+        registry.registerClient(stale);
+        registry.registerClient(fresh);
+
+        Assert.assertNull(registry.findByRegistrationId(stale.getRegistrationId()));
+        Assert.assertEquals(fresh, registry.findByRegistrationId(fresh.getRegistrationId()));
+        Assert.assertNull(registry.deregisterClient(stale.getRegistrationId()));
+        Assert.assertEquals(1, registry.allClients().size());
+    }
+
+    @Test
+    public void testUpdateAndDeregisterByRegistrationId() throws UnknownHostException {
+        final Client client = newClient("ep1");
+        registry.registerClient(client);
+
+        final Client updated = registry.updateClient(new ClientUpdate(client.getRegistrationId(), null, null,
+            20000L, null, null, null));
+        Assert.assertEquals(Long.valueOf(20000L), updated.getLifeTimeInSec());
+        Assert.assertEquals(updated, registry.findByRegistrationId(client.getRegistrationId()));
+
+        Assert.assertNotNull(registry.deregisterClient(client.getRegistrationId()));
+        Assert.assertNull(registry.findByRegistrationId(client.getRegistrationId()));
+        Assert.assertNull(registry.updateClient(new ClientUpdate(client.getRegistrationId(), null, null, 20000L,
+            null, null, null)));
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testPropertyUpdatesAreCoalesced() throws Exception {
+        registry.stop();
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setPropertyUpdateWindow(200L);
+        registry = new OsgiBasedClientRegistry(context, null, config);
+
+        final Client client = newClient("ep1");
+        registry.registerClient(client);
+        final ServiceRegistration<LWM2MClientDevice> registration = registry.getServiceRegistrationById(client
+            .getRegistrationId());
+        final Object registeredExpiration = registration.getReference().getProperty(
+            Property.REGISTRATION_EXPIRATION);
+        Thread.sleep(20L);
+        final ClientUpdate update = new ClientUpdate(client.getRegistrationId(), null, null, null, null, null, null);
+        for (int i = 0; i < 10; i++) {
+            registry.updateClient(update);
+        }
+        verify(registration, never()).setProperties(any(Dictionary.class));
+
+        // the latest properties are published at the end of the window
+        final ArgumentCaptor<Dictionary> published = ArgumentCaptor.forClass(Dictionary.class);
+        verify(registration, timeout(2000L)).setProperties(published.capture());
+        Assert.assertNotEquals(registeredExpiration, published.getValue().get(Property.REGISTRATION_EXPIRATION));
+
+        // structural changes are published immediately
+        registry.updateClient(new ClientUpdate(client.getRegistrationId(), null, null, null, null, null,
+            new LinkObject[] { new LinkObject("/3/0") }));
+        verify(registration, times(2)).setProperties(any(Dictionary.class));
+    }
+
+    @Test
+    public void testSelectivePublication() throws Exception {
+        registry.stop();
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setPublicationMode(ClientRegistryConfig.PublicationMode.SELECTIVE);
+        config.setPublicationFilter(FIRMWARE_FILTER);
+        registry = new OsgiBasedClientRegistry(context, null, config);
+        verify(context).registerService(DeviceLookupService.class, registry, null);
+
+        final Client selected = newClient("ep1");
+        final Client other = newClient("ep2");
+        registry.registerClient(selected);
+        registry.updateClient(new ClientUpdate(selected.getRegistrationId(), null, null, null, null, null,
+            LinkObject.parse("</5/0>".getBytes())));
+        registry.registerClient(other);
+        final LWM2MClientDevice device = registry.getDevice("ep2");
+
+        // only the device matching the filter is registered as service
+        verify(context).registerService(eq(LWM2MClientDevice.class), any(LWM2MClientDevice.class),
+            any(Dictionary.class));
+        Assert.assertNotNull(registry.getServiceRegistrationById(selected.getRegistrationId()));
+        Assert.assertNull(registry.getServiceRegistrationById(other.getRegistrationId()));
+        Assert.assertEquals(2, registry.getDeviceCount());
+        Assert.assertEquals(Arrays.asList(device), registry.findDevices("(" + Property.LWM2M_OBJECTS + "=/1)"));
+
+        // pinned devices are registered until unpinned
+        Assert.assertTrue(registry.pin("ep2"));
+        final ServiceRegistration<LWM2MClientDevice> pinned = registry.getServiceRegistrationById(other
+            .getRegistrationId());
+        Assert.assertNotNull(pinned);
+        registry.unpin("ep2");
+        verify(pinned).unregister();
+        Assert.assertNull(registry.getServiceRegistrationById(other.getRegistrationId()));
+
+        // devices no longer matching the filter are unregistered
+        final ServiceRegistration<LWM2MClientDevice> registration = registry.getServiceRegistrationById(selected
+            .getRegistrationId());
+        registry.updateClient(new ClientUpdate(selected.getRegistrationId(), null, null, null, null, null,
+            new LinkObject[] { new LinkObject("/3/0") }));
+        verify(registration).unregister();
+        Assert.assertNotNull(registry.getDevice("ep1"));
+    }
+
+    @Test
+    public void testCompactStorage() throws Exception {
+        registry.stop();
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setPublicationMode(ClientRegistryConfig.PublicationMode.SELECTIVE);
+        config.setPublicationFilter(FIRMWARE_FILTER);
+        config.setCompactStorage(true);
+        registry = new OsgiBasedClientRegistry(context, null, config);
+
+        final Client stored = newClient("ep1");
+        final Client selected = newClient("ep2");
+        registry.registerClient(stored);
+        registry.registerClient(selected);
+        final Client updated = registry.updateClient(new ClientUpdate(stored.getRegistrationId(), null, null,
+            20000L, null, null, null));
+        registry.updateClient(new ClientUpdate(selected.getRegistrationId(), null, null, null, null, null,
+            new LinkObject[] { new LinkObject("/5") }));
+
+        // the stored registration is read without creating the device
+        Assert.assertEquals(20000L, (long) updated.getLifeTimeInSec());
+        Assert.assertTrue(registry.allClients().contains(updated));
+        Assert.assertNull(registry.getServiceRegistrationById(stored.getRegistrationId()));
+        Assert.assertNotNull(registry.getServiceRegistrationById(selected.getRegistrationId()));
+        // as are the lookups of the LWM2M server
+        Assert.assertEquals(updated, registry.findByRegistrationId(stored.getRegistrationId()));
+        Assert.assertEquals(updated, registry.get("ep1"));
+        registry.invalidateCachedValue(stored.getRegistrationId(), new LwM2mPath("/3/0/1"));
+        Assert.assertEquals(1, registry.getStoredDeviceCount());
+
+        // a looked up device is created from the stored registration
+        Assert.assertEquals(1, registry.findDevices("(" + Property.REGISTRATION_ID + "="
+                + stored.getRegistrationId() + ")").size());
+        final LWM2MClientDevice device = registry.getDevice("ep1");
+        Assert.assertEquals(updated, device.getClient());
+        Assert.assertSame(device, registry.findDeviceByRegistrationId(stored.getRegistrationId()));
+
+        Assert.assertEquals(updated, registry.deregisterClient(stored.getRegistrationId()));
+        Assert.assertEquals(1, registry.getDeviceCount());
+        Assert.assertEquals(0, registry.removeExpiredRegistrations(System.currentTimeMillis()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReentrantLookupDoesNotRegisterTwice() throws Exception {
+        registry.stop();
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setPublicationMode(ClientRegistryConfig.PublicationMode.SELECTIVE);
+        config.setPublicationFilter(FIRMWARE_FILTER);
+        registry = new OsgiBasedClientRegistry(context, null, config);
+        final Client client = newClient("ep1");
+        registry.registerClient(client);
+
+        // a service listener looking up and pinning the device while the
+        // framework registers its service
+        when(context.registerService(eq(LWM2MClientDevice.class), any(LWM2MClientDevice.class),
+                any(Dictionary.class))).thenAnswer(new Answer<ServiceRegistration<LWM2MClientDevice>>() {
+            @Override
+            public ServiceRegistration<LWM2MClientDevice> answer(final InvocationOnMock invocation) {
+                Assert.assertNotNull(registry.getDevice("ep1"));
+                Assert.assertTrue(registry.pin("ep1"));
+                return newServiceRegistrationMock(context, (LWM2MClientDevice) invocation.getArguments()[1],
+                    (Dictionary<String, Object>) invocation.getArguments()[2]);
+            }
+        });
+        Assert.assertTrue(registry.pin("ep1"));
+
+        verify(context, times(1)).registerService(eq(LWM2MClientDevice.class), any(LWM2MClientDevice.class),
+            any(Dictionary.class));
+        Assert.assertNotNull(registry.getServiceRegistrationById(client.getRegistrationId()));
+    }
+
+    @Test
+    public void testEqualObjectLinksAreShared() throws Exception {
+        registry.stop();
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setPublicationMode(ClientRegistryConfig.PublicationMode.SELECTIVE);
+        config.setCompactStorage(true);
+        registry = new OsgiBasedClientRegistry(context, null, config);
+
+        registry.registerClient(newClient("ep1"));
+        registry.registerClient(newClient("ep2"));
+        final Client firmware = newClient("ep3");
+        registry.registerClient(firmware);
+        registry.updateClient(new ClientUpdate(firmware.getRegistrationId(), null, null, null, null, null,
+            new LinkObject[] { new LinkObject("/3/0"), new LinkObject("/5/0") }));
+
+        // checked on the compact store before the devices are looked up
+        final List<LWM2MClientDevice> supportingFirmware = registry.findDevicesSupportingObject(5);
+        Assert.assertEquals(Arrays.asList(registry.getDevice("ep3")), supportingFirmware);
+
+        final LWM2MClientDevice device = registry.getDevice("ep1");
+        Assert.assertSame(device.getObjectLinks(), registry.getDevice("ep2").getObjectLinks());
+        Assert.assertTrue(device.supportsObject(3));
+        Assert.assertFalse(device.supportsObject(5));
+        Assert.assertEquals(3, registry.findDevicesSupportingObject(3).size());
+    }
+
+    @Test
+    public void testConcurrentOperationsStayConsistent() throws Exception {
+        registry.stop();
+        // registrations which are alive, unregistering twice is an error
+        final Set<ServiceRegistration<?>> live = Collections.newSetFromMap(
+            new ConcurrentHashMap<ServiceRegistration<?>, Boolean>());
+        final AtomicInteger errors = new AtomicInteger();
+        final BundleContext ctx = mock(BundleContext.class);
+        when(ctx.registerService(eq(LWM2MClientDevice.class), any(LWM2MClientDevice.class), any(Dictionary.class)))
+            .thenAnswer(new Answer<ServiceRegistration<?>>() {
+                @Override
+                public ServiceRegistration<?> answer(final InvocationOnMock invocation) {
+                    return newTrackedRegistration(live, errors);
+                }
+            });
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setPropertyUpdateWindow(0L);
+        registry = new OsgiBasedClientRegistry(ctx, null, config);
+        final AtomicInteger listed = new AtomicInteger();
+        registry.addListener(new ClientRegistryListener() {
+            @Override
+            public void registered(final Client client) {
+                listed.incrementAndGet();
+            }
+
+            @Override
+            public void updated(final Client clientUpdated) {
+            }
+
+            @Override
+            public void unregistered(final Client client) {
+                listed.decrementAndGet();
+            }
+        });
+
+        final String[] endpoints = new String[] { "ep1", "ep2", "ep3", "ep4" };
+        final int threads = 8;
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final Random random = new Random();
+                    start.await();
+                    for (int i = 0; i < 2000; i++) {
+                        final String endpoint = endpoints[random.nextInt(endpoints.length)];
+                        final Client current = registry.get(endpoint);
+                        switch (random.nextInt(4)) {
+                        case 0:
+                            // lifetime 0 expires immediately
+                            registry.registerClient(newClient(endpoint, random.nextBoolean() ? 0L : 10000L));
+                            break;
+                        case 1:
+                            if (current != null) {
+                                registry.updateClient(new ClientUpdate(current.getRegistrationId(), null, null,
+                                    random.nextBoolean() ? 0L : 10000L, null, null, null));
+                            }
+                            break;
+                        case 2:
+                            if (current != null) {
+                                registry.deregisterClient(current.getRegistrationId());
+                            }
+                            break;
+                        default:
+                            registry.removeExpiredRegistrations(Long.MAX_VALUE);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (final Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(0, errors.get());
+        final Collection<Client> clients = registry.allClients();
+        Assert.assertTrue(clients.size() <= endpoints.length);
+        Assert.assertEquals(clients.size(), live.size());
+        Assert.assertEquals(clients.size(), listed.get());
+        for (final Client client : clients) {
+            Assert.assertSame(client, registry.findByRegistrationId(client.getRegistrationId()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ServiceRegistration<?> newTrackedRegistration(final Set<ServiceRegistration<?>> live,
+            final AtomicInteger errors) {
+        final ServiceRegistration<?>[] self = new ServiceRegistration<?>[1];
+        self[0] = (ServiceRegistration<?>) Proxy.newProxyInstance(OsgiBasedClientRegistryTest.class
+            .getClassLoader(), new Class<?>[] { ServiceRegistration.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("unregister".equals(method.getName())) {
+                    if (!live.remove(self[0])) {
+                        errors.incrementAndGet();
+                        throw new IllegalStateException("already unregistered");
+                    }
+                } else if ("setProperties".equals(method.getName())) {
+                    if (!live.contains(self[0])) {
+                        errors.incrementAndGet();
+                        throw new IllegalStateException("already unregistered");
+                    }
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                } else if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                }
+                return null;
+            }
+        });
+        live.add(self[0]);
+        return self[0];
+    }
+
+    public static Client newClient(final String endpoint) throws UnknownHostException {
+        return newClient(endpoint, 10000L);
+    }
+
+    static Client newClient(final String endpoint, final long lifetime) throws UnknownHostException {
+        final String registrationId = RandomStringUtils.random(10, true, true);
+        final Map<String, String> attribs = new HashMap<>();
+        final LinkObject[] objectLinks = new LinkObject[] { new LinkObject("/3/0", attribs),
+                new LinkObject("/1", attribs) };
+        return new Client(registrationId, endpoint, InetAddress.getLocalHost(), 5683, "1.0", lifetime, null,
+            BindingMode.U, objectLinks, InetSocketAddress.createUnresolved("localhost", 5683));
+    }
+
+    /**
+     * Creates a {@link BundleContext} mock which keeps registered services and
+     * their properties in memory.
+     */
+    @SuppressWarnings("unchecked")
+    static BundleContext newBundleContextMock() {
+        final BundleContext ctx = mock(BundleContext.class);
+        when(ctx.registerService(eq(LWM2MClientDevice.class), any(LWM2MClientDevice.class), any(Dictionary.class)))
+            .thenAnswer(new Answer<ServiceRegistration<LWM2MClientDevice>>() {
+                @Override
+                public ServiceRegistration<LWM2MClientDevice> answer(final InvocationOnMock invocation) {
+                    final LWM2MClientDevice device = (LWM2MClientDevice) invocation.getArguments()[1];
+                    final Dictionary<String, Object> props = (Dictionary<String, Object>) invocation.getArguments()[2];
+                    return newServiceRegistrationMock(ctx, device, props);
+                }
+            });
+        return ctx;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ServiceRegistration<LWM2MClientDevice> newServiceRegistrationMock(final BundleContext ctx,
+            final LWM2MClientDevice device, final Dictionary<String, Object> initialProps) {
+        final ServiceRegistration<LWM2MClientDevice> registration = mock(ServiceRegistration.class);
+        final ServiceReference<LWM2MClientDevice> reference = mock(ServiceReference.class);
+        final Object[] props = new Object[] { initialProps };
+        final boolean[] unregistered = new boolean[1];
+
+        when(registration.getReference()).thenAnswer(new Answer<ServiceReference<LWM2MClientDevice>>() {
+            @Override
+            public ServiceReference<LWM2MClientDevice> answer(final InvocationOnMock invocation) {
+                if (unregistered[0]) {
+                    throw new IllegalStateException("already unregistered");
+                }
+                return reference;
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                props[0] = invocation.getArguments()[0];
+                return null;
+            }
+        }).when(registration).setProperties(any(Dictionary.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                if (unregistered[0]) {
+                    throw new IllegalStateException("already unregistered");
+                }
+                unregistered[0] = true;
+                return null;
+            }
+        }).when(registration).unregister();
+        when(reference.getProperty(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) {
+                return ((Dictionary<String, Object>) props[0]).get(invocation.getArguments()[0]);
+            }
+        });
+        when(ctx.getService(reference)).thenAnswer(new Answer<LWM2MClientDevice>() {
+            @Override
+            public LWM2MClientDevice answer(final InvocationOnMock invocation) {
+                return unregistered[0] ? null : device;
+            }
+        });
+        return registration;
+    }
+}
@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import static leshan.server.lwm2m.osgi.OsgiBasedClientRegistryTest.newBundleContextMock;
+import static leshan.server.lwm2m.osgi.OsgiBasedClientRegistryTest.newClient;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistry;
+import org.eclipse.leshan.server.client.ClientUpdate;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Unit tests for the {@link RegistrationJournal} and the recovery of the
+ * {@link OsgiBasedClientRegistry} from it.
+ */
+public class RegistrationJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRegistryIsRestored() throws Exception {
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setJournalConfig(new JournalConfig(folder.getRoot()));
+        OsgiBasedClientRegistry registry = new OsgiBasedClientRegistry(newBundleContextMock(), null, config);
+
+        final Client kept = newClient("ep1");
+        final Client updated = newClient("ep2");
+        final Client deregistered = newClient("ep3");
+        final Client stale = newClient("ep4");
+        final Client reRegistered = newClient("ep4");
+        for (final Client client : Arrays.asList(kept, updated, deregistered, stale, reRegistered,
+            newClient("expired", 0L))) {
+            registry.registerClient(client);
+        }
+        final Client updatedClient = registry.updateClient(new ClientUpdate(updated.getRegistrationId(),
+            InetAddress.getByName("127.0.0.2"), 5684, 20000L, null, null, null));
+        registry.deregisterClient(deregistered.getRegistrationId());
+        registry.stop();
+
+        final BundleContext context = newBundleContextMock();
+        registry = new OsgiBasedClientRegistry(context, null, config);
+        try {
+            Assert.assertEquals(3, registry.allClients().size());
+            Assert.assertEquals(kept, registry.get("ep1"));
+            Assert.assertEquals(updatedClient, registry.get("ep2"));
+            Assert.assertNull(registry.get("ep3"));
+            Assert.assertEquals(reRegistered, registry.get("ep4"));
+            Assert.assertNull(registry.findByRegistrationId(stale.getRegistrationId()));
+            Assert.assertNull(registry.get("expired"));
+            verify(context, times(3)).registerService(eq(LWM2MClientDevice.class), any(LWM2MClientDevice.class),
+                any(Dictionary.class));
+        } finally {
+            registry.stop();
+        }
+    }
+
+    @Test
+    public void testServicesAreRegisteredInChunks() throws Exception {
+        final ClientRegistryConfig config = newJournaledConfig(25);
+        config.getJournalConfig().setRestoreMode(JournalConfig.RestoreMode.CHUNKED);
+        config.getJournalConfig().setRestoreChunkSize(10);
+
+        final BundleContext context = newBundleContextMock();
+        final OsgiBasedClientRegistry registry = new OsgiBasedClientRegistry(context, null, config);
+        try {
+            Assert.assertEquals(25, registry.allClients().size());
+            Assert.assertTrue(registry.getRestoreDuration() >= 0);
+            verify(context, timeout(5000).times(25)).registerService(eq(LWM2MClientDevice.class),
+                any(LWM2MClientDevice.class), any(Dictionary.class));
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (registry.getUnpublishedDeviceCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, registry.getUnpublishedDeviceCount());
+            Assert.assertTrue(registry.getPublicationDuration() >= registry.getRestoreDuration());
+        } finally {
+            registry.stop();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testServicesAreRegisteredOnDemand() throws Exception {
+        final ClientRegistryConfig config = newJournaledConfig(3);
+        config.getJournalConfig().setRestoreMode(JournalConfig.RestoreMode.ON_DEMAND);
+
+        final BundleContext context = newBundleContextMock();
+        final OsgiBasedClientRegistry registry = new OsgiBasedClientRegistry(context, null, config);
+        try {
+            Assert.assertEquals(3, registry.allClients().size());
+            Assert.assertEquals(3, registry.getUnpublishedDeviceCount());
+            verify(context, never()).registerService(eq(LWM2MClientDevice.class), any(LWM2MClientDevice.class),
+                any(Dictionary.class));
+
+            final LWM2MClientDevice device = registry.getDevice("ep0");
+            Assert.assertNotNull(registry.getServiceRegistrationById(device.getClient().getRegistrationId()));
+            final ArgumentCaptor<Dictionary> properties = ArgumentCaptor.forClass(Dictionary.class);
+            verify(context).registerService(eq(LWM2MClientDevice.class), eq(device), properties.capture());
+            // the expiration of the registration, not of the publication
+            Assert.assertEquals(ClientExpirationQueue.expirationTimeOf(device.getClient()), properties.getValue()
+                .get(Property.REGISTRATION_EXPIRATION));
+
+            // the lookups and updates of the LWM2M server do not register it
+            final Client updated = registry.get("ep2");
+            Assert.assertEquals(updated, registry.findByRegistrationId(updated.getRegistrationId()));
+            Assert.assertNotNull(registry.updateClient(new ClientUpdate(updated.getRegistrationId(), null, null,
+                null, null, null, null)));
+            verify(context).registerService(eq(LWM2MClientDevice.class), any(LWM2MClientDevice.class),
+                any(Dictionary.class));
+
+            // removed before being looked up
+            Assert.assertNotNull(registry.deregisterClient(unpublishedClient(registry, "ep1").getRegistrationId()));
+            Assert.assertEquals(1, registry.getUnpublishedDeviceCount());
+            Assert.assertEquals(-1, registry.getPublicationDuration());
+        } finally {
+            registry.stop();
+        }
+    }
+
+    @Test
+    public void testRecordsAreCommittedInGroups() throws Exception {
+        final JournalConfig config = new JournalConfig(folder.getRoot());
+        config.setCommitWindow(50L);
+        final RegistrationJournal journal = new RegistrationJournal(config);
+        final List<Client> clients = new CopyOnWriteArrayList<>();
+        journal.open(registryOf(clients));
+
+        for (int i = 0; i < 100; i++) {
+            final Client client = newClient("ep" + i);
+            clients.add(client);
+            journal.register(client);
+        }
+        journal.close();
+
+        Assert.assertEquals(100, journal.getWrittenRecordCount());
+        Assert.assertTrue(journal.getCommitCount() < 10);
+        Assert.assertEquals(clients, new ArrayList<>(new RegistrationJournal(config).recover(System
+            .currentTimeMillis())));
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws Exception {
+        final JournalConfig config = new JournalConfig(folder.getRoot());
+        final RegistrationJournal journal = new RegistrationJournal(config);
+        final List<Client> clients = new CopyOnWriteArrayList<>();
+        journal.open(registryOf(clients));
+        final Client client = newClient("ep1");
+        clients.add(client);
+        journal.register(client);
+        journal.close();
+
+        // a record torn by a crash: the length, but only part of the payload
+        final File[] journals = journalFiles();
+        Assert.assertEquals(1, journals.length);
+        try (FileOutputStream out = new FileOutputStream(journals[0], true)) {
+            out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 1, 0 });
+        }
+
+        final Collection<Client> recovered = new RegistrationJournal(config).recover(System.currentTimeMillis());
+        Assert.assertEquals(Collections.singletonList(client), new ArrayList<>(recovered));
+    }
+
+    @Test
+    public void testUndecodableRecordIsSkipped() throws Exception {
+        final JournalConfig config = new JournalConfig(folder.newFolder());
+        final RegistrationJournal journal = new RegistrationJournal(config);
+        final List<Client> clients = new CopyOnWriteArrayList<>();
+        journal.open(registryOf(clients));
+        // the record goes to the journal file following the first snapshot
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (journal.getSnapshotCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        final Client client = newClient("ep1");
+        journal.register(client);
+        journal.close();
+        final File[] written = config.getDirectory().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(".journal");
+            }
+        });
+        Assert.assertEquals(1, written.length);
+
+        // records with a valid CRC, but a truncated register, an update with
+        // a string length beyond the payload and an unknown type
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(folder.getRoot(),
+            "registry-1.journal")))) {
+            for (final byte[] payload : new byte[][] { { 1 }, { 2, 0, 0, 0, 50 }, { 9 } }) {
+                final CRC32 crc = new CRC32();
+                crc.update(payload);
+                out.writeInt(payload.length);
+                out.writeInt((int) crc.getValue());
+                out.write(payload);
+            }
+            out.write(Files.readAllBytes(written[0].toPath()));
+        }
+
+        final Collection<Client> recovered = new RegistrationJournal(new JournalConfig(folder.getRoot()))
+            .recover(System.currentTimeMillis());
+        Assert.assertEquals(Collections.singletonList(client), new ArrayList<>(recovered));
+    }
+
+    @Test
+    public void testUnrecoveredFilesAreNotCompacted() throws Exception {
+        final ClientRegistryConfig config = newJournaledConfig(1);
+        final File journal = journalFiles()[0];
+        // a journal file which cannot be read
+        Assert.assertTrue(new File(folder.getRoot(), "registry-99.journal").mkdir());
+
+        final OsgiBasedClientRegistry registry = new OsgiBasedClientRegistry(newBundleContextMock(), null, config);
+        try {
+            Assert.assertNull(registry.get("ep0"));
+            final File[] setAside = folder.getRoot().listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(final File dir, final String name) {
+                    return name.startsWith("unrecovered-");
+                }
+            });
+            Assert.assertEquals(1, setAside.length);
+            Assert.assertTrue(new File(setAside[0], journal.getName()).isFile());
+        } finally {
+            registry.stop();
+        }
+    }
+
+    @Test
+    public void testRecordsAreDroppedAfterWriterFailure() throws Exception {
+        final JournalConfig config = new JournalConfig(folder.getRoot());
+        final RegistrationJournal journal = new RegistrationJournal(config);
+        final ClientRegistry registry = mock(ClientRegistry.class);
+        when(registry.allClients()).thenThrow(new IllegalStateException("snapshot failed"));
+        journal.open(registry);
+
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (journal.getWriterFailure() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertTrue(journal.getWriterFailure() instanceof IllegalStateException);
+
+        journal.register(newClient("ep1"));
+        journal.close();
+        Assert.assertEquals(0, journal.getWrittenRecordCount());
+    }
+
+    @Test
+    public void testSnapshotCompactsJournal() throws Exception {
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        final JournalConfig journalConfig = new JournalConfig(folder.getRoot());
+        journalConfig.setCommitWindow(0L);
+        journalConfig.setSnapshotThreshold(10);
+        config.setJournalConfig(journalConfig);
+        OsgiBasedClientRegistry registry = new OsgiBasedClientRegistry(newBundleContextMock(), null, config);
+
+        final Client client = newClient("ep1");
+        registry.registerClient(client);
+        Client updated = client;
+        for (int i = 0; i < 100; i++) {
+            updated = registry.updateClient(new ClientUpdate(client.getRegistrationId(), null, null, 10000L + i,
+                null, null, null));
+            // let the writer commit separately
+            Thread.sleep(1);
+        }
+        registry.stop();
+
+        // 101 records, a snapshot every 10 records, only the latest files kept
+        final File[] journals = journalFiles();
+        Assert.assertEquals(1, journals.length);
+        final String journalName = journals[0].getName();
+        Assert.assertTrue(journalName, Integer.parseInt(journalName.replaceAll("\\D", "")) > 5);
+        Assert.assertTrue(new File(folder.getRoot(), journalName.replace(".journal", ".snapshot")).isFile());
+        Assert.assertEquals(2, folder.getRoot().list().length);
+
+        registry = new OsgiBasedClientRegistry(newBundleContextMock(), null, config);
+        try {
+            Assert.assertEquals(updated, registry.get("ep1"));
+        } finally {
+            registry.stop();
+        }
+    }
+
+    /**
+     * @return a registry configuration with a journal holding the given number
+     *         of registrations
+     */
+    private ClientRegistryConfig newJournaledConfig(final int registrations) throws Exception {
+        final ClientRegistryConfig config = new ClientRegistryConfig();
+        config.setJournalConfig(new JournalConfig(folder.getRoot()));
+        final OsgiBasedClientRegistry registry = new OsgiBasedClientRegistry(newBundleContextMock(), null, config);
+        for (int i = 0; i < registrations; i++) {
+            registry.registerClient(newClient("ep" + i));
+        }
+        registry.stop();
+        return config;
+    }
+
+    /**
+     * @return the client registered under the endpoint, looked up without
+     *         registering its service
+     */
+    private static Client unpublishedClient(final OsgiBasedClientRegistry registry, final String endpoint) {
+        for (final Client client : registry.allClients()) {
+            if (client.getEndpoint().equals(endpoint)) {
+                return client;
+            }
+        }
+        return null;
+    }
+
+    private File[] journalFiles() {
+        return folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(".journal");
+            }
+        });
+    }
+
+    /**
+     * @return a registry holding the given clients, as the journal expects
+     *         the registry to contain the clients before they are appended
+     */
+    private static ClientRegistry registryOf(final List<Client> clients) {
+        final ClientRegistry registry = mock(ClientRegistry.class);
+        when(registry.allClients()).thenReturn(clients);
+        return registry;
+    }
+}
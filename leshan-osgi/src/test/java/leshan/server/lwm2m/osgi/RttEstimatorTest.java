@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RttEstimatorTest {
+
+    @Test
+    public void testTimeoutFollowsSamples() {
+        final RttEstimator estimator = new RttEstimator(2000L, 50L, 60000L);
+        assertEquals(2000L, estimator.getTimeout());
+        assertEquals(-1L, estimator.getSmoothedRtt());
+
+        estimator.addSample(20L);
+        assertEquals(20L, estimator.getSmoothedRtt());
+        assertEquals(10L, estimator.getRttVariance());
+        // SRTT + 4 * RTTVAR
+        assertEquals(60L, estimator.getTimeout());
+
+        for (int i = 0; i < 50; i++) {
+            estimator.addSample(20L);
+        }
+        // bounded by the minimum timeout
+        assertEquals(50L, estimator.getTimeout());
+    }
+
+    @Test
+    public void testBackOffAndReset() {
+        final RttEstimator estimator = new RttEstimator(2000L, 50L, 5000L);
+        estimator.onTimeout();
+        assertEquals(4000L, estimator.getTimeout());
+        estimator.onTimeout();
+        assertEquals(5000L, estimator.getTimeout());
+
+        estimator.addSample(100L);
+        assertEquals(300L, estimator.getTimeout());
+
+        estimator.reset();
+        assertEquals(2000L, estimator.getTimeout());
+        assertEquals(-1L, estimator.getSmoothedRtt());
+    }
+
+    @Test
+    public void testSlowRoundTripsAreSampled() {
+        final RttEstimator estimator = new DeviceConfig().newRttEstimator();
+        // e.g. NB-IoT, slower than the CoAP ACK_TIMEOUT
+        estimator.addSample(2500L);
+        assertEquals(2500L, estimator.getSmoothedRtt());
+        assertEquals(7500L, estimator.getTimeout());
+    }
+
+    @Test
+    public void testMinTimeoutBelowAckTimeout() {
+        final DeviceConfig config = new DeviceConfig();
+        config.setMinTimeout(20L);
+        final RttEstimator estimator = config.newRttEstimator();
+        estimator.addSample(20L);
+        assertEquals(60L, estimator.getTimeout());
+    }
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+
+import leshan.server.lwm2m.osgi.OsgiBasedClientRegistryTest;
+import leshan.server.lwm2m.osgi.Property;
+
+import org.eclipse.leshan.core.node.LwM2mNode;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.observation.Observation;
+import org.eclipse.leshan.server.client.Client;
+import org.eclipse.leshan.server.client.ClientRegistry;
+import org.eclipse.leshan.server.client.ClientRegistryListener;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+public class Lwm2mEventPublisherTest {
+
+    private BundleContext context;
+    private EventAdmin eventAdmin;
+    private ClientRegistry registry;
+    private Client client;
+    private Lwm2mEventPublisher publisher;
+
+    @Before
+    public void setUp() throws Exception {
+        context = mock(BundleContext.class);
+        eventAdmin = mock(EventAdmin.class);
+        final ServiceReference<?> ref = mock(ServiceReference.class);
+        when(context.getServiceReferences(anyString(), anyString())).thenReturn(new ServiceReference<?>[] { ref });
+        when(context.getService(ref)).thenReturn((Object) eventAdmin);
+
+        client = OsgiBasedClientRegistryTest.newClient("ep1");
+        registry = mock(ClientRegistry.class);
+        when(registry.findByRegistrationId(client.getRegistrationId())).thenReturn(client);
+    }
+
+    @After
+    public void tearDown() {
+        if (publisher != null) {
+            publisher.close();
+        }
+    }
+
+    @Test
+    public void testNewValue() {
+        publisher = new Lwm2mEventPublisher(context, registry);
+        final LwM2mNode node = LwM2mSingleResource.newIntegerResource(9, 55);
+        publisher.newValue(newObservation(new LwM2mPath(3, 0, 9)), node);
+
+        final ArgumentCaptor<Event> event = ArgumentCaptor.forClass(Event.class);
+        verify(eventAdmin).postEvent(event.capture());
+        Assert.assertEquals("ep1/3/0/9", event.getValue().getTopic());
+        Assert.assertSame(node, event.getValue().getProperty(Property.LWM2MNODE));
+        Assert.assertSame(client, event.getValue().getProperty(Property.CLIENT));
+    }
+
+    @Test
+    public void testClientsAreIndexed() throws Exception {
+        final ArgumentCaptor<ClientRegistryListener> listener = ArgumentCaptor.forClass(ClientRegistryListener.class);
+        // deregistered while the publisher is created
+        final Client deregistered = OsgiBasedClientRegistryTest.newClient("ep2");
+        when(registry.allClients()).thenReturn(Arrays.asList(client, deregistered));
+        publisher = new Lwm2mEventPublisher(context, registry);
+        verify(registry).addListener(listener.capture());
+
+        publisher.newValue(newObservation(new LwM2mPath(3, 0, 9)), LwM2mSingleResource.newIntegerResource(9, 55));
+        verify(eventAdmin).postEvent(any(Event.class));
+        verify(registry).findByRegistrationId(client.getRegistrationId());
+
+        // clients not found by the registry after indexing are not kept
+        final Observation observation = mock(Observation.class);
+        when(observation.getRegistrationId()).thenReturn(deregistered.getRegistrationId());
+        when(observation.getPath()).thenReturn(new LwM2mPath(3, 0, 9));
+        publisher.newValue(observation, LwM2mSingleResource.newIntegerResource(9, 55));
+        verify(registry, times(2)).findByRegistrationId(deregistered.getRegistrationId());
+        verify(eventAdmin).postEvent(any(Event.class));
+
+        // unregistered clients are looked up in the registry again
+        listener.getValue().unregistered(client);
+        publisher.newValue(newObservation(new LwM2mPath(3, 0, 9)), LwM2mSingleResource.newIntegerResource(9, 54));
+        verify(registry, times(2)).findByRegistrationId(client.getRegistrationId());
+    }
+
+    @Test
+    public void testTopicsAreCachedUntilCancelled() {
+        publisher = new Lwm2mEventPublisher(context, registry);
+        final Observation observation = newObservation(new LwM2mPath(3, 0, 9));
+        publisher.newObservation(observation);
+        publisher.newValue(observation, LwM2mSingleResource.newIntegerResource(9, 55));
+        publisher.newValue(observation, LwM2mSingleResource.newIntegerResource(9, 54));
+
+        final ArgumentCaptor<Event> event = ArgumentCaptor.forClass(Event.class);
+        verify(eventAdmin, times(2)).postEvent(event.capture());
+        Assert.assertEquals("ep1/3/0/9", event.getAllValues().get(0).getTopic());
+        Assert.assertSame(event.getAllValues().get(0).getTopic(), event.getAllValues().get(1).getTopic());
+
+        publisher.cancelled(observation);
+        publisher.newValue(observation, LwM2mSingleResource.newIntegerResource(9, 53));
+        verify(eventAdmin, times(3)).postEvent(event.capture());
+        Assert.assertEquals("ep1/3/0/9", event.getValue().getTopic());
+        Assert.assertNotSame(event.getAllValues().get(0).getTopic(), event.getValue().getTopic());
+    }
+
+    @Test
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void testLatestValueCache() {
+        final ServiceRegistration<?> registration = mock(ServiceRegistration.class);
+        when(context.registerService(eq(LatestValueService.class), any(LatestValueService.class),
+            any(Dictionary.class))).thenReturn((ServiceRegistration) registration);
+        final ArgumentCaptor<ClientRegistryListener> listener = ArgumentCaptor.forClass(ClientRegistryListener.class);
+        final LatestValueCacheConfig config = new LatestValueCacheConfig();
+        config.setMaxEntries(2);
+        publisher = new Lwm2mEventPublisher(context, registry, null, null, config);
+        verify(registry).addListener(listener.capture());
+        final LatestValueService service = publisher.getLatestValueService();
+        verify(context).registerService(LatestValueService.class, service, null);
+
+        final LwM2mNode node = LwM2mSingleResource.newIntegerResource(9, 54);
+        publisher.newValue(newObservation(new LwM2mPath(3, 0, 9)), LwM2mSingleResource.newIntegerResource(9, 55));
+        publisher.newValue(newObservation(new LwM2mPath(3, 0, 9)), node);
+        publisher.newValue(newObservation(new LwM2mPath(4, 0, 2)), LwM2mSingleResource.newIntegerResource(2, 80));
+        Assert.assertSame(node, service.getLatestValue(client.getRegistrationId(), new LwM2mPath(3, 0, 9)).getNode());
+        Assert.assertEquals(2, service.getLatestValues(client.getRegistrationId()).size());
+
+        // /4/0/2 is the least recently used value
+        publisher.newValue(newObservation(new LwM2mPath(4, 0, 3)), LwM2mSingleResource.newIntegerResource(3, 1));
+        Assert.assertNull(service.getLatestValue(client.getRegistrationId(), new LwM2mPath(4, 0, 2)));
+        Assert.assertEquals(2, service.size());
+        Assert.assertEquals(2, service.getLatestValues(client.getRegistrationId()).size());
+
+        publisher.cancelled(newObservation(new LwM2mPath(3, 0, 9)));
+        Assert.assertEquals(1, service.size());
+        listener.getValue().unregistered(client);
+        Assert.assertEquals(0, service.size());
+        Assert.assertTrue(service.getLatestValues(client.getRegistrationId()).isEmpty());
+
+        publisher.close();
+        publisher = null;
+        verify(registration).unregister();
+    }
+
+    @Test
+    public void testBatchSizeThreshold() {
+        final EventBatchConfig config = new EventBatchConfig();
+        config.setMaxBatchSize(3);
+        config.setMaxDelay(60000L);
+        publisher = new Lwm2mEventPublisher(context, registry, config);
+
+        publisher.newValue(newObservation(new LwM2mPath(3, 0, 9)), LwM2mSingleResource.newIntegerResource(9, 55));
+        publisher.newValue(newObservation(new LwM2mPath(3, 0, 9)), LwM2mSingleResource.newIntegerResource(9, 54));
+        publisher.newValue(newObservation(new LwM2mPath(4, 0, 2)), LwM2mSingleResource.newIntegerResource(2, 80));
+
+        final ArgumentCaptor<Event> event = ArgumentCaptor.forClass(Event.class);
+        verify(eventAdmin).postEvent(event.capture());
+        Assert.assertEquals("ep1/BATCH", event.getValue().getTopic());
+        final ObservationEntry[] entries = (ObservationEntry[]) event.getValue().getProperty(Property.BATCH_ENTRIES);
+        Assert.assertEquals(3, entries.length);
+        Assert.assertEquals(new LwM2mPath(4, 0, 2), entries[2].getPath());
+    }
+
+    @Test
+    public void testBatchTimeThreshold() {
+        final EventBatchConfig config = new EventBatchConfig();
+        config.setGrouping(EventBatchConfig.Grouping.OBJECT);
+        config.setMaxDelay(50L);
+        publisher = new Lwm2mEventPublisher(context, registry, config);
+
+        publisher.newValue(newObservation(new LwM2mPath(3, 0, 9)), LwM2mSingleResource.newIntegerResource(9, 55));
+
+        final ArgumentCaptor<Event> event = ArgumentCaptor.forClass(Event.class);
+        verify(eventAdmin, timeout(2000L)).postEvent(event.capture());
+        Assert.assertEquals("ep1/3/BATCH", event.getValue().getTopic());
+    }
+
+    private Observation newObservation(final LwM2mPath path) {
+        final Observation observation = mock(Observation.class);
+        when(observation.getRegistrationId()).thenReturn(client.getRegistrationId());
+        when(observation.getPath()).thenReturn(path);
+        return observation;
+    }
+}
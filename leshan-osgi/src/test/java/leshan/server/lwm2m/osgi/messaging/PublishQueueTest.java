@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2015, Bosch Software Innovations GmbH
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *     Bosch Software Innovations GmbH - OSGi support
+ *******************************************************************************/
+package leshan.server.lwm2m.osgi.messaging;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import leshan.server.lwm2m.osgi.EventAdminTracker;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+public class PublishQueueTest {
+
+    private EventAdminTracker tracker;
+    private final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+    /** the first event is delivered */
+    private final CountDownLatch firstDelivery = new CountDownLatch(1);
+    /** releases the blocked event handler */
+    private final CountDownLatch release = new CountDownLatch(1);
+    private PublishQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        final BundleContext context = mock(BundleContext.class);
+        final EventAdmin eventAdmin = mock(EventAdmin.class);
+        final ServiceReference<?> ref = mock(ServiceReference.class);
+        when(context.getServiceReferences(anyString(), anyString())).thenReturn(new ServiceReference<?>[] { ref });
+        when(context.getService(ref)).thenReturn((Object) eventAdmin);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                final Event event = (Event) invocation.getArguments()[0];
+                delivered.add(String.valueOf(event.getProperty("value")));
+                firstDelivery.countDown();
+                // a slow event handler
+                release.await();
+                return null;
+            }
+        }).when(eventAdmin).sendEvent(any(Event.class));
+        tracker = new EventAdminTracker(context);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (queue != null) {
+            queue.close();
+        }
+        tracker.close();
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        queue = newQueue(PublishQueueConfig.OverflowPolicy.DROP_OLDEST);
+        publishAll("ep/3/0/9", 1, 2, 3, 4);
+
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(1, queue.getShedEventCount());
+        release.countDown();
+        queue.close();
+        Assert.assertEquals(Arrays.asList("1", "3", "4"), delivered);
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        queue = newQueue(PublishQueueConfig.OverflowPolicy.DROP_NEWEST);
+        publishAll("ep/3/0/9", 1, 2, 3, 4);
+
+        Assert.assertEquals(1, queue.getShedEventCount());
+        release.countDown();
+        queue.close();
+        Assert.assertEquals(Arrays.asList("1", "2", "3"), delivered);
+    }
+
+    @Test
+    public void testLatestPerPath() throws Exception {
+        queue = newQueue(PublishQueueConfig.OverflowPolicy.LATEST_PER_PATH);
+        publishAll("ep/3/0/9", 1, 2);
+        publishAll("ep/4/0/2", 3);
+        publishAll("ep/3/0/9", 4, 5);
+
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(0, queue.getShedEventCount());
+        Assert.assertEquals(2, queue.getCoalescedEventCount());
+        release.countDown();
+        queue.close();
+        Assert.assertEquals(Arrays.asList("1", "5", "3"), delivered);
+    }
+
+    @Test
+    public void testBlockTimeout() throws Exception {
+        queue = newQueue(PublishQueueConfig.OverflowPolicy.BLOCK);
+        publishAll("ep/3/0/9", 1, 2, 3);
+
+        final long start = System.currentTimeMillis();
+        publishAll("ep/3/0/9", 4);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+        Assert.assertEquals(1, queue.getShedEventCount());
+    }
+
+    private PublishQueue newQueue(final PublishQueueConfig.OverflowPolicy policy) {
+        final PublishQueueConfig config = new PublishQueueConfig();
+        config.setCapacity(2);
+        config.setOverflowPolicy(policy);
+        config.setBlockTimeout(50L);
+        return new PublishQueue(config, tracker);
+    }
+
+    private void publishAll(final String topic, final int... values) throws InterruptedException {
+        for (final int value : values) {
+            queue.publish(new Event(topic, Collections.singletonMap("value", value)), topic);
+            // the dispatcher takes the first event and blocks
+            Assert.assertTrue(firstDelivery.await(2, TimeUnit.SECONDS));
+        }
+    }
+}